@@ -0,0 +1,63 @@
+package filesystem.bench;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+// fails (exit status 1) if create, open, read or positional writes allocate per operation. The budgets of the
+// String API calls are exactly the status strings they return (and the handle openClose parses out of one), with
+// compressed strings and oops; the positional read and write return no strings, so their budget is below one
+// object in a hundred operations and any allocation by the file system itself fails the check
+public final class AllocationCheck {
+
+	private static final double NO_STRINGS = 0.1; // bytes per operation the harness is allowed
+
+	private static final Map<String, Double> BUDGETS = new LinkedHashMap<>(); // bytes per operation
+	static {
+		BUDGETS.put("MetadataBenchmark.createDestroy", 112.0); // "NEW created" and "NEW destroyed", 56 bytes each
+		// "OPN opened <handle>", the handle and "<handle> closed", 64, 56 and 64 bytes for ten-digit handles
+		BUDGETS.put("MetadataBenchmark.openClose", 184.0);
+		BUDGETS.put("DataBenchmark.sequentialRead", 56.0); // "position is 0"
+		BUDGETS.put("DataBenchmark.randomRead", 64.0); // "position is <pos>", at most five digits
+		BUDGETS.put("DataBenchmark.positionalRead", NO_STRINGS);
+		BUDGETS.put("DataBenchmark.positionalWrite", NO_STRINGS);
+	}
+
+	private AllocationCheck() {
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		OptionsBuilder builder = new OptionsBuilder();
+		for (String benchmark : BUDGETS.keySet())
+			builder.include(AllocationCheck.class.getPackage().getName() + "." + benchmark + "$");
+		Options options = builder.param("dirFill", "1000").param("fileSize", "65536")
+				.warmupIterations(2).warmupTime(TimeValue.seconds(1))
+				.measurementIterations(2).measurementTime(TimeValue.seconds(1))
+				.forks(1).addProfiler(GCProfiler.class).build();
+		Collection<RunResult> results = new Runner(options).run();
+
+		int failures = 0;
+		for (RunResult result : results) {
+			String benchmark = result.getParams().getBenchmark();
+			String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+			Result<?> allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+			double budget = BUDGETS.get(name);
+			boolean failed = allocated == null || allocated.getScore() > budget;
+			System.out.printf("%-36s %10.2f B/op (budget %.1f)%s%n", name,
+					allocated == null ? Double.NaN : allocated.getScore(), budget, failed ? "  FAILED" : "");
+			if (failed)
+				failures++;
+		}
+		if (failures > 0 || results.size() != BUDGETS.size())
+			System.exit(1);
+	}
+}
@@ -0,0 +1,25 @@
+package filesystem.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs the benchmarks matching the given patterns (all of them by default) with the GC profiler attached, which
+// reports the bytes allocated per operation (gc.alloc.rate.norm) next to the timings
+public final class AllocationRun {
+
+	private AllocationRun() {
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		OptionsBuilder builder = new OptionsBuilder();
+		if (args.length == 0)
+			builder.include(AllocationRun.class.getPackage().getName() + "\\..*");
+		for (String pattern : args)
+			builder.include(pattern);
+		Options options = builder.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
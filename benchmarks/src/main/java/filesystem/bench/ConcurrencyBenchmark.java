@@ -0,0 +1,156 @@
+package filesystem.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesystem.FileSystem;
+
+// block-sized transfers from 1, 4 and 8 threads on one file system: each thread reads and writes a file of its
+// own, and all threads read one shared file through handles of their own. The async variant issues a batch of
+// positional reads of the shared file from one thread and waits for all of them
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+	private static final int FILE_SIZE = 256 * 1024;
+	private static final int TRANSFER = 4096;
+	private static final int ASYNC_BATCH = 16;
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		FileSystem fs;
+		final AtomicInteger nextFile = new AtomicInteger();
+
+		@Setup
+		public void setUp() {
+			this.fs = Fixtures.newFileSystem(65536);
+			Fixtures.check(this.fs.create("SHR"));
+			int handle = Fixtures.open(this.fs, "SHR");
+			this.fs.write(handle, ByteBuffer.allocate(FILE_SIZE));
+			this.fs.close(handle);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class PerThread {
+		FileSystem fs;
+		int ownHandle;
+		int sharedHandle;
+		int pos;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER);
+		final ByteBuffer[] batch = new ByteBuffer[ASYNC_BATCH];
+		final CompletableFuture<?>[] pending = new CompletableFuture<?>[ASYNC_BATCH];
+
+		@Setup
+		public void setUp(Shared shared) {
+			this.fs = shared.fs;
+			String fileName = Fixtures.name(shared.nextFile.getAndIncrement());
+			Fixtures.check(this.fs.create(fileName));
+			this.ownHandle = Fixtures.open(this.fs, fileName);
+			this.fs.write(this.ownHandle, ByteBuffer.allocate(FILE_SIZE));
+			this.sharedHandle = Fixtures.open(this.fs, "SHR");
+			for (int i = 0; i < ASYNC_BATCH; i++)
+				this.batch[i] = ByteBuffer.allocateDirect(TRANSFER);
+		}
+
+		int nextPos() {
+			this.pos = (this.pos + TRANSFER) % FILE_SIZE;
+			return this.pos;
+		}
+	}
+
+	private static int read(PerThread state, int handle) {
+		state.fs.lseek(handle, state.nextPos());
+		state.buffer.clear();
+		return state.fs.read(handle, state.buffer);
+	}
+
+	private static int write(PerThread state) {
+		state.fs.lseek(state.ownHandle, state.nextPos());
+		state.buffer.clear();
+		return state.fs.write(state.ownHandle, state.buffer);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int privateReadT1(PerThread state) {
+		return read(state, state.ownHandle);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int privateReadT4(PerThread state) {
+		return read(state, state.ownHandle);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int privateReadT8(PerThread state) {
+		return read(state, state.ownHandle);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int sharedReadT1(PerThread state) {
+		return read(state, state.sharedHandle);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int sharedReadT4(PerThread state) {
+		return read(state, state.sharedHandle);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int sharedReadT8(PerThread state) {
+		return read(state, state.sharedHandle);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int privateWriteT1(PerThread state) {
+		return write(state);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int privateWriteT4(PerThread state) {
+		return write(state);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int privateWriteT8(PerThread state) {
+		return write(state);
+	}
+
+	@Benchmark
+	@Threads(1)
+	@OperationsPerInvocation(ASYNC_BATCH)
+	public Object sharedReadAsync(PerThread state) {
+		for (int i = 0; i < ASYNC_BATCH; i++) {
+			state.batch[i].clear();
+			state.pending[i] = state.fs.readAsync(state.sharedHandle, state.nextPos(), state.batch[i]);
+		}
+		return CompletableFuture.allOf(state.pending).join();
+	}
+}
@@ -0,0 +1,172 @@
+package filesystem.bench;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesystem.FileSystem;
+
+// reads, writes and seeks on one open file of fileSize bytes; the positional variants of the random accesses
+// replace lseek and the transfer with a single call. Appends grow a file of their own
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataBenchmark {
+
+	private static final int SMALL_TRANSFER = 64;
+
+	@Param({"4096", "65536", "1048576"})
+	public int fileSize;
+
+	private FileSystem fs;
+	private int handle;
+	private ByteBuffer whole;
+	private ByteBuffer small;
+	private final SplittableRandom random = new SplittableRandom(42);
+
+	@Setup
+	public void setUp() {
+		this.fs = Fixtures.newFileSystem(65536);
+		Fixtures.check(this.fs.create("DAT"));
+		this.handle = Fixtures.open(this.fs, "DAT");
+		this.whole = ByteBuffer.allocateDirect(this.fileSize);
+		this.small = ByteBuffer.allocateDirect(SMALL_TRANSFER);
+		if (this.fs.write(this.handle, this.whole) != this.fileSize)
+			throw new IllegalStateException("disk too small for " + this.fileSize + " bytes");
+	}
+
+	@Benchmark
+	public int sequentialRead() {
+		this.fs.lseek(this.handle, 0);
+		this.whole.clear();
+		return this.fs.read(this.handle, this.whole);
+	}
+
+	@Benchmark
+	public int sequentialWrite() {
+		this.fs.lseek(this.handle, 0);
+		this.whole.clear();
+		return this.fs.write(this.handle, this.whole);
+	}
+
+	@Benchmark
+	public int randomRead() {
+		this.fs.lseek(this.handle, this.random.nextInt(this.fileSize - SMALL_TRANSFER));
+		this.small.clear();
+		return this.fs.read(this.handle, this.small);
+	}
+
+	@Benchmark
+	public int randomWrite() {
+		this.fs.lseek(this.handle, this.random.nextInt(this.fileSize - SMALL_TRANSFER));
+		this.small.clear();
+		return this.fs.write(this.handle, this.small);
+	}
+
+	@Benchmark
+	public int positionalRead() {
+		this.small.clear();
+		return this.fs.read(this.handle, this.random.nextInt(this.fileSize - SMALL_TRANSFER), this.small);
+	}
+
+	@Benchmark
+	public int positionalWrite() {
+		this.small.clear();
+		return this.fs.write(this.handle, this.random.nextInt(this.fileSize - SMALL_TRANSFER), this.small);
+	}
+
+	@Benchmark
+	public String lseek() {
+		return this.fs.lseek(this.handle, this.random.nextInt(this.fileSize));
+	}
+
+	// frees the second half of the file and writes it again
+	@Benchmark
+	public int truncate() {
+		int half = this.fileSize / 2;
+		this.fs.truncate(this.handle, half);
+		this.whole.clear().position(half);
+		return this.fs.write(this.handle, half, this.whole);
+	}
+
+	// makes a random range a hole and writes it again
+	@Benchmark
+	public int punchHole() {
+		int pos = this.random.nextInt(this.fileSize - SMALL_TRANSFER);
+		this.fs.punchHole(this.handle, pos, SMALL_TRANSFER);
+		this.small.clear();
+		return this.fs.write(this.handle, pos, this.small);
+	}
+
+	@Benchmark
+	public int append(Appends appends) {
+		return appends.append(this.fileSize);
+	}
+
+	// small writes at the end of a file that is destroyed and created again once it reaches fileSize. Every append
+	// commits the new file length, unless write-behind (writeBehindMillis above 0) leaves that to its flusher; with
+	// preallocation, appends that need a block allocate a run of them
+	@State(Scope.Thread)
+	public static class Appends {
+
+		@Param({"0", "10"})
+		public long writeBehindMillis;
+
+		@Param({"false", "true"})
+		public boolean preallocate;
+
+		private FileSystem fs;
+		private int handle;
+		private int length;
+		private ByteBuffer small;
+
+		@Setup
+		public void setUp() {
+			this.fs = Fixtures.newFileSystem(65536);
+			this.fs.setWriteBehind(this.writeBehindMillis, 25);
+			this.fs.setPreallocation(this.preallocate);
+			this.small = ByteBuffer.allocateDirect(SMALL_TRANSFER);
+			this.restart();
+		}
+
+		@TearDown
+		public void tearDown() {
+			this.fs.setWriteBehind(0, 0);
+		}
+
+		int append(int fileSize) {
+			if (this.length + SMALL_TRANSFER > fileSize)
+				this.restart();
+			this.small.clear();
+			int written = this.fs.write(this.handle, this.small);
+			this.length += written;
+			return written;
+		}
+
+		private void restart() {
+			if (this.handle > 0) { // handles of open files are positive
+				this.fs.close(this.handle);
+				Fixtures.check(this.fs.destroy("APP"));
+			}
+			Fixtures.check(this.fs.create("APP"));
+			this.handle = Fixtures.open(this.fs, "APP");
+			this.length = 0;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package filesystem.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import filesystem.FileSystem;
+import filesystem.HeapBlockDevice;
+
+// fails (exit status 1) if the directory B+tree loses, duplicates or misorders names while nodes split and merge.
+// Names are added in random order, short ones until the tree is several levels deep and long ones that fill a
+// node with a few entries, in the root and in a subdirectory, and then all removed in random order. The listing
+// must hold exactly the names added and not removed, in order, every CHECK_EVERY steps and after the last, and
+// the same once a copy of the disk is mounted; every name must be found and every removed one not. Once every
+// name is gone the subdirectory must be empty enough to remove. Writes through handle 0, under which the root
+// directory is open, must fail and leave the directory as it was
+public final class DirectoryCheck {
+
+	private static final int NUM_BLOCKS = 16384;
+	private static final int SHORT_NAMES = 3000;
+	private static final int LONG_NAMES = 400;
+	private static final int LONG_NAME_LENGTH = 200; // five to a node of two 512-byte blocks
+	private static final int CHECK_EVERY = 97; // steps between full checks; the last step is always checked
+
+	private DirectoryCheck() {
+	}
+
+	public static void main(String[] args) {
+		int failures = 0;
+		failures += check("root, short names", "", SHORT_NAMES, 0);
+		failures += check("root, long names", "", LONG_NAMES, LONG_NAME_LENGTH);
+		failures += check("subdir, short names", "D/", SHORT_NAMES, 0);
+		failures += check("subdir, long names", "D/", LONG_NAMES, LONG_NAME_LENGTH);
+		failures += checkHandleZero();
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	// adds count names to directory, "" for the root or a path ending in '/', then removes them; nameLength 0
+	// for the short names of Fixtures.name
+	private static int check(String label, String directory, int count, int nameLength) {
+		HeapBlockDevice device = new HeapBlockDevice(NUM_BLOCKS, Fixtures.BLOCK_LENGTH);
+		FileSystem fs = new FileSystem(device);
+		if (!directory.isEmpty())
+			Fixtures.check(fs.mkdir(directory.substring(0, directory.length() - 1)));
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			names.add(nameLength == 0 ? Fixtures.name(i) : longName(i, nameLength));
+		Random random = new Random(count);
+		Collections.shuffle(names, random);
+
+		TreeSet<String> expected = new TreeSet<>();
+		String failure = null;
+		for (int i = 0; i < names.size() && failure == null; i++) {
+			if (fs.create(directory + names.get(i)).startsWith("error"))
+				failure = "create " + i + " failed";
+			expected.add(names.get(i));
+			if (failure == null && (i % CHECK_EVERY == 0 || i == names.size() - 1))
+				failure = verify(fs, directory, expected, "after create " + i);
+		}
+		if (failure == null)
+			failure = verify(remount(device), directory, expected, "after remount");
+
+		Collections.shuffle(names, random);
+		List<String> removed = new ArrayList<>();
+		for (int i = 0; i < names.size() && failure == null; i++) {
+			if (fs.destroy(directory + names.get(i)).startsWith("error"))
+				failure = "destroy " + i + " failed";
+			expected.remove(names.get(i));
+			removed.add(names.get(i));
+			if (failure == null && (i % CHECK_EVERY == 0 || i == names.size() - 1)) {
+				failure = verify(fs, directory, expected, "after destroy " + i);
+				for (String name : removed) {
+					if (failure == null && !fs.open(directory + name).startsWith("error"))
+						failure = "removed name found after destroy " + i;
+				}
+				removed.clear();
+			}
+		}
+		if (failure == null)
+			failure = verify(remount(device), directory, expected, "after removing every name and remounting");
+		if (failure == null && !directory.isEmpty() && fs.rmdir(directory.substring(0, directory.length() - 1)).startsWith("error"))
+			failure = "directory not empty after removing every name";
+		if (failure == null && fs.create("AGAIN").startsWith("error"))
+			failure = "create after removing every name failed";
+
+		System.out.printf("%-20s %5d names%s%n", label, count, failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	// returns null if the listing of directory is expected and every name in it is found, otherwise what is wrong
+	private static String verify(FileSystem fs, String directory, TreeSet<String> expected, String when) {
+		String listing = directory.isEmpty() ? fs.directory() : fs.directory(directory.substring(0, directory.length() - 1));
+		List<String> listed = new ArrayList<>();
+		for (String name : listing.split(" ")) {
+			if (!name.isEmpty() && !name.equals("D/"))
+				listed.add(name);
+		}
+		if (!listed.equals(new ArrayList<>(expected)))
+			return "listing " + when + " has " + listed.size() + " names, expected " + expected.size();
+		for (String name : expected) {
+			String status = fs.open(directory + name);
+			if (status.startsWith("error"))
+				return name + " not found " + when;
+			fs.close(Integer.parseInt(status.substring(status.lastIndexOf(' ') + 1)));
+		}
+		return null;
+	}
+
+	// the file system mounted from a copy of the device, whose journal holds the changes still in the cache
+	private static FileSystem remount(HeapBlockDevice device) {
+		byte[][] blocks = new byte[NUM_BLOCKS][Fixtures.BLOCK_LENGTH];
+		for (int i = 0; i < NUM_BLOCKS; i++)
+			device.readBlock(i, blocks[i]);
+		return new FileSystem(new HeapBlockDevice(blocks));
+	}
+
+	private static int checkHandleZero() {
+		FileSystem fs = new FileSystem(new HeapBlockDevice(NUM_BLOCKS, Fixtures.BLOCK_LENGTH));
+		TreeSet<String> expected = new TreeSet<>();
+		for (int i = 0; i < 200; i++) {
+			Fixtures.check(fs.create(Fixtures.name(i)));
+			expected.add(Fixtures.name(i));
+		}
+		byte[] garbage = new byte[4 * Fixtures.BLOCK_LENGTH];
+		new Random(0).nextBytes(garbage);
+		String failure = null;
+		if (!fs.write(0, garbage, garbage.length).startsWith("error"))
+			failure = "wr through handle 0 did not fail";
+		else if (fs.write(0, 0, ByteBuffer.wrap(garbage)) >= 0)
+			failure = "pw through handle 0 did not fail";
+		else if (fs.write(0, ByteBuffer.wrap(garbage)) >= 0)
+			failure = "buffer write through handle 0 did not fail";
+		if (failure == null)
+			failure = verify(fs, "", expected, "after writes through handle 0");
+		if (failure == null && fs.destroy(Fixtures.name(0)).startsWith("error"))
+			failure = "destroy after writes through handle 0 failed";
+		System.out.printf("%-20s %5d names%s%n", "handle 0", expected.size(), failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	// distinct names of length characters that differ only at the end, so comparisons scan most of them
+	private static String longName(int i, int length) {
+		String suffix = Fixtures.name(i);
+		StringBuilder name = new StringBuilder(length);
+		while (name.length() < length - suffix.length())
+			name.append('_');
+		return name.append(suffix).toString();
+	}
+}
@@ -0,0 +1,54 @@
+package filesystem.bench;
+
+import filesystem.DiskGeometry;
+import filesystem.FileSystem;
+
+// file systems and file names shared by the benchmarks
+final class Fixtures {
+
+	static final int BLOCK_LENGTH = 512;
+	static final int DISK_MAP_SIZE = 3;
+	static final int NUM_DESCRIPTOR_BLOCKS = 128; // 2286 descriptors of 28 bytes before the table grows
+	static final int OFT_SIZE = 64;
+
+	private static final String NAME_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+	private Fixtures() {
+	}
+
+	static FileSystem newFileSystem(int numBlocks) {
+		return new FileSystem(new DiskGeometry(BLOCK_LENGTH, numBlocks, DISK_MAP_SIZE, NUM_DESCRIPTOR_BLOCKS, OFT_SIZE));
+	}
+
+	// distinct one to three character names in lower case; benchmarks name their own files in upper case
+	static String name(int i) {
+		StringBuilder name = new StringBuilder();
+		do {
+			name.append(NAME_CHARS.charAt(i % NAME_CHARS.length()));
+			i = i / NAME_CHARS.length() - 1;
+		} while (i >= 0);
+		return name.toString();
+	}
+
+	// creates count empty files named name(0) .. name(count - 1)
+	static void fillDirectory(FileSystem fs, int count) {
+		fillDirectory(fs, "", count);
+	}
+
+	// the same in directory, a path ending in '/'
+	static void fillDirectory(FileSystem fs, String directory, int count) {
+		for (int i = 0; i < count; i++)
+			check(fs.create(directory + name(i)));
+	}
+
+	static int open(FileSystem fs, String fileName) {
+		String status = check(fs.open(fileName));
+		return Integer.parseInt(status.substring(status.lastIndexOf(' ') + 1));
+	}
+
+	static String check(String status) {
+		if (status.startsWith("error"))
+			throw new IllegalStateException("file system operation failed");
+		return status;
+	}
+}
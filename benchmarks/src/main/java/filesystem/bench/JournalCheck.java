@@ -0,0 +1,253 @@
+package filesystem.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import filesystem.BlockDevice;
+import filesystem.FileSystem;
+import filesystem.HeapBlockDevice;
+
+// fails (exit status 1) if a crash at any point of a multi-block operation leaves a disk that mounts into an
+// inconsistent file system. Every operation runs on a journaled disk whose block writes are recorded; each
+// prefix of them is then laid over the disk as it was before the operation and mounted, which replays the
+// journal. The mounted file system must hold the files that were there before, must not hand out a block that a
+// file still uses, and every byte of the file the operation changed must read as it was or as it became. Once
+// the operation has returned the file must have its new length, and its new contents where the operation only
+// wrote newly allocated blocks: overwrites of blocks a file already had may still be in the cache. Files made
+// durable by fsync and sync must be found whole on a copy of the disk taken right after, with their blocks in use,
+// on a disk with a journal and on one too small to have one
+public final class JournalCheck {
+
+	private static final int NUM_BLOCKS = 2048; // large enough for a journal
+	private static final int FILE_BLOCKS = 80; // past the direct and single indirect blocks
+	private static final int SMALL_NUM_BLOCKS = 512; // too small for a journal
+
+	private JournalCheck() {
+	}
+
+	public static void main(String[] args) {
+		int failures = 0;
+		failures += check("append", "NEW", true, fs -> write(fs, "NEW", bytes(2, FILE_BLOCKS * Fixtures.BLOCK_LENGTH)));
+		failures += check("overwrite", "OLD", false, fs -> write(fs, "OLD", bytes(3, FILE_BLOCKS * Fixtures.BLOCK_LENGTH)));
+		failures += check("destroy", "OLD", true, fs -> Fixtures.check(fs.destroy("OLD")));
+		failures += checkSync("sync", NUM_BLOCKS);
+		failures += checkSync("sync, no journal", SMALL_NUM_BLOCKS);
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	// runs operation, which changes file, after setting up a disk with the files KEEP and OLD, and mounts every
+	// crash point; durable: the contents file has once the operation returns are on disk
+	private static int check(String name, String file, boolean durable, Consumer<FileSystem> operation) {
+		RecordingDevice device = new RecordingDevice(NUM_BLOCKS, Fixtures.BLOCK_LENGTH);
+		FileSystem fs = new FileSystem(device, Fixtures.newFileSystem(NUM_BLOCKS).getGeometry());
+		byte[] keep = bytes(0, 3 * Fixtures.BLOCK_LENGTH + 17);
+		write(fs, "KEEP", keep);
+		write(fs, "OLD", bytes(1, FILE_BLOCKS / 2 * Fixtures.BLOCK_LENGTH));
+		byte[][] before = device.snapshot();
+		device.record();
+		operation.accept(fs);
+		List<Write> writes = device.writes;
+
+		// what the changed file may read as after a crash: its contents before and after the operation
+		byte[] old = contents(mount(before, List.of(), 0), file);
+		byte[] changed = contents(fs, file);
+		int failedPoints = 0;
+		String firstFailure = null;
+		for (int crash = 0; crash <= writes.size(); crash++) {
+			String failure = verify(mount(before, writes, crash), keep, file, old, changed,
+					crash < writes.size() ? 0 : durable ? 2 : 1);
+			if (failure != null) {
+				failedPoints++;
+				if (firstFailure == null)
+					firstFailure = "crash after write " + crash + ": " + failure;
+			}
+		}
+		System.out.printf("%-16s %5d crash points%s%n", name, writes.size() + 1,
+				failedPoints == 0 ? "" : "  FAILED at " + failedPoints + ", first " + firstFailure);
+		return failedPoints == 0 ? 0 : 1;
+	}
+
+	// writes a file and fsyncs it, then another and syncs the disk, and mounts a copy of the disk after each
+	private static int checkSync(String name, int numBlocks) {
+		RecordingDevice device = new RecordingDevice(numBlocks, Fixtures.BLOCK_LENGTH);
+		FileSystem fs = new FileSystem(device);
+		byte[] synced = bytes(4, 3000);
+		byte[] fsynced = bytes(5, 5 * Fixtures.BLOCK_LENGTH + 1);
+		Fixtures.check(fs.create("FSYNCED"));
+		int handle = Fixtures.open(fs, "FSYNCED");
+		String failure = null;
+		if (fs.write(handle, 0, ByteBuffer.wrap(fsynced)) != fsynced.length || fs.fsync(handle) != 0)
+			failure = "fsync failed";
+		else if (!Arrays.equals(contents(mount(device.snapshot(), List.of(), 0), "FSYNCED"), fsynced))
+			failure = "FSYNCED lost after fsync";
+		fs.close(handle);
+		if (failure == null) {
+			write(fs, "SYNCED", synced);
+			if (fs.sync() != 0)
+				failure = "sync failed";
+		}
+		if (failure == null) {
+			FileSystem mounted = mount(device.snapshot(), List.of(), 0);
+			if (!Arrays.equals(contents(mounted, "FSYNCED"), fsynced) || !Arrays.equals(contents(mounted, "SYNCED"), synced))
+				failure = "a file lost after sync";
+			else if (!fillDisk(mounted))
+				failure = "free space could not be filled";
+			else if (!Arrays.equals(contents(mounted, "FSYNCED"), fsynced) || !Arrays.equals(contents(mounted, "SYNCED"), synced))
+				failure = "a block in use was handed out again after sync";
+		}
+		System.out.printf("%-16s %5d blocks%s%n", name, numBlocks, failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	// returns null if the file system is consistent, otherwise what is wrong with it. completed: 0 if the crash
+	// came before the operation returned, 1 if after, 2 if after and its contents are durable
+	private static String verify(FileSystem fs, byte[] keep, String file, byte[] old, byte[] changed, int completed) {
+		if (!Arrays.equals(contents(fs, "KEEP"), keep))
+			return "KEEP lost or changed";
+		byte[] found = contents(fs, file);
+		if (!readsAsEither(found, old, changed))
+			return file + " reads neither as before nor as after";
+		if (completed > 0 && (found == null ? changed != null : changed == null || found.length != changed.length))
+			return file + " lost the change that returned";
+		if (completed > 1 && !Arrays.equals(found, changed))
+			return file + " lost data that returned";
+		// fill the free space: a block still in use but marked free would be overwritten
+		if (!fillDisk(fs))
+			return "free space could not be filled";
+		if (!Arrays.equals(contents(fs, "KEEP"), keep) || !Arrays.equals(contents(fs, file), found))
+			return "a block in use was handed out again";
+		return null;
+	}
+
+	// a file that exists is no longer than both versions, and each of its bytes is that of one of them
+	private static boolean readsAsEither(byte[] found, byte[] old, byte[] changed) {
+		if (found == null)
+			return old == null || changed == null;
+		int length = Math.max(old == null ? 0 : old.length, changed == null ? 0 : changed.length);
+		if (found.length > length)
+			return false;
+		for (int i = 0; i < found.length; i++) {
+			boolean asOld = old != null && i < old.length && found[i] == old[i];
+			boolean asChanged = changed != null && i < changed.length && found[i] == changed[i];
+			if (!asOld && !asChanged)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean fillDisk(FileSystem fs) {
+		if (fs.create("FILL").startsWith("error"))
+			return false;
+		int handle = Fixtures.open(fs, "FILL");
+		ByteBuffer block = ByteBuffer.wrap(bytes(9, Fixtures.BLOCK_LENGTH));
+		while (fs.write(handle, block.clear()) == Fixtures.BLOCK_LENGTH)
+			;
+		fs.close(handle);
+		return true;
+	}
+
+	private static FileSystem mount(byte[][] before, List<Write> writes, int count) {
+		byte[][] blocks = new byte[before.length][];
+		for (int i = 0; i < before.length; i++)
+			blocks[i] = before[i].clone();
+		for (int i = 0; i < count; i++)
+			System.arraycopy(writes.get(i).data, 0, blocks[writes.get(i).index], 0, Fixtures.BLOCK_LENGTH);
+		return new FileSystem(new HeapBlockDevice(blocks));
+	}
+
+	private static void write(FileSystem fs, String name, byte[] data) {
+		if (fs.open(name).startsWith("error"))
+			Fixtures.check(fs.create(name));
+		int handle = Fixtures.open(fs, name);
+		if (fs.write(handle, 0, ByteBuffer.wrap(data)) != data.length)
+			throw new IllegalStateException("write failed");
+		Fixtures.check(fs.close(handle));
+	}
+
+	// the whole file, or null if it does not exist
+	private static byte[] contents(FileSystem fs, String name) {
+		String status = fs.open(name);
+		if (status.startsWith("error"))
+			return null;
+		int handle = Integer.parseInt(status.substring(status.lastIndexOf(' ') + 1));
+		ByteBuffer buffer = ByteBuffer.allocate(4 * FILE_BLOCKS * Fixtures.BLOCK_LENGTH);
+		int length = fs.read(handle, 0, buffer);
+		fs.close(handle);
+		return length < 0 ? null : Arrays.copyOf(buffer.array(), length);
+	}
+
+	private static byte[] bytes(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static final class Write {
+		final int index;
+		final byte[] data;
+
+		Write(int index, byte[] data) {
+			this.index = index;
+			this.data = data;
+		}
+	}
+
+	// heap device that keeps every block written once record is called, in order
+	private static final class RecordingDevice implements BlockDevice {
+
+		private final HeapBlockDevice blocks;
+		private final int blockLength;
+		private List<Write> writes;
+
+		RecordingDevice(int numBlocks, int blockLength) {
+			this.blocks = new HeapBlockDevice(numBlocks, blockLength);
+			this.blockLength = blockLength;
+		}
+
+		void record() {
+			this.writes = new ArrayList<>();
+		}
+
+		byte[][] snapshot() {
+			byte[][] copy = new byte[this.getNumBlocks()][this.blockLength];
+			for (int i = 0; i < copy.length; i++)
+				this.blocks.readBlock(i, copy[i]);
+			return copy;
+		}
+
+		@Override
+		public int getNumBlocks() {
+			return this.blocks.getNumBlocks();
+		}
+
+		@Override
+		public int getBlockLength() {
+			return this.blockLength;
+		}
+
+		@Override
+		public void readBlock(int index, byte[] p, int offset) {
+			this.blocks.readBlock(index, p, offset);
+		}
+
+		@Override
+		public synchronized void writeBlock(int index, byte[] p, int offset) {
+			this.blocks.writeBlock(index, p, offset);
+			if (this.writes != null)
+				this.writes.add(new Write(index, Arrays.copyOfRange(p, offset, offset + this.blockLength)));
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package filesystem.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import filesystem.CompressedBlockDevice;
+import filesystem.FileSystem;
+
+// fails (exit status 1) if a block does not read back as it was written through the compressor, or takes more
+// room than it should. Blocks of random bytes, which do not compress, blocks of zeros, blocks that differ from
+// zeros in one byte and blocks that repeat a pattern of a few bytes up to most of a block go through a
+// compressed device one at a time, at an offset into the caller's array, and over each other in one block;
+// random blocks must be kept at their length, zero blocks take nothing and repeating ones a fraction. Files of
+// each kind then go through a compressed image of a file system, which compresses runs of blocks at once
+public final class LzCheck {
+
+	private static final int[] BLOCK_LENGTHS = { 64, 512, 4096 };
+	private static final int[] PERIODS = { 1, 2, 3, 7, 64, 300 }; // bytes before a repeating block repeats
+	private static final int OFFSET = 13; // into the arrays blocks are written from and read into
+	private static final int FILE_BLOCKS = 600; // more than one run of an image
+	private static final int NUM_BLOCKS = 2048;
+
+	private LzCheck() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		int failures = 0;
+		for (int blockLength : BLOCK_LENGTHS) {
+			failures += check("random", blockLength, random(1, blockLength), blockLength);
+			failures += check("zeros", blockLength, new byte[blockLength], 0);
+			byte[] almostZeros = new byte[blockLength];
+			almostZeros[blockLength - 1] = 1;
+			failures += check("zeros but one", blockLength, almostZeros, blockLength / 4);
+			for (int period : PERIODS) {
+				if (period < blockLength / 2)
+					failures += check("period " + period, blockLength, repeating(period, blockLength), blockLength / 2);
+			}
+			failures += checkOverwrites(blockLength);
+		}
+		failures += checkImage();
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	// writes block to a fresh device and reads it back; the device must store it in at most maxStored bytes, and
+	// in exactly blockLength if maxStored is blockLength, as it does with blocks that do not compress
+	private static int check(String label, int blockLength, byte[] block, int maxStored) {
+		CompressedBlockDevice device = new CompressedBlockDevice(4, blockLength);
+		String failure = roundTrip(device, 2, block);
+		long stored = device.getStoredBytes();
+		if (failure == null && (maxStored == blockLength ? stored != blockLength : stored > maxStored))
+			failure = "stored in " + stored + " bytes";
+		// the block next to it must not have been touched
+		if (failure == null && !Arrays.equals(read(device, 3), new byte[blockLength]))
+			failure = "the next block changed";
+		System.out.printf("%-14s %5d bytes  stored %5d%s%n", label, blockLength, stored,
+				failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	// writes every kind of block over the last one in the same place, which must read as the last written, and
+	// zeros at the end, which must leave nothing stored
+	private static int checkOverwrites(int blockLength) {
+		CompressedBlockDevice device = new CompressedBlockDevice(1, blockLength);
+		byte[][] blocks = { repeating(3, blockLength), random(2, blockLength), repeating(1, blockLength),
+				random(3, blockLength), new byte[blockLength] };
+		String failure = null;
+		for (int i = 0; i < blocks.length && failure == null; i++)
+			failure = roundTrip(device, 0, blocks[i]);
+		if (failure == null && device.getStoredBytes() != 0)
+			failure = device.getStoredBytes() + " bytes stored after zeros";
+		System.out.printf("%-14s %5d bytes%s%n", "overwrites", blockLength, failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	// returns null if block reads back as written at index, otherwise what is wrong
+	private static String roundTrip(CompressedBlockDevice device, int index, byte[] block) {
+		byte[] src = new byte[OFFSET + block.length + OFFSET];
+		Arrays.fill(src, (byte) 0x7f); // around the block, so a read past it shows
+		System.arraycopy(block, 0, src, OFFSET, block.length);
+		device.writeBlock(index, src, OFFSET);
+		return Arrays.equals(read(device, index), block) ? null : "reads back wrong";
+	}
+
+	// the block at index, read at an offset into an array that is not zeroed
+	private static byte[] read(CompressedBlockDevice device, int index) {
+		byte[] dest = new byte[OFFSET + device.getBlockLength() + OFFSET];
+		Arrays.fill(dest, (byte) 0x7f);
+		device.readBlock(index, dest, OFFSET);
+		for (int i = 0; i < OFFSET; i++) {
+			if (dest[i] != 0x7f || dest[dest.length - 1 - i] != 0x7f)
+				throw new IllegalStateException("read past the block");
+		}
+		return Arrays.copyOfRange(dest, OFFSET, OFFSET + device.getBlockLength());
+	}
+
+	// a file of each kind on a compressed file system, saved to an image and restored from it
+	private static int checkImage() throws IOException {
+		FileSystem fs = new FileSystem(new CompressedBlockDevice(NUM_BLOCKS, Fixtures.BLOCK_LENGTH));
+		int length = FILE_BLOCKS * Fixtures.BLOCK_LENGTH;
+		byte[][] files = { random(4, length), new byte[length], repeating(7, length) };
+		for (int i = 0; i < files.length; i++)
+			write(fs, Fixtures.name(i), files[i]);
+		Path image = Files.createTempFile("lzcheck", ".img");
+		String failure = null;
+		long stored = 0;
+		try {
+			if (fs.saveImageToFile(image.toString()) < 0)
+				failure = "image not saved";
+			FileSystem restored = new FileSystem(new CompressedBlockDevice(NUM_BLOCKS, Fixtures.BLOCK_LENGTH));
+			if (failure == null && restored.restoreImageFromFiles(image.toString()) < 0)
+				failure = "image not restored";
+			for (int i = 0; i < files.length && failure == null; i++) {
+				if (!Arrays.equals(contents(restored, Fixtures.name(i), length), files[i]))
+					failure = "file " + i + " reads back wrong";
+			}
+			// the random file, and not much more
+			stored = Files.size(image);
+			if (failure == null && stored > length + length / 8)
+				failure = "image of " + stored + " bytes";
+		} finally {
+			Files.deleteIfExists(image);
+		}
+		System.out.printf("%-14s %5d blocks stored %7d%s%n", "image", files.length * FILE_BLOCKS, stored,
+				failure == null ? "" : "  FAILED " + failure);
+		return failure == null ? 0 : 1;
+	}
+
+	private static void write(FileSystem fs, String name, byte[] data) {
+		Fixtures.check(fs.create(name));
+		int handle = Fixtures.open(fs, name);
+		if (fs.write(handle, 0, ByteBuffer.wrap(data)) != data.length)
+			throw new IllegalStateException("write failed");
+		Fixtures.check(fs.close(handle));
+	}
+
+	private static byte[] contents(FileSystem fs, String name, int length) {
+		int handle = Fixtures.open(fs, name);
+		ByteBuffer buffer = ByteBuffer.allocate(length + 1);
+		int read = fs.read(handle, 0, buffer);
+		fs.close(handle);
+		return read < 0 ? null : Arrays.copyOf(buffer.array(), read);
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	// a random pattern of period bytes, repeated
+	private static byte[] repeating(int period, int length) {
+		byte[] pattern = random(period, period);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = pattern[i % period];
+		return data;
+	}
+}
@@ -0,0 +1,77 @@
+package filesystem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesystem.FileSystem;
+
+// directory operations against a directory holding dirFill other files; create and destroy, and open and
+// close, are measured in pairs so that every invocation leaves the directory as it found it. openCloseDeep
+// opens a file DEPTH directories down, each directory holding dirFill other files too
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+
+	private static final int DEPTH = 8;
+	private static final String DEEP_FILE = "D/D/D/D/D/D/D/D/OPN";
+
+	@Param({"0", "100", "1000"})
+	public int dirFill;
+
+	private FileSystem fs;
+
+	@Setup
+	public void setUp() {
+		this.fs = Fixtures.newFileSystem(16384);
+		Fixtures.fillDirectory(this.fs, this.dirFill);
+		Fixtures.check(this.fs.create("OPN"));
+		String directory = "";
+		for (int i = 0; i < DEPTH; i++) {
+			Fixtures.check(this.fs.mkdir(directory + "D"));
+			directory += "D/";
+			Fixtures.fillDirectory(this.fs, directory, this.dirFill);
+		}
+		Fixtures.check(this.fs.create(DEEP_FILE));
+	}
+
+	@Benchmark
+	public String createDestroy() {
+		this.fs.create("NEW");
+		return this.fs.destroy("NEW");
+	}
+
+	@Benchmark
+	public String openClose() {
+		return this.fs.close(Fixtures.open(this.fs, "OPN"));
+	}
+
+	@Benchmark
+	public String openCloseDeep() {
+		return this.fs.close(Fixtures.open(this.fs, DEEP_FILE));
+	}
+
+	@Benchmark
+	public String openMissing() {
+		return this.fs.open("NO");
+	}
+
+	@Benchmark
+	public String directory() {
+		return this.fs.directory();
+	}
+}
@@ -0,0 +1,83 @@
+package filesystem.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesystem.FileSystem;
+
+// save and restore of a disk image holding numFiles files of fileSize bytes of text each, with and without
+// compression
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+	private static final String TEXT = "file system benchmark record 0123456789 abcdefghijklmnopqrstuvwxyz\n";
+
+	@Param({"8192", "65536"})
+	public int numBlocks;
+
+	@Param({"10", "500"})
+	public int numFiles;
+
+	@Param({"4096"})
+	public int fileSize;
+
+	@Param({"false", "true"})
+	public boolean compress;
+
+	private FileSystem fs;
+	private File image;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.fs = Fixtures.newFileSystem(this.numBlocks);
+		if (this.fs.setCompression(this.compress) < 0)
+			throw new IllegalStateException("compression not available");
+		Fixtures.fillDirectory(this.fs, this.numFiles);
+		ByteBuffer data = ByteBuffer.allocate(this.fileSize);
+		for (int i = 0; data.hasRemaining(); i++)
+			data.put((byte) TEXT.charAt(i % TEXT.length()));
+		for (int i = 0; i < this.numFiles; i++) {
+			int handle = Fixtures.open(this.fs, Fixtures.name(i));
+			data.clear();
+			this.fs.write(handle, data);
+			this.fs.close(handle);
+		}
+		this.image = File.createTempFile("filesystem-bench", ".img");
+		Fixtures.check(this.fs.save(this.image.getPath()));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.image.delete();
+	}
+
+	@Benchmark
+	public String save() {
+		return this.fs.save(this.image.getPath());
+	}
+
+	@Benchmark
+	public String restore() {
+		return this.fs.initialize(this.image.getPath());
+	}
+}
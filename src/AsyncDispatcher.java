@@ -0,0 +1,128 @@
+package filesystem;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+// runs the calls of the asynchronous API on an executor, at most maxInFlight of them at a time; calls past
+// that wait in submission order without blocking the caller, and each finished call starts the next one
+//
+// the default executor, shared by every file system, starts a virtual thread per call where the runtime has
+// them (Java 21 on), so blocking on a lock or on the disk costs no platform thread; before that it falls back to
+// a pool of daemon threads, one per processor
+final class AsyncDispatcher {
+
+	static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+	private final Executor executor;
+	private final int maxInFlight;
+	private final ArrayDeque<Call<?>> waiting = new ArrayDeque<>();
+	private int inFlight; // guarded by this
+
+	private final class Call<T> implements Runnable {
+		final Supplier<T> body;
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		Call(Supplier<T> body)
+		{
+			this.body = body;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				this.future.complete(this.body.get());
+			} catch (Throwable e) {
+				this.future.completeExceptionally(e);
+			} finally {
+				AsyncDispatcher.this.finished();
+			}
+		}
+	}
+
+	AsyncDispatcher(Executor executor, int maxInFlight)
+	{
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	private static final class DefaultExecutor {
+		static final ExecutorService INSTANCE = AsyncDispatcher.newDefaultExecutor();
+	}
+
+	static Executor defaultExecutor()
+	{
+		return DefaultExecutor.INSTANCE;
+	}
+
+	// the executor the calls run on, which the file system's background loaders share
+	Executor getExecutor()
+	{
+		return this.executor;
+	}
+
+	private static ExecutorService newDefaultExecutor()
+	{
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+				Thread thread = new Thread(task, "filesystem-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	<T> CompletableFuture<T> submit(Supplier<T> body)
+	{
+		Call<T> call = new Call<>(body);
+		boolean start;
+		synchronized (this)
+		{
+			start = this.inFlight < this.maxInFlight;
+			if (start)
+				this.inFlight++;
+			else
+				this.waiting.add(call);
+		}
+		if (start)
+			this.execute(call);
+		return call.future;
+	}
+
+	private void finished()
+	{
+		this.execute(this.next());
+	}
+
+	// the next waiting call, which takes over the slot of a finished one; null if none is waiting
+	private synchronized Call<?> next()
+	{
+		Call<?> next = this.waiting.poll();
+		if (next == null)
+			this.inFlight--;
+		return next;
+	}
+
+	private void execute(Call<?> call)
+	{
+		while (call != null)
+		{
+			try {
+				this.executor.execute(call);
+				return;
+			} catch (RejectedExecutionException e) { // e.g. the executor was shut down
+				call.future.completeExceptionally(e);
+				call = this.next();
+			}
+		}
+	}
+}
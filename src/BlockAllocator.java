@@ -0,0 +1,389 @@
+package filesystem;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// free block allocator over the disk bitmap (bit set = block in use)
+//
+// the bitmap is summarized by a hierarchy of levels: bit i of level k is set when word i of level k - 1 still
+// has a free block (level 0 being the bitmap itself), so finding the next free block from any position
+// touches one word per level instead of scanning the bitmap. Allocations without a hint continue from where
+// the last one ended (next fit), which keeps the amortized search cost constant as the disk fills. The
+// public methods are synchronized; an allocation holds the monitor for a few word operations.
+//
+// contiguous runs are allocated either at a locality hint (e.g. right after a file's last block) or from a
+// free-extent index that buckets free runs by size class (class k: length in [2^k, 2^(k+1))). The index is
+// built from the bitmap on demand; entries are checked against the bitmap when used, and it is rebuilt
+// once enough blocks have been freed since it was built.
+public class BlockAllocator implements Serializable {
+
+	private static final long serialVersionUID = -3175626035311269434L;
+
+	private final int numBlocks;
+	private final int firstDataBlock; // allocations never return a block below this one
+	private long[] used; // level 0
+	private long[][] summary; // summary[k - 1] is level k
+	private int cursor;
+
+	private transient int[][] extentStarts; // per size class, starts of free runs
+	private transient int[] extentCounts;
+	private transient int freedSinceIndexBuilt;
+	private transient boolean changedSinceIndexBuilt;
+
+	public BlockAllocator(int numBlocks, int firstDataBlock)
+	{
+		this.numBlocks = numBlocks;
+		this.firstDataBlock = firstDataBlock;
+		this.used = new long[(numBlocks + 63) >>> 6];
+		// bits past the end of the disk count as used so they are never handed out
+		if ((numBlocks & 63) != 0)
+			this.used[this.used.length - 1] = -1L << (numBlocks & 63);
+		this.rebuildSummary();
+		this.cursor = firstDataBlock;
+	}
+
+	public static BlockAllocator fromBitSet(BitSet bits, int numBlocks, int firstDataBlock)
+	{
+		BlockAllocator allocator = new BlockAllocator(numBlocks, firstDataBlock);
+		long[] words = bits.toLongArray();
+		for (int i = 0; i < Math.min(words.length, allocator.used.length); i++)
+			allocator.used[i] |= words[i];
+		allocator.rebuildSummary();
+		return allocator;
+	}
+
+	// bitmap as bytes, least significant bit first (the layout of BitSet.toByteArray)
+	public synchronized byte[] toByteArray()
+	{
+		long[] words = Arrays.copyOf(this.used, this.used.length);
+		if ((this.numBlocks & 63) != 0)
+			words[words.length - 1] &= ~(-1L << (this.numBlocks & 63));
+		return BitSet.valueOf(words).toByteArray();
+	}
+
+	// copies dest.length bytes of the bitmap, in the layout of toByteArray, starting at byte fromByte;
+	// bytes past the end of the disk are 0
+	public synchronized void toByteArray(int fromByte, byte[] dest)
+	{
+		for (int i = 0; i < dest.length; i++)
+		{
+			int b = fromByte + i;
+			int w = b >>> 3;
+			long word = w < this.used.length ? this.used[w] : 0;
+			if (w == this.used.length - 1 && (this.numBlocks & 63) != 0)
+				word &= ~(-1L << (this.numBlocks & 63));
+			dest[i] = (byte) (word >>> ((b & 7) << 3));
+		}
+	}
+
+	// blocks in use; the bits past the end of the disk are not counted
+	public synchronized int countUsed()
+	{
+		int count = 0;
+		for (long word : this.used)
+			count += Long.bitCount(word);
+		if ((this.numBlocks & 63) != 0)
+			count -= 64 - (this.numBlocks & 63);
+		return count;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public synchronized boolean isUsed(int blockIndex)
+	{
+		return (this.used[blockIndex >>> 6] & (1L << blockIndex)) != 0;
+	}
+
+	public synchronized void set(int blockIndex)
+	{
+		int w = blockIndex >>> 6;
+		this.used[w] |= 1L << blockIndex;
+		if (this.used[w] == -1L)
+			this.markFull(0, w);
+		this.changedSinceIndexBuilt = true;
+	}
+
+	public synchronized void set(int fromIndex, int toIndex)
+	{
+		for (int i = fromIndex; i < toIndex; i++)
+			this.set(i);
+	}
+
+	public synchronized void clear(int blockIndex)
+	{
+		int w = blockIndex >>> 6;
+		boolean wasFull = this.used[w] == -1L;
+		this.used[w] &= ~(1L << blockIndex);
+		if (wasFull)
+			this.markNotFull(0, w);
+		this.freedSinceIndexBuilt++;
+		this.changedSinceIndexBuilt = true;
+	}
+
+	public synchronized void clear(int fromIndex, int toIndex)
+	{
+		for (int i = fromIndex; i < toIndex; i++)
+			this.clear(i);
+	}
+
+	// next free block at or after fromIndex, -1 if there is none up to the end of the disk
+	public synchronized int nextFree(int fromIndex)
+	{
+		if (fromIndex >= this.numBlocks)
+			return -1;
+		fromIndex = Math.max(fromIndex, 0);
+		int w = fromIndex >>> 6;
+		long free = ~this.used[w] & (-1L << fromIndex);
+		if (free == 0)
+		{
+			w = this.nextSet(1, w + 1);
+			if (w < 0)
+				return -1;
+			free = ~this.used[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(free);
+	}
+
+	// allocates one block, preferring the first free block at or after hint (-1: continue after the last
+	// allocation); returns -1 if the disk is full
+	public synchronized int allocate(int hint)
+	{
+		int from = hint >= this.firstDataBlock ? hint : this.cursor;
+		int blockIndex = this.nextFree(from);
+		if (blockIndex < 0)
+			blockIndex = this.nextFree(this.firstDataBlock); // wrap around
+		if (blockIndex < 0)
+			return -1;
+		this.set(blockIndex);
+		this.cursor = blockIndex + 1;
+		return blockIndex;
+	}
+
+	// allocates count contiguous blocks, at hint if that run is free, otherwise from the free-extent index;
+	// returns the first block of the run, or -1 if no free run of that length exists
+	public synchronized int allocateExtent(int hint, int count)
+	{
+		if (count <= 0)
+			return -1;
+		if (count == 1)
+			return this.allocate(hint);
+
+		int start = -1;
+		if (hint >= this.firstDataBlock && this.isRunFree(hint, count))
+			start = hint;
+		if (start < 0)
+			start = this.takeFromExtentIndex(count);
+		if (start < 0)
+			return -1;
+		this.set(start, start + count);
+		this.cursor = start + count;
+		return start;
+	}
+
+	// length of the free run starting at blockIndex, looking at most max blocks ahead
+	public synchronized int freeRunLength(int blockIndex, int max)
+	{
+		if (blockIndex < 0 || blockIndex >= this.numBlocks || this.isUsed(blockIndex))
+			return 0;
+		return this.nextUsed(blockIndex, (int) Math.min((long) blockIndex + max, this.numBlocks)) - blockIndex;
+	}
+
+	private boolean isRunFree(int start, int count)
+	{
+		if (start < this.firstDataBlock || start + count > this.numBlocks)
+			return false;
+		for (int i = start; i < start + count; )
+		{
+			int w = i >>> 6;
+			int end = Math.min(start + count, (w + 1) << 6);
+			long mask = (end - i == 64 ? -1L : ((1L << (end - i)) - 1)) << i;
+			if ((this.used[w] & mask) != 0)
+				return false;
+			i = end;
+		}
+		return true;
+	}
+
+	private int takeFromExtentIndex(int count)
+	{
+		if (this.extentStarts == null || this.freedSinceIndexBuilt > this.numBlocks / 64)
+			this.buildExtentIndex();
+		int start = this.searchExtentIndex(count);
+		if (start < 0 && this.changedSinceIndexBuilt)
+		{
+			this.buildExtentIndex(); // runs freed or split since the last build may be long enough
+			start = this.searchExtentIndex(count);
+		}
+		return start;
+	}
+
+	private int searchExtentIndex(int count)
+	{
+		for (int k = sizeClass(count); k < this.extentStarts.length; k++)
+		{
+			int[] starts = this.extentStarts[k];
+			for (int i = this.extentCounts[k] - 1; i >= 0; i--)
+			{
+				int start = starts[i];
+				int length = this.freeRunLength(start, 1 << (k + 1)); // entries may be stale
+				if (length >= count)
+				{
+					// the rest of the run goes back into the index under its new size
+					starts[i] = starts[--this.extentCounts[k]];
+					if (length > count)
+						this.addExtent(start + count, length - count);
+					return start;
+				}
+				if (sizeClass(Math.max(length, 1)) != k || length == 0)
+				{
+					starts[i] = starts[--this.extentCounts[k]];
+					if (length > 0)
+						this.addExtent(start, length);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void buildExtentIndex()
+	{
+		this.extentStarts = new int[sizeClass(Math.max(this.numBlocks, 1)) + 1][];
+		this.extentCounts = new int[this.extentStarts.length];
+		for (int k = 0; k < this.extentStarts.length; k++)
+			this.extentStarts[k] = new int[4];
+		int i = this.nextFree(this.firstDataBlock);
+		while (i >= 0)
+		{
+			int end = this.nextUsed(i);
+			this.addExtent(i, end - i);
+			i = this.nextFree(end);
+		}
+		this.freedSinceIndexBuilt = 0;
+		this.changedSinceIndexBuilt = false;
+	}
+
+	private void addExtent(int start, int length)
+	{
+		int k = sizeClass(length);
+		if (this.extentCounts[k] == this.extentStarts[k].length)
+			this.extentStarts[k] = Arrays.copyOf(this.extentStarts[k], this.extentStarts[k].length * 2);
+		this.extentStarts[k][this.extentCounts[k]++] = start;
+	}
+
+	// first used block at or after fromIndex, numBlocks if the rest of the disk is free
+	private int nextUsed(int fromIndex)
+	{
+		return this.nextUsed(fromIndex, this.numBlocks);
+	}
+
+	// first used block at or after fromIndex and below limit, limit if there is none; a word at a time
+	private int nextUsed(int fromIndex, int limit)
+	{
+		for (int w = fromIndex >>> 6; w < this.used.length && w << 6 < limit; w++)
+		{
+			long bits = this.used[w] & (w == fromIndex >>> 6 ? -1L << fromIndex : -1L);
+			if (bits != 0)
+				return Math.min((w << 6) + Long.numberOfTrailingZeros(bits), limit);
+		}
+		return limit;
+	}
+
+	private static int sizeClass(int length)
+	{
+		return 31 - Integer.numberOfLeadingZeros(length);
+	}
+
+	// hierarchy maintenance: bit i of level k >= 1 is set when word i of level k - 1 has a free bit
+
+	private long[] level(int k)
+	{
+		return k == 0 ? this.used : this.summary[k - 1];
+	}
+
+	private void rebuildSummary()
+	{
+		int levels = 0;
+		for (int words = this.used.length; words > 1; words = (words + 63) >>> 6)
+			levels++;
+		this.summary = new long[levels][];
+		int below = this.used.length;
+		for (int k = 1; k <= levels; k++)
+		{
+			long[] level = new long[(below + 63) >>> 6];
+			long[] lower = this.level(k - 1);
+			for (int i = 0; i < below; i++)
+			{
+				boolean hasFree = k == 1 ? lower[i] != -1L : lower[i] != 0;
+				if (hasFree)
+					level[i >>> 6] |= 1L << i;
+			}
+			this.summary[k - 1] = level;
+			below = level.length;
+		}
+	}
+
+	// word w of level k has no free bit left
+	private void markFull(int k, int w)
+	{
+		while (k < this.summary.length)
+		{
+			long[] up = this.summary[k];
+			up[w >>> 6] &= ~(1L << w);
+			if (up[w >>> 6] != 0)
+				return;
+			w >>>= 6;
+			k++;
+		}
+	}
+
+	// word w of level k has a free bit again
+	private void markNotFull(int k, int w)
+	{
+		while (k < this.summary.length)
+		{
+			long[] up = this.summary[k];
+			boolean wasEmpty = up[w >>> 6] == 0;
+			up[w >>> 6] |= 1L << w;
+			if (!wasEmpty)
+				return;
+			w >>>= 6;
+			k++;
+		}
+	}
+
+	// smallest i >= from with bit i set in level k (k >= 1), -1 if none; level k - 1 word i then has a free bit
+	private int nextSet(int k, int from)
+	{
+		if (k > this.summary.length)
+		{
+			// above the top level: the top level is a single word or the bitmap itself
+			return -1;
+		}
+		long[] level = this.summary[k - 1];
+		int w = from >>> 6;
+		if (w >= level.length)
+			return -1;
+		long bits = level[w] & (-1L << from);
+		if (bits == 0)
+		{
+			if (k == this.summary.length)
+			{
+				for (w = w + 1; w < level.length && level[w] == 0; w++)
+					;
+				if (w >= level.length)
+					return -1;
+			}
+			else
+			{
+				w = this.nextSet(k + 1, w + 1);
+				if (w < 0)
+					return -1;
+			}
+			bits = level[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(bits);
+	}
+}
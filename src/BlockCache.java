@@ -0,0 +1,570 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// block buffer cache shared by every open file, the directory and the indirect blocks
+//
+// frames are replaced with a generalized CLOCK: each hit raises a frame's usage count (up to MAX_USAGE) and
+// the clock hand lowers it, so blocks that are touched constantly, such as directory and indirect blocks,
+// survive several sweeps while blocks read once by a scan are evicted on the next one. Frames carry a dirty
+// bit and a pin count: only dirty frames are written back, and pinned frames are never evicted.
+//
+// the cache is shared between threads. A hit takes no lock: the block's frame is looked up and pinned with a
+// compare-and-set on its pin count, and the frame is checked to still hold the block once pinned. Frames are
+// only given to other blocks under the cache's monitor, after their pin count has been set from 0 to -1, which
+// keeps out pins taken without it. A miss claims a frame under the monitor and marks it loading, and reads
+// the block into it, or writes back the dirty block it evicts, without the monitor; threads that want a block
+// being loaded wait for it. The data of a pinned frame is copied outside the monitor as well, so transfers on
+// different blocks run in parallel. Callers keep concurrent writers of the same block apart (the file system
+// does so with its descriptor locks).
+public class BlockCache {
+
+	public static final int DEFAULT_CAPACITY = 1024; // frames
+	public static final int MIN_CAPACITY = 8;
+	private static final int MAX_USAGE = 3;
+	private static final int MAX_RUN_BYTES = 64 * 1024; // largest run of adjacent blocks flush writes at once
+
+	private final LDisk disk;
+	private final int blockLength;
+	private final byte[][] frames;
+	private final AtomicIntegerArray frameBlock; // block held by each frame, -1 if the frame is free
+	private final int[] usage; // raised by hits without the monitor, so an approximation
+	private final AtomicIntegerArray pinCount; // -1 while the frame is being given to another block
+	private final AtomicIntegerArray dirty; // 1 if dirty
+	private final AtomicIntegerArray owner; // descriptor whose file data last dirtied each frame, -1 for none
+	// 1 if loaded by read-ahead and not pinned since, and if being loaded by the thread that claimed it, which
+	// holds it pinned; both are set before the pin count that publishes the frame. The loader clears loading
+	// after filling the frame, and a hit checks it after pinning, so the volatile store and load order the
+	// frame's bytes before the hit's copy
+	private final AtomicIntegerArray prefetched;
+	private final AtomicIntegerArray loading;
+	// being written back by an eviction without the monitor, which holds it pinned; guarded by the monitor.
+	// Flushes write such frames back as well, so they never return before a write that is still going on
+	private final boolean[] evicting;
+	private final AtomicIntegerArray blockFrame; // frame holding each disk block, -1 if not cached
+	private int numUsedFrames;
+	private final AtomicInteger numDirtyFrames = new AtomicInteger();
+	private int hand;
+	// threads in the monitor looking for a frame, or waiting for one to be unpinned or loaded; counted before
+	// they look, so that an unpin outside the monitor either is seen by them or sees them and wakes them up
+	private volatile int numWaiters;
+	private final int[] flushOrder; // dirty blocks in the order flush writes them
+	private final byte[] run; // adjacent dirty blocks being written by flush
+	private volatile Journal journal; // consulted before a block is written back, if the disk has a journal
+	private volatile FileSystemMetrics metrics; // counts hits, misses and write-backs, if set
+
+	public BlockCache(LDisk disk, int capacity)
+	{
+		int numBlocks = disk.getDevice().getNumBlocks();
+		capacity = Math.max(MIN_CAPACITY, Math.min(capacity, numBlocks));
+		this.disk = disk;
+		this.blockLength = disk.getDevice().getBlockLength();
+		this.frames = new byte[capacity][this.blockLength];
+		this.frameBlock = new AtomicIntegerArray(capacity);
+		this.usage = new int[capacity];
+		this.pinCount = new AtomicIntegerArray(capacity);
+		this.dirty = new AtomicIntegerArray(capacity);
+		this.owner = new AtomicIntegerArray(capacity);
+		this.prefetched = new AtomicIntegerArray(capacity);
+		this.loading = new AtomicIntegerArray(capacity);
+		this.evicting = new boolean[capacity];
+		this.blockFrame = new AtomicIntegerArray(numBlocks);
+		this.flushOrder = new int[capacity];
+		this.run = new byte[Math.max(1, MAX_RUN_BYTES / this.blockLength) * this.blockLength];
+		for (int i = 0; i < capacity; i++)
+		{
+			this.frameBlock.set(i, -1);
+			this.owner.set(i, -1);
+		}
+		for (int i = 0; i < numBlocks; i++)
+			this.blockFrame.set(i, -1);
+	}
+
+	void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	void setMetrics(FileSystemMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getCapacity() {
+		return this.frames.length;
+	}
+
+	public int getNumDirtyFrames() {
+		return this.numDirtyFrames.get();
+	}
+
+	// pins the block in a frame and returns the frame; with load unset a block that is not cached is not
+	// read from disk but zero-filled, for callers that are about to overwrite all of it
+	int pin(int blockIndex, boolean load)
+	{
+		int frame = this.blockFrame.get(blockIndex);
+		FileSystemMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.cacheAccess(frame >= 0);
+		if (frame >= 0 && this.tryPin(frame, blockIndex))
+			return frame;
+		return this.pinMiss(blockIndex, load);
+	}
+
+	// pins frame, without the monitor, if it holds blockIndex and is loaded
+	private boolean tryPin(int frame, int blockIndex)
+	{
+		int pins;
+		do {
+			pins = this.pinCount.get(frame);
+			if (pins < 0)
+				return false; // being given to another block
+		} while (!this.pinCount.compareAndSet(frame, pins, pins + 1));
+		if (this.frameBlock.get(frame) != blockIndex || this.loading.get(frame) != 0)
+		{
+			this.unpin(frame, false);
+			return false;
+		}
+		this.touch(frame);
+		return true;
+	}
+
+	private void touch(int frame)
+	{
+		if (this.prefetched.compareAndSet(frame, 1, 0)) // counted by one of the hits racing for it
+		{
+			FileSystemMetrics metrics = this.metrics;
+			if (metrics != null)
+				metrics.readAheadHit();
+		}
+		if (this.usage[frame] < MAX_USAGE)
+			this.usage[frame]++;
+	}
+
+	// the block was not cached, or is being loaded: claims a frame for it under the monitor and loads it
+	// without, or waits for the thread loading it. Evicting a dirty block first writes it back, also without the
+	// monitor, and then looks again
+	private int pinMiss(int blockIndex, boolean load)
+	{
+		while (true)
+		{
+			int frame;
+			synchronized (this)
+			{
+				this.numWaiters++;
+				try {
+					while (true)
+					{
+						frame = this.blockFrame.get(blockIndex);
+						if (frame >= 0)
+						{
+							if (this.loading.get(frame) == 0) // mapped frames are not being given away while we hold the monitor
+							{
+								this.pinCount.incrementAndGet(frame);
+								this.touch(frame);
+								return frame;
+							}
+						}
+						else
+						{
+							frame = this.getFreeFrame(false);
+							if (frame >= 0)
+							{
+								this.loading.set(frame, 1);
+								this.frameBlock.set(frame, blockIndex);
+								this.blockFrame.set(blockIndex, frame);
+								this.usage[frame] = 0;
+								this.pinCount.set(frame, 1);
+								break;
+							}
+							if (frame < -1)
+								break; // a dirty frame to write back
+						}
+						// the block is being loaded, or every frame is pinned by another thread; wait for a frame
+						// to be released, by which time the block may have been cached by someone else
+						this.awaitUnpin();
+					}
+				} finally {
+					this.numWaiters--;
+				}
+			}
+			if (frame < -1)
+			{
+				frame = -2 - frame;
+				try {
+					this.writeBack(frame);
+				} finally {
+					synchronized (this)
+					{
+						this.evicting[frame] = false;
+					}
+					this.unpin(frame, false);
+				}
+				continue;
+			}
+			this.load(frame, blockIndex, load);
+			return frame;
+		}
+	}
+
+	// fills a frame claimed by pinMiss, which holds it pinned, and publishes it
+	private void load(int frame, int blockIndex, boolean load)
+	{
+		boolean loaded = false;
+		try {
+			if (load)
+				this.disk.readBlock(blockIndex, this.frames[frame]);
+			else
+				Arrays.fill(this.frames[frame], (byte) 0);
+			loaded = true;
+		} finally {
+			synchronized (this)
+			{
+				if (!loaded)
+				{
+					this.releaseFrame(frame); // nobody has seen what is in it
+					this.pinCount.decrementAndGet(frame);
+				}
+				this.loading.set(frame, 0); // once filled, or unmapped, so no hit pins a frame left unread
+				if (this.numWaiters > 0)
+					this.notifyAll();
+			}
+		}
+	}
+
+	void unpin(int frame, boolean dirtied)
+	{
+		if (dirtied)
+			this.markDirty(frame);
+		if (this.pinCount.decrementAndGet(frame) == 0 && this.numWaiters > 0)
+		{
+			synchronized (this)
+			{
+				this.notifyAll();
+			}
+		}
+	}
+
+	// the caller holds the monitor and has counted itself in numWaiters
+	private void awaitUnpin()
+	{
+		try {
+			this.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a cache frame", e);
+		}
+	}
+
+	byte[] frameData(int frame)
+	{
+		return this.frames[frame];
+	}
+
+	void markDirty(int frame)
+	{
+		if (this.dirty.compareAndSet(frame, 0, 1))
+			this.numDirtyFrames.incrementAndGet();
+	}
+
+	// returns whether the frame was dirty
+	private boolean clearDirty(int frame)
+	{
+		if (!this.dirty.compareAndSet(frame, 1, 0))
+			return false;
+		this.numDirtyFrames.decrementAndGet();
+		return true;
+	}
+
+	public void read(int blockIndex, int blockOffset, byte[] dest, int destOffset, int length)
+	{
+		int frame = this.pin(blockIndex, true);
+		System.arraycopy(this.frames[frame], blockOffset, dest, destOffset, length);
+		this.unpin(frame, false);
+	}
+
+	public void read(int blockIndex, int blockOffset, ByteBuffer dest, int length)
+	{
+		int frame = this.pin(blockIndex, true);
+		dest.put(this.frames[frame], blockOffset, length);
+		this.unpin(frame, false);
+	}
+
+	public void write(int blockIndex, int blockOffset, byte[] src, int srcOffset, int length)
+	{
+		this.write(blockIndex, blockOffset, src, srcOffset, length, -1);
+	}
+
+	public void write(int blockIndex, int blockOffset, ByteBuffer src, int length)
+	{
+		this.write(blockIndex, blockOffset, src, length, -1);
+	}
+
+	// writes of file data name the file's descriptor as the owner, whose dirty blocks flushOwner writes back
+	void write(int blockIndex, int blockOffset, byte[] src, int srcOffset, int length, int owner)
+	{
+		int frame = this.pin(blockIndex, length < this.blockLength); // whole block writes need no read
+		System.arraycopy(src, srcOffset, this.frames[frame], blockOffset, length);
+		this.owner.set(frame, owner);
+		this.unpin(frame, true);
+	}
+
+	void write(int blockIndex, int blockOffset, ByteBuffer src, int length, int owner)
+	{
+		int frame = this.pin(blockIndex, length < this.blockLength);
+		src.get(this.frames[frame], blockOffset, length);
+		this.owner.set(frame, owner);
+		this.unpin(frame, true);
+	}
+
+	// like write, to a block none of whose bytes belong to its file yet: the rest of it is zeroed rather than read
+	// from disk, where it holds whatever it last held
+	void writeFresh(int blockIndex, int blockOffset, ByteBuffer src, int length, int owner)
+	{
+		int frame = this.pin(blockIndex, false);
+		byte[] data = this.frames[frame];
+		Arrays.fill(data, 0, blockOffset, (byte) 0);
+		src.get(data, blockOffset, length);
+		Arrays.fill(data, blockOffset + length, this.blockLength, (byte) 0);
+		this.owner.set(frame, owner);
+		this.unpin(frame, true);
+	}
+
+	// caches a newly allocated block filled with value without reading it from disk
+	public void fill(int blockIndex, byte value)
+	{
+		int frame = this.pin(blockIndex, false);
+		Arrays.fill(this.frames[frame], value);
+		this.unpin(frame, true);
+	}
+
+	// loads the blocks from blockIndex up to the first one already cached, at most count, ahead of a reader, as
+	// many as there are clean frames to evict without waiting. They come from the disk in one transfer. The
+	// frames are claimed and pinned under the cache's lock but read into without it, so readers of other blocks
+	// are not held up by the disk; one that wants a block being loaded waits in pin until it is there
+	public void prefetch(int blockIndex, int count)
+	{
+		this.prefetch(blockIndex, count, new int[count], new byte[count * this.blockLength]);
+	}
+
+	// the same with the caller's buffers, which loaders reuse from run to run: claimed for the frames of at least
+	// count blocks, run for their data
+	void prefetch(int blockIndex, int count, int[] claimed, byte[] run)
+	{
+		int numClaimed = 0;
+		synchronized (this)
+		{
+			while (numClaimed < count && this.blockFrame.get(blockIndex + numClaimed) < 0)
+			{
+				int frame = this.getFreeFrame(true);
+				if (frame < 0)
+					break;
+				this.loading.set(frame, 1);
+				this.frameBlock.set(frame, blockIndex + numClaimed);
+				this.blockFrame.set(blockIndex + numClaimed, frame);
+				this.usage[frame] = 1; // survives one sweep of the clock before the reader gets to it
+				this.pinCount.set(frame, 1);
+				claimed[numClaimed++] = frame;
+			}
+		}
+		if (numClaimed == 0)
+			return;
+		boolean loaded = false;
+		try {
+			if (numClaimed == 1)
+				this.disk.readBlock(blockIndex, this.frames[claimed[0]]);
+			else
+			{
+				this.disk.readBlocks(blockIndex, numClaimed, run, 0);
+				for (int i = 0; i < numClaimed; i++)
+					System.arraycopy(run, i * this.blockLength, this.frames[claimed[i]], 0, this.blockLength);
+			}
+			loaded = true;
+		} finally {
+			synchronized (this)
+			{
+				for (int i = 0; i < numClaimed; i++)
+				{
+					int frame = claimed[i];
+					if (loaded)
+						this.prefetched.set(frame, 1);
+					else
+						this.releaseFrame(frame); // nobody has seen what is in it
+					this.loading.set(frame, 0);
+					this.pinCount.decrementAndGet(frame);
+				}
+				FileSystemMetrics metrics = this.metrics;
+				if (loaded && metrics != null)
+					metrics.readAheadLoaded(numClaimed);
+				if (this.numWaiters > 0)
+					this.notifyAll();
+			}
+		}
+	}
+
+	// drops a freed block without writing it back
+	public synchronized void invalidate(int blockIndex)
+	{
+		int frame = this.blockFrame.get(blockIndex);
+		if (frame < 0 || !this.pinCount.compareAndSet(frame, 0, -1))
+			return;
+		this.releaseFrame(frame);
+		this.pinCount.set(frame, 0);
+	}
+
+	// writes every dirty frame back to disk; frames stay cached and become clean. Blocks are written in block
+	// order, and runs of adjacent blocks go to the disk in one transfer
+	public synchronized void flush()
+	{
+		int count = 0;
+		for (int frame = 0; frame < this.frames.length; frame++)
+		{
+			if (this.needsWriteBack(frame))
+				this.flushOrder[count++] = this.frameBlock.get(frame);
+		}
+		this.writeBackInOrder(count);
+	}
+
+	// writes back the dirty blocks last written as file data of the descriptor, the same way as flush; the work
+	// is bounded by the number of frames, not by the length of the file. The caller keeps writers of the file out
+	synchronized void flushOwner(int owner)
+	{
+		int count = 0;
+		for (int frame = 0; frame < this.frames.length; frame++)
+		{
+			if (this.owner.get(frame) == owner && this.frameBlock.get(frame) >= 0 && this.needsWriteBack(frame))
+				this.flushOrder[count++] = this.frameBlock.get(frame);
+		}
+		this.writeBackInOrder(count);
+	}
+
+	// writes back the blocks of flushOrder[0], ..., flushOrder[count - 1], cached and dirty. Frames are not given
+	// to other blocks while the caller holds the monitor
+	private void writeBackInOrder(int count)
+	{
+		Arrays.sort(this.flushOrder, 0, count);
+		int maxRun = this.run.length / this.blockLength;
+		for (int i = 0; i < count; )
+		{
+			int length = 1;
+			while (i + length < count && length < maxRun && this.flushOrder[i + length] == this.flushOrder[i] + length)
+				length++;
+			if (length == 1)
+				this.writeBack(this.blockFrame.get(this.flushOrder[i]));
+			else
+				this.writeBackRun(i, length);
+			i += length;
+		}
+	}
+
+	// writes back the frames of flushOrder[first], ..., flushOrder[first + length - 1], adjacent blocks; a commit
+	// the journal makes before one of them goes home may already have written back some of the others
+	private void writeBackRun(int first, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			int frame = this.blockFrame.get(this.flushOrder[first + i]);
+			if (this.journal != null)
+				this.journal.beforeWriteBack(this, this.frameBlock.get(frame));
+			this.clearDirty(frame); // before the copy, as in writeBack
+			System.arraycopy(this.frames[frame], 0, this.run, i * this.blockLength, this.blockLength);
+		}
+		this.disk.writeBlocks(this.flushOrder[first], length, this.run, 0);
+		FileSystemMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.writtenBack(length);
+	}
+
+	public synchronized void flushBlock(int blockIndex)
+	{
+		int frame = this.blockFrame.get(blockIndex);
+		if (frame >= 0)
+			this.writeBack(frame);
+	}
+
+	private boolean needsWriteBack(int frame)
+	{
+		return this.dirty.get(frame) != 0 || this.evicting[frame];
+	}
+
+	// writes the frame back if it is dirty, or if an eviction is writing it back; the caller either holds the
+	// monitor or holds the frame pinned, so the frame keeps its block
+	private void writeBack(int frame)
+	{
+		if (!this.needsWriteBack(frame))
+			return;
+		if (this.journal != null) // a block goes home only after the log records of its changes
+			this.journal.beforeWriteBack(this, this.frameBlock.get(frame));
+		// cleared before the write: a write copied in meanwhile dirties the frame again
+		if (!this.clearDirty(frame) && !this.evicting[frame]) // written back by the journal's commit meanwhile
+			return;
+		this.disk.writeBlock(this.frameBlock.get(frame), this.frames[frame]);
+		FileSystemMetrics metrics = this.metrics;
+		if (metrics != null)
+			metrics.writtenBack(1);
+	}
+
+	// returns a frame to load a block into, evicting the least used unpinned block, with its pin count set to -1;
+	// -1 if all frames are pinned. The least used block may be dirty: unless cleanOnly is set, its frame is then
+	// pinned and returned as -2 - frame, for the caller to write it back without the monitor and look again;
+	// with cleanOnly set dirty blocks are passed over
+	private int getFreeFrame(boolean cleanOnly)
+	{
+		if (this.numUsedFrames < this.frames.length)
+		{
+			this.pinCount.set(this.numUsedFrames, -1);
+			return this.numUsedFrames++; // frames are handed out in order until the cache is full
+		}
+
+		// clock sweep; every frame is visited at most MAX_USAGE + 1 times before a victim must be found
+		for (int steps = 0; steps <= (MAX_USAGE + 1) * this.frames.length; steps++)
+		{
+			int frame = this.hand;
+			this.hand = (this.hand + 1) % this.frames.length;
+			if (this.pinCount.get(frame) != 0)
+				continue;
+			if (this.frameBlock.get(frame) >= 0 && this.usage[frame] > 0)
+			{
+				this.usage[frame]--;
+				continue;
+			}
+			if (cleanOnly && this.dirty.get(frame) != 0)
+				continue;
+			if (!this.pinCount.compareAndSet(frame, 0, -1))
+				continue; // pinned by a hit meanwhile
+			if (this.frameBlock.get(frame) < 0)
+				return frame;
+			// a writer marks the frame dirty before it unpins it, so this sees every write
+			if (this.dirty.get(frame) != 0)
+			{
+				if (cleanOnly)
+				{
+					this.pinCount.set(frame, 0);
+					continue;
+				}
+				this.pinCount.set(frame, 1);
+				this.evicting[frame] = true;
+				return -2 - frame;
+			}
+			this.releaseFrame(frame);
+			return frame;
+		}
+		return -1; // all frames are pinned
+	}
+
+	private void releaseFrame(int frame)
+	{
+		this.clearDirty(frame);
+		if (this.prefetched.getAndSet(frame, 0) != 0)
+		{
+			FileSystemMetrics metrics = this.metrics;
+			if (metrics != null)
+				metrics.readAheadWasted();
+		}
+		this.blockFrame.set(this.frameBlock.get(frame), -1);
+		this.frameBlock.set(frame, -1);
+		this.owner.set(frame, -1);
+		this.usage[frame] = 0;
+	}
+}
@@ -0,0 +1,45 @@
+package filesystem;
+
+import java.io.IOException;
+
+public interface BlockDevice {
+
+	int getNumBlocks();
+
+	int getBlockLength();
+
+	// copies block index into p starting at offset
+	void readBlock(int index, byte[] p, int offset);
+
+	// copies block length bytes of p starting at offset into block index
+	void writeBlock(int index, byte[] p, int offset);
+
+	// count adjacent blocks from index on, to or from consecutive block-sized slices of p; devices that can move
+	// them in one transfer override these
+	default void readBlocks(int index, int count, byte[] p, int offset)
+	{
+		for (int i = 0; i < count; i++)
+			this.readBlock(index + i, p, offset + i * this.getBlockLength());
+	}
+
+	default void writeBlocks(int index, int count, byte[] p, int offset)
+	{
+		for (int i = 0; i < count; i++)
+			this.writeBlock(index + i, p, offset + i * this.getBlockLength());
+	}
+
+	default void readBlock(int index, byte[] p)
+	{
+		this.readBlock(index, p, 0);
+	}
+
+	default void writeBlock(int index, byte[] p)
+	{
+		this.writeBlock(index, p, 0);
+	}
+
+	// pushes written blocks to stable storage; no-op for volatile devices
+	void flush() throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,468 @@
+package filesystem;
+
+import java.util.Arrays;
+
+// maps the logical blocks of a file to disk blocks through the direct disk map of its descriptor and
+// its single, double and triple indirect blocks; an indirect block holds blockLength / 4 block indexes,
+// with -1 marking an unallocated entry
+//
+// one BlockMap is kept per open file; resolved block indexes are cached, and resolving a block through an
+// indirect block caches every entry of that indirect block, so sequential access reads each indirect block
+// once instead of walking the tree for every data block. Methods are synchronized, as the directory map is used
+// by concurrent readers of the directory. An oft entry keeps its map and resets it for the next file opened in it.
+class BlockMap {
+
+	private static final int UNKNOWN = -2;
+
+	private final DiskGeometry geometry;
+	private final BlockCache cache;
+	private final DiskHeader header;
+	private int descriptorIndex;
+	private boolean directory; // the file is a directory: its new blocks are metadata
+	private final int pointersPerBlock;
+	private int[] resolved; // cached disk block index per logical block, UNKNOWN if not resolved
+	private int allocationHint = -1; // where the allocator should look for the next block of this file
+	private int extentNext, extentEnd; // blocks of a run taken by reserve, still to be placed in the map
+	// logical blocks up to which this map allocated ahead of appends and reserve was asked for, which trim goes by
+	private int aheadEnd, reservedEnd;
+	private byte[] table; // indirect block being walked; allocated on first use
+	private byte[][] levelTables; // indirect block being freed from at each level; allocated on first use
+
+	BlockMap(DiskGeometry geometry, BlockCache cache, DiskHeader header, int descriptorIndex)
+	{
+		this.geometry = geometry;
+		this.cache = cache;
+		this.header = header;
+		this.descriptorIndex = descriptorIndex;
+		this.directory = descriptorIndex == 0;
+		this.pointersPerBlock = geometry.getPointersPerBlock();
+		this.resolved = new int[geometry.getDiskMapSize()];
+		Arrays.fill(this.resolved, UNKNOWN);
+	}
+
+	int getDescriptorIndex() {
+		return descriptorIndex;
+	}
+
+	// makes this the map of another file
+	synchronized void reset(int descriptorIndex)
+	{
+		this.reset(descriptorIndex, descriptorIndex == 0);
+	}
+
+	synchronized void reset(int descriptorIndex, boolean directory)
+	{
+		this.descriptorIndex = descriptorIndex;
+		this.directory = directory;
+		this.allocationHint = -1;
+		this.aheadEnd = 0;
+		this.reservedEnd = 0;
+		if (this.resolved.length > this.geometry.getDiskMapSize())
+			this.resolved = new int[this.geometry.getDiskMapSize()];
+		Arrays.fill(this.resolved, UNKNOWN);
+	}
+
+	// returns the disk block holding logical block logicalBlock of the file, -1 if it is not allocated
+	synchronized int lookup(int logicalBlock)
+	{
+		return this.resolve(logicalBlock, false);
+	}
+
+	// like lookup but allocates the data block (and any missing indirect blocks) if needed;
+	// returns -1 if the disk is full or the block is past the largest file size
+	synchronized int allocate(int logicalBlock)
+	{
+		int blockIndex = this.resolve(logicalBlock, false);
+		if (blockIndex >= 0)
+			return blockIndex;
+		// place the new block right after the file's previous block so sequential files stay contiguous
+		int previous = logicalBlock > 0 ? this.resolve(logicalBlock - 1, false) : -1;
+		this.allocationHint = previous >= 0 ? previous + 1 : -1;
+		return this.resolve(logicalBlock, true);
+	}
+
+	// allocates the missing blocks among count logical blocks from firstLogicalBlock on, in runs of adjacent disk
+	// blocks as long as the free space has, the first after the file's previous block if possible. Blocks past the
+	// end of the file are not set up in the cache: the write that first reaches one of them does. Blocks filling a
+	// hole are zeroed, and go to disk before the map entry that makes them part of the file (ordered mode).
+	// ahead: the blocks are taken for appends to come, up to the first block the file already has, and the ones
+	// the file does not grow into are given back by trim. Returns the number of blocks allocated, -1 if the disk
+	// filled up first
+	synchronized int reserve(int firstLogicalBlock, int count, boolean ahead)
+	{
+		int end = (int) Math.min((long) firstLogicalBlock + count, this.getMaxBlocks());
+		int reserved = 0;
+		for (int i = firstLogicalBlock; i < end; )
+		{
+			int run = 0;
+			while (i + run < end && this.resolve(i + run, false) < 0)
+				run++;
+			if (run == 0)
+			{
+				if (ahead)
+					break;
+				i++;
+				continue;
+			}
+			int previous = i > 0 ? this.resolve(i - 1, false) : -1;
+			int length = run;
+			int start;
+			while ((start = this.header.allocateDataExtent(previous >= 0 ? previous + 1 : -1, length)) < 0 && length > 1)
+				length = (length + 1) / 2;
+			if (start < 0) // disk is full
+				return -1;
+			this.extentNext = start;
+			this.extentEnd = start + length;
+			try {
+				int fileLength = this.header.getLen(this.descriptorIndex);
+				Journal journal = this.header.getJournal();
+				for (int k = 0; k < length; k++, i++)
+				{
+					int blockIndex = this.resolve(i, true);
+					if (blockIndex < 0) // no room for an indirect block
+						return -1;
+					if ((long) i * this.geometry.getBlockLength() < fileLength)
+					{
+						this.cache.fill(blockIndex, (byte) 0);
+						if (journal != null)
+							journal.addOrderedBlock(blockIndex);
+					}
+					reserved++;
+					if (ahead)
+						this.aheadEnd = Math.max(this.aheadEnd, i + 1);
+				}
+			} finally {
+				if (this.extentNext < this.extentEnd)
+					this.header.clearBit(this.extentNext, this.extentEnd);
+				this.extentNext = this.extentEnd = 0;
+			}
+		}
+		if (!ahead)
+			this.reservedEnd = Math.max(this.reservedEnd, end);
+		return reserved;
+	}
+
+	// frees the blocks this map allocated ahead of appends from firstLogicalBlock on, those reserve was asked for
+	// aside; returns the number of blocks freed
+	synchronized int trim(int firstLogicalBlock)
+	{
+		int from = Math.max(firstLogicalBlock, this.reservedEnd);
+		int freed = from < this.aheadEnd ? this.freeRange(from, this.aheadEnd) : 0;
+		this.aheadEnd = 0;
+		return freed;
+	}
+
+	// takes over what other, a map of the same file that is done with it, allocated ahead and reserved
+	synchronized void inherit(BlockMap other)
+	{
+		synchronized (other)
+		{
+			this.aheadEnd = Math.max(this.aheadEnd, other.aheadEnd);
+			this.reservedEnd = Math.max(this.reservedEnd, other.reservedEnd);
+			other.aheadEnd = 0;
+		}
+	}
+
+	// drops cached indexes, e.g. after the file's blocks were freed through another map
+	synchronized void invalidate()
+	{
+		Arrays.fill(this.resolved, UNKNOWN);
+	}
+
+	// frees all data and indirect blocks of the file and clears its disk map
+	synchronized void freeAll()
+	{
+		for (int i = 0; i < this.geometry.getDiskMapSize(); i++)
+			this.freeBlock(this.header.getBlockIndex(this.descriptorIndex, i));
+		for (int level = 1; level <= Descriptor.NUM_INDIRECT_LEVELS; level++)
+			this.freeTree(this.header.getIndirectBlockIndex(this.descriptorIndex, level - 1), level);
+		this.header.clearDiskMap(this.descriptorIndex);
+		this.header.descriptorChanged(this.descriptorIndex);
+		this.invalidate();
+	}
+
+	// frees the blocks mapping logical blocks from up to to, and the indirect blocks that map nothing else, and
+	// clears their entries; the file's length is up to the caller. Returns the number of blocks freed
+	synchronized int freeRange(long from, long to)
+	{
+		if (from >= to)
+			return 0;
+		int freed = 0;
+		int numDirect = this.geometry.getDiskMapSize();
+		boolean changed = false;
+		for (long i = Math.max(from, 0); i < Math.min(to, numDirect); i++)
+		{
+			int blockIndex = this.header.getBlockIndex(this.descriptorIndex, (int) i);
+			if (blockIndex >= 0)
+			{
+				this.header.setBlockIndex(this.descriptorIndex, (int) i, -1);
+				this.freeBlock(blockIndex);
+				freed++;
+				changed = true;
+			}
+		}
+		long base = numDirect;
+		long span = this.pointersPerBlock;
+		for (int level = 1; level <= Descriptor.NUM_INDIRECT_LEVELS && base < to; level++)
+		{
+			int table = this.header.getIndirectBlockIndex(this.descriptorIndex, level - 1);
+			if (table >= 0 && base + span > from)
+			{
+				if (from <= base && base + span <= to)
+				{
+					freed += this.freeTree(table, level);
+					this.header.setIndirectBlockIndex(this.descriptorIndex, level - 1, -1);
+					changed = true;
+				}
+				else
+				{
+					freed += this.freeRange(table, level, Math.max(from - base, 0), Math.min(to - base, span),
+							span / this.pointersPerBlock);
+					if (this.freeIfEmpty(table, level))
+					{
+						freed++;
+						this.header.setIndirectBlockIndex(this.descriptorIndex, level - 1, -1);
+						changed = true;
+					}
+				}
+			}
+			base += span;
+			span *= this.pointersPerBlock;
+		}
+		if (changed)
+			this.header.descriptorChanged(this.descriptorIndex);
+		this.invalidate();
+		return freed;
+	}
+
+	// frees what the level-deep indirect block table maps from from up to to, relative to its first block; an
+	// entry of the table maps divisor blocks. The entries cleared, including those of tables below that were
+	// left empty, are logged and written in one update. The caller frees table itself if it is left empty
+	private int freeRange(int table, int level, long from, long to, long divisor)
+	{
+		byte[] block = this.levelTable(level);
+		this.cache.read(table, 0, block, 0, block.length);
+		int freed = 0;
+		int firstCleared = this.pointersPerBlock;
+		int lastCleared = -1;
+		for (int slot = (int) (from / divisor); slot <= (to - 1) / divisor; slot++)
+		{
+			int next = Codec.getInt(block, slot * FileSystem.INT_SIZE);
+			if (next < 0)
+				continue;
+			long start = slot * divisor;
+			if (from <= start && start + divisor <= to)
+			{
+				freed += this.freeTree(next, level - 1);
+				Codec.putInt(block, slot * FileSystem.INT_SIZE, -1);
+				firstCleared = Math.min(firstCleared, slot);
+				lastCleared = slot;
+			}
+			else
+			{
+				freed += this.freeRange(next, level - 1, Math.max(from - start, 0), Math.min(to - start, divisor),
+						divisor / this.pointersPerBlock);
+				if (level > 1 && this.freeIfEmpty(next, level - 1)) // punches that each cleared part of it
+				{
+					freed++;
+					Codec.putInt(block, slot * FileSystem.INT_SIZE, -1);
+					firstCleared = Math.min(firstCleared, slot);
+					lastCleared = slot;
+				}
+			}
+		}
+		if (lastCleared >= 0)
+		{
+			int offset = firstCleared * FileSystem.INT_SIZE;
+			int length = (lastCleared - firstCleared + 1) * FileSystem.INT_SIZE;
+			Journal journal = this.header.getJournal();
+			if (journal != null)
+				journal.logBlockUpdate(table, offset, block, offset, length);
+			this.cache.write(table, offset, block, offset, length);
+		}
+		return freed;
+	}
+
+	// frees the level-deep indirect block table if none of its entries maps a block; returns whether it did
+	private boolean freeIfEmpty(int table, int level)
+	{
+		byte[] block = this.levelTable(level);
+		this.cache.read(table, 0, block, 0, block.length);
+		for (int i = 0; i < this.pointersPerBlock; i++)
+		{
+			if (Codec.getInt(block, i * FileSystem.INT_SIZE) >= 0)
+				return false;
+		}
+		this.freeBlock(table);
+		return true;
+	}
+
+	// the buffer for an indirect block at level while blocks are freed; one per level, as freeing walks down the
+	// tree with the tables above still being changed
+	private byte[] levelTable(int level)
+	{
+		if (this.levelTables == null)
+			this.levelTables = new byte[Descriptor.NUM_INDIRECT_LEVELS + 1][];
+		if (this.levelTables[level] == null)
+			this.levelTables[level] = new byte[this.geometry.getBlockLength()];
+		return this.levelTables[level];
+	}
+
+	private long getMaxBlocks()
+	{
+		int blockLength = this.geometry.getBlockLength();
+		return ((long) this.geometry.getMaxFileLen() + blockLength - 1) / blockLength;
+	}
+
+	private int resolve(int logicalBlock, boolean allocate)
+	{
+		if (logicalBlock < 0)
+			return -1;
+		if (logicalBlock < this.resolved.length && this.resolved[logicalBlock] >= 0)
+			return this.resolved[logicalBlock];
+
+		int numDirect = this.geometry.getDiskMapSize();
+		if (logicalBlock < numDirect)
+		{
+			int blockIndex = this.header.getBlockIndex(this.descriptorIndex, logicalBlock);
+			if (blockIndex < 0 && allocate)
+			{
+				blockIndex = this.allocateBlock(false);
+				if (blockIndex < 0)
+					return -1;
+				this.header.setBlockIndex(this.descriptorIndex, logicalBlock, blockIndex);
+				this.header.descriptorChanged(this.descriptorIndex);
+			}
+			this.resolved[logicalBlock] = blockIndex < 0 ? UNKNOWN : blockIndex;
+			return blockIndex;
+		}
+
+		long rel = logicalBlock - numDirect;
+		long span = this.pointersPerBlock;
+		for (int level = 1; level <= Descriptor.NUM_INDIRECT_LEVELS; level++)
+		{
+			if (rel < span)
+				return this.resolveIndirect(level, rel, span / this.pointersPerBlock, logicalBlock, allocate);
+			rel -= span;
+			span *= this.pointersPerBlock;
+		}
+		return -1; // past the largest file size
+	}
+
+	// walks the level-deep tree of indirect blocks rooted in the descriptor; rel is the block's index
+	// within that tree and divisor the number of data blocks covered by one entry of the root block
+	private int resolveIndirect(int level, long rel, long divisor, int logicalBlock,
+			boolean allocate)
+	{
+		int table = this.header.getIndirectBlockIndex(this.descriptorIndex, level - 1);
+		if (table < 0)
+		{
+			if (!allocate)
+				return -1;
+			table = this.allocateBlock(true);
+			if (table < 0)
+				return -1;
+			this.header.setIndirectBlockIndex(this.descriptorIndex, level - 1, table);
+			this.header.descriptorChanged(this.descriptorIndex);
+		}
+
+		if (this.table == null)
+			this.table = new byte[this.geometry.getBlockLength()];
+		byte[] block = this.table;
+		for (int depth = level; ; depth--)
+		{
+			this.cache.read(table, 0, block, 0, block.length);
+			int slot = (int) (rel / divisor);
+			rel %= divisor;
+			int next = Codec.getInt(block, slot * FileSystem.INT_SIZE);
+			if (next < 0)
+			{
+				if (!allocate)
+					return -1;
+				next = this.allocateBlock(depth > 1);
+				if (next < 0)
+					return -1;
+				Codec.putInt(block, slot * FileSystem.INT_SIZE, next);
+				Journal journal = this.header.getJournal();
+				if (journal != null)
+					journal.logBlockUpdate(table, slot * FileSystem.INT_SIZE, block, slot * FileSystem.INT_SIZE, FileSystem.INT_SIZE);
+				this.cache.write(table, slot * FileSystem.INT_SIZE, block, slot * FileSystem.INT_SIZE, FileSystem.INT_SIZE);
+			}
+			if (depth == 1)
+			{
+				// block is a leaf table: cache the whole run of logical blocks it maps
+				this.cacheTable(block, logicalBlock - slot);
+				return next;
+			}
+			table = next;
+			divisor /= this.pointersPerBlock;
+		}
+	}
+
+	private void cacheTable(byte[] table, int firstLogicalBlock)
+	{
+		int end = firstLogicalBlock + this.pointersPerBlock;
+		if (end > this.resolved.length)
+		{
+			int oldLength = this.resolved.length;
+			this.resolved = Arrays.copyOf(this.resolved, Math.max(end, oldLength * 2));
+			Arrays.fill(this.resolved, oldLength, this.resolved.length, UNKNOWN);
+		}
+		for (int i = 0; i < this.pointersPerBlock; i++)
+		{
+			int blockIndex = Codec.getInt(table, i * FileSystem.INT_SIZE);
+			this.resolved[firstLogicalBlock + i] = blockIndex < 0 ? UNKNOWN : blockIndex;
+		}
+	}
+
+	private int allocateBlock(boolean indirect)
+	{
+		if (!indirect && this.extentNext < this.extentEnd)
+		{
+			int blockIndex = this.extentNext++; // taken by reserve; no one reads it before a write sets it up
+			this.allocationHint = blockIndex + 1;
+			return blockIndex;
+		}
+		int blockIndex = this.header.allocateDataBlock(this.allocationHint);
+		if (blockIndex < 0) // disk is full
+			return -1;
+		this.allocationHint = blockIndex + 1;
+		if (this.descriptorIndex == DescriptorTable.TABLE_FILE && !indirect)
+			return blockIndex; // descriptor table blocks bypass the cache; the table sets them up and logs them
+		byte fill = indirect ? (byte) 0xff : (byte) 0; // indirect: every entry -1
+		// indirect and directory blocks are metadata and logged; other file data only has to reach the disk
+		// before a file length that covers it is committed, which the write adding it sees to
+		Journal journal = this.header.getJournal();
+		if (journal != null && (indirect || this.directory))
+			journal.logBlockFill(blockIndex, fill);
+		// new blocks are set up in the cache without reading their stale contents from disk
+		this.cache.fill(blockIndex, fill);
+		return blockIndex;
+	}
+
+	// returns the number of blocks freed
+	private int freeTree(int table, int level)
+	{
+		if (table < 0)
+			return 0;
+		int freed = 1;
+		if (level > 0)
+		{
+			byte[] block = this.levelTable(level);
+			this.cache.read(table, 0, block, 0, block.length);
+			for (int i = 0; i < this.pointersPerBlock; i++)
+				freed += this.freeTree(Codec.getInt(block, i * FileSystem.INT_SIZE), level - 1);
+		}
+		this.freeBlock(table);
+		return freed;
+	}
+
+	private void freeBlock(int blockIndex)
+	{
+		if (blockIndex >= this.geometry.getNumReservedBlocks()) // never free superblock, bitmap, descriptor or journal blocks
+		{
+			this.header.clearBit(blockIndex);
+			this.cache.invalidate(blockIndex);
+		}
+	}
+}
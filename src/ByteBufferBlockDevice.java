@@ -0,0 +1,109 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+// block device over a set of ByteBuffer segments; a single ByteBuffer is limited to 2 GiB so
+// large images are split into segments holding a whole number of blocks each
+public abstract class ByteBufferBlockDevice implements BlockDevice {
+
+	public static final long MAX_SEGMENT_BYTES = 1L << 30; // 1 GiB
+
+	private final int numBlocks;
+	private final int blockLength;
+	private final int blocksPerSegment;
+	protected ByteBuffer[] segments;
+
+	protected ByteBufferBlockDevice(int numBlocks, int blockLength)
+	{
+		if (numBlocks <= 0 || blockLength <= 0)
+			throw new IllegalArgumentException("invalid geometry: " + numBlocks + " x " + blockLength);
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		this.blocksPerSegment = (int) Math.min(numBlocks, MAX_SEGMENT_BYTES / blockLength);
+		this.segments = new ByteBuffer[(numBlocks + this.blocksPerSegment - 1) / this.blocksPerSegment];
+	}
+
+	// size in bytes of segment i; the last segment may be short
+	protected long segmentBytes(int segment)
+	{
+		int firstBlock = segment * this.blocksPerSegment;
+		return (long) Math.min(this.blocksPerSegment, this.numBlocks - firstBlock) * this.blockLength;
+	}
+
+	protected long segmentOffset(int segment)
+	{
+		return (long) segment * this.blocksPerSegment * this.blockLength;
+	}
+
+	@Override
+	public int getNumBlocks() {
+		return this.numBlocks;
+	}
+
+	@Override
+	public int getBlockLength() {
+		return this.blockLength;
+	}
+
+	@Override
+	public void readBlock(int index, byte[] p, int offset)
+	{
+		this.checkIndex(index);
+		ByteBuffer segment = this.segments[index / this.blocksPerSegment];
+		segment.get((index % this.blocksPerSegment) * this.blockLength, p, offset, this.blockLength);
+	}
+
+	@Override
+	public void writeBlock(int index, byte[] p, int offset)
+	{
+		this.checkIndex(index);
+		ByteBuffer segment = this.segments[index / this.blocksPerSegment];
+		segment.put((index % this.blocksPerSegment) * this.blockLength, p, offset, this.blockLength);
+	}
+
+	// a run of blocks within one segment is a single bulk transfer
+	@Override
+	public void readBlocks(int index, int count, byte[] p, int offset)
+	{
+		this.checkRange(index, count);
+		while (count > 0)
+		{
+			int inSegment = Math.min(count, this.blocksPerSegment - index % this.blocksPerSegment);
+			ByteBuffer segment = this.segments[index / this.blocksPerSegment];
+			segment.get((index % this.blocksPerSegment) * this.blockLength, p, offset, inSegment * this.blockLength);
+			index += inSegment;
+			offset += inSegment * this.blockLength;
+			count -= inSegment;
+		}
+	}
+
+	@Override
+	public void writeBlocks(int index, int count, byte[] p, int offset)
+	{
+		this.checkRange(index, count);
+		while (count > 0)
+		{
+			int inSegment = Math.min(count, this.blocksPerSegment - index % this.blocksPerSegment);
+			ByteBuffer segment = this.segments[index / this.blocksPerSegment];
+			segment.put((index % this.blocksPerSegment) * this.blockLength, p, offset, inSegment * this.blockLength);
+			index += inSegment;
+			offset += inSegment * this.blockLength;
+			count -= inSegment;
+		}
+	}
+
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= this.numBlocks)
+			throw new IndexOutOfBoundsException("block " + index + " out of range [0, " + this.numBlocks + ")");
+	}
+
+	private void checkRange(int index, int count)
+	{
+		if (count > 0)
+		{
+			this.checkIndex(index);
+			this.checkIndex(index + count - 1);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package filesystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// reads and writes the fields of on-disk structures (superblock aside) in place in block and record buffers;
+// integers are big-endian, names are stored as their bytes, with the length kept next to them by the caller
+//
+// nothing here allocates, except encoding or measuring names with characters outside ASCII, which falls back
+// to String.getBytes
+final class Codec {
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private Codec() {
+	}
+
+	static int getInt(byte[] src, int offset)
+	{
+		return (int) INT.get(src, offset);
+	}
+
+	static void putInt(byte[] dest, int offset, int value)
+	{
+		INT.set(dest, offset, value);
+	}
+
+	// number of bytes name takes when stored
+	static int nameLength(String name)
+	{
+		return Codec.nameLength(name, 0, name.length());
+	}
+
+	// number of bytes the characters from to to of s take when stored as a name
+	static int nameLength(String s, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			if (s.charAt(i) >= 0x80)
+				return s.substring(from, to).getBytes().length;
+		}
+		return to - from;
+	}
+
+	// stores the bytes of name at offset and returns how many there are
+	static int putName(byte[] dest, int offset, String name)
+	{
+		return Codec.putName(dest, offset, name, 0, name.length());
+	}
+
+	// stores the characters from to to of s as a name
+	static int putName(byte[] dest, int offset, String s, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			char c = s.charAt(i);
+			if (c >= 0x80)
+			{
+				byte[] bytes = s.substring(from, to).getBytes();
+				System.arraycopy(bytes, 0, dest, offset, bytes.length);
+				return bytes.length;
+			}
+			dest[offset + i - from] = (byte) c;
+		}
+		return to - from;
+	}
+
+	// reads a name of length bytes stored by putName
+	static String getName(byte[] src, int offset, int length)
+	{
+		return new String(src, offset, length);
+	}
+}
@@ -0,0 +1,105 @@
+package filesystem;
+
+import java.util.Arrays;
+
+// heap block device that keeps its blocks compressed (see Lz): a block is compressed as the cache writes it back
+// and decompressed as the cache loads it, so blocks of repeated bytes or text take a fraction of their length.
+// A block that does not compress is kept as it is, and a block of zeros, such as one never written, takes nothing
+//
+// the stored form of every block is kept in a table: null for zeros, blockLength bytes for a block kept as it
+// is and fewer for a compressed one. A stored form is replaced whole and never changed, so a reader decompresses
+// it outside the device's lock
+public class CompressedBlockDevice implements BlockDevice {
+
+	private final int numBlocks;
+	private final int blockLength;
+	private final byte[][] stored;
+	private final byte[] zeros;
+	// guarded by this
+	private final byte[] packed; // the block being written, compressed
+	private final int[] table = new int[Lz.TABLE_SIZE];
+	private long storedBytes;
+
+	public CompressedBlockDevice(int numBlocks, int blockLength)
+	{
+		if (numBlocks <= 0 || blockLength <= 0)
+			throw new IllegalArgumentException("invalid geometry: " + numBlocks + " x " + blockLength);
+		this.numBlocks = numBlocks;
+		this.blockLength = blockLength;
+		this.stored = new byte[numBlocks][];
+		this.zeros = new byte[blockLength];
+		this.packed = new byte[blockLength];
+	}
+
+	@Override
+	public int getNumBlocks() {
+		return this.numBlocks;
+	}
+
+	@Override
+	public int getBlockLength() {
+		return this.blockLength;
+	}
+
+	// bytes the blocks take as stored
+	public synchronized long getStoredBytes() {
+		return this.storedBytes;
+	}
+
+	@Override
+	public void readBlock(int index, byte[] p, int offset)
+	{
+		byte[] block = this.getStored(index);
+		if (block == null)
+			Arrays.fill(p, offset, offset + this.blockLength, (byte) 0);
+		else if (block.length == this.blockLength)
+			System.arraycopy(block, 0, p, offset, this.blockLength);
+		else if (Lz.decompress(block, 0, block.length, p, offset, this.blockLength) != this.blockLength)
+			throw new IllegalStateException("block " + index + " is corrupt");
+	}
+
+	@Override
+	public synchronized void writeBlock(int index, byte[] p, int offset)
+	{
+		byte[] block = null;
+		if (Arrays.mismatch(p, offset, offset + this.blockLength, this.zeros, 0, this.blockLength) >= 0)
+		{
+			int length = Lz.compress(p, offset, this.blockLength, this.packed, 0, this.blockLength - 1, this.table);
+			block = length < 0 ? Arrays.copyOfRange(p, offset, offset + this.blockLength)
+					: Arrays.copyOf(this.packed, length);
+		}
+		this.setStored(index, block);
+	}
+
+	// bytes a block takes as stored
+	synchronized int getStoredLength(int index)
+	{
+		byte[] block = this.stored[index];
+		return block == null ? 0 : block.length;
+	}
+
+	// the stored form of a block, as saved with the disk (see LDisk); null for zeros
+	synchronized byte[] getStored(int index)
+	{
+		return this.stored[index];
+	}
+
+	// replaces the stored form of a block with one got from getStored; a form the device would not store throws
+	// IllegalArgumentException
+	synchronized void setStored(int index, byte[] block)
+	{
+		if (block != null && (block.length == 0 || block.length > this.blockLength))
+			throw new IllegalArgumentException("stored block of " + block.length + " bytes");
+		byte[] old = this.stored[index];
+		this.storedBytes += (block == null ? 0 : block.length) - (old == null ? 0 : old.length);
+		this.stored[index] = block;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,86 @@
+package filesystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// bounded cache of directory lookups: (directory, name) -> descriptor index as stored in the directory (see
+// DirectoryTree.DIRECTORY), or NOT_FOUND for a name known not to be there
+//
+// direct-mapped: an entry goes in the slot its key hashes to, replacing whatever was there. Lookups run under
+// the directory lock shared and may store what they found, publishing the entry through its slot. Create and
+// destroy hold the lock exclusively, look their name up first and then set the outcome in the entry the lookup
+// left, so an entry is never stale. Names are given as the characters from to to of a path; only storing an
+// entry allocates
+final class DentryCache {
+
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Entry[].class);
+
+	static final int MISS = -2;
+	static final int NOT_FOUND = -1;
+
+	private static final class Entry {
+		final int directory;
+		final String name;
+		final int hash;
+		int value; // changed only under the directory lock held exclusively
+
+		Entry(int directory, String name, int hash, int value)
+		{
+			this.directory = directory;
+			this.name = name;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	private final Entry[] slots;
+
+	// capacity: a power of two
+	DentryCache(int capacity)
+	{
+		this.slots = new Entry[capacity];
+	}
+
+	// the cached descriptor index of name in directory, NOT_FOUND, or MISS if the cache does not know
+	int get(int directory, String s, int from, int to)
+	{
+		int hash = DentryCache.hash(directory, s, from, to);
+		Entry entry = this.find(directory, s, from, to, hash);
+		return entry == null ? MISS : entry.value;
+	}
+
+	void put(int directory, String s, int from, int to, int value)
+	{
+		int hash = DentryCache.hash(directory, s, from, to);
+		String name = from == 0 && to == s.length() ? s : s.substring(from, to);
+		SLOT.setRelease(this.slots, hash & (this.slots.length - 1), new Entry(directory, name, hash, value));
+	}
+
+	// sets the outcome for name in directory after it was created or destroyed; the caller holds the directory
+	// lock exclusively
+	void update(int directory, String s, int from, int to, int value)
+	{
+		Entry entry = this.find(directory, s, from, to, DentryCache.hash(directory, s, from, to));
+		if (entry != null)
+			entry.value = value;
+		else
+			this.put(directory, s, from, to, value);
+	}
+
+	private Entry find(int directory, String s, int from, int to, int hash)
+	{
+		Entry entry = (Entry) SLOT.getAcquire(this.slots, hash & (this.slots.length - 1));
+		if (entry == null || entry.hash != hash || entry.directory != directory || entry.name.length() != to - from
+				|| !entry.name.regionMatches(0, s, from, to - from))
+			return null;
+		return entry;
+	}
+
+	private static int hash(int directory, String s, int from, int to)
+	{
+		int hash = directory;
+		for (int i = from; i < to; i++)
+			hash = 31 * hash + s.charAt(i);
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -1,26 +1,38 @@
 package filesystem;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+// one descriptor as a value, e.g. for printing; the file system keeps descriptors in a DescriptorTable
 public class Descriptor implements Serializable {
 
 	private static final long serialVersionUID = -5794044325030819668L;
 
+	public static final int NUM_INDIRECT_LEVELS = 3; // single, double and triple indirect blocks
+
 	private int len;
-	private int[] diskMap;
+	private int[] diskMap; // direct blocks
+	private int[] indirectMap; // root block of the single, double and triple indirect trees; see BlockMap
 	
 	public Descriptor()
+	{
+		this(DiskGeometry.DEFAULT_DISK_MAP_SIZE);
+	}
+
+	public Descriptor(int diskMapSize)
 	{
 		this.len = -1;
-		this.diskMap = new int[3];
+		this.diskMap = new int[diskMapSize];
+		this.indirectMap = new int[NUM_INDIRECT_LEVELS];
 		Arrays.fill(this.diskMap, -1);
+		Arrays.fill(this.indirectMap, -1);
 	}
 
 	public Descriptor(int len, int[] diskMap) {
 		this.len = len;
 		this.diskMap = diskMap;
+		this.indirectMap = new int[NUM_INDIRECT_LEVELS];
+		Arrays.fill(this.indirectMap, -1);
 	}
 
 
@@ -50,7 +62,7 @@ public class Descriptor implements Serializable {
 			if(this.diskMap[i] == -1)
 				return i;
 		}
-		return -1; // all 3 disk blocks for file are allocated
+		return -1; // all direct disk blocks for file are allocated
 	}
 
 
@@ -68,48 +80,72 @@ public class Descriptor implements Serializable {
 		this.diskMap = blocks;
 	}
 
+	public int getIndirectBlockIndex(int level)
+	// level: 0 = single, 1 = double, 2 = triple indirect
+	{
+		return this.indirectMap[level];
+	}
+
+	public void setIndirectBlockIndex(int level, int blockIndex)
+	{
+		this.indirectMap[level] = blockIndex;
+	}
+
 	public void clearDiskMap()
 	{
 		for(int i = 0; i < this.diskMap.length; i++ )
 			this.diskMap[i] = -1;
+		for(int i = 0; i < this.indirectMap.length; i++ )
+			this.indirectMap[i] = -1;
 	}
 
 
 
 	public void assignBlockToDescriptor(int diskMapIndex, int blockIndex ) {
-		// diskMapIndex: 0, 1, 2    	-- refers to the nth element in a descriptors 3-size array that stores block indexes
-		// blockIndex: 0, ..., 63	-- refers to the block index in the ldisk
+		// diskMapIndex: 0, ..., diskMapSize - 1	-- refers to the nth element in a descriptors array that stores block indexes
+		// blockIndex: 0, ..., numBlocks - 1		-- refers to the block index in the ldisk
 		this.diskMap[diskMapIndex] = blockIndex;
 	}
 
-	public void loadFromByteArray(byte[] bA)
+	// on disk a descriptor is its length, disk map and indirect map as consecutive ints
+	public int getSize()
 	{
-		ByteBuffer b = ByteBuffer.wrap(bA);
-		this.len = b.getInt();
-		for(int i = 0; i < this.diskMap.length; i++)
+		return FileSystem.INT_SIZE * (1 + this.diskMap.length + this.indirectMap.length);
+	}
+
+	public void readFrom(byte[] src, int offset)
+	{
+		this.len = Codec.getInt(src, offset);
+		offset += FileSystem.INT_SIZE;
+		for(int i = 0; i < this.diskMap.length; i++, offset += FileSystem.INT_SIZE)
 		{
-			this.diskMap[i] = b.getInt();
+			this.diskMap[i] = Codec.getInt(src, offset);
+		}
+		for(int i = 0; i < this.indirectMap.length; i++, offset += FileSystem.INT_SIZE)
+		{
+			this.indirectMap[i] = Codec.getInt(src, offset);
 		}
 	}
-	
-	public byte[] toByteArray()
+
+	public void writeTo(byte[] dest, int offset)
 	{
-		byte[] ret = new byte[16];
-		int offset = 0;
-		FileSystem.copyArray(FileSystem.intToByteArray(this.len), 0, ret, offset);
-		offset += 4;
-		for(int i = 0; i < this.diskMap.length; i++)
+		Codec.putInt(dest, offset, this.len);
+		offset += FileSystem.INT_SIZE;
+		for(int i = 0; i < this.diskMap.length; i++, offset += FileSystem.INT_SIZE)
 		{
-			FileSystem.copyArray(FileSystem.intToByteArray(this.diskMap[i]), 0, ret, offset);
-			offset += 4;
-		}		
-		return ret;
+			Codec.putInt(dest, offset, this.diskMap[i]);
+		}
+		for(int i = 0; i < this.indirectMap.length; i++, offset += FileSystem.INT_SIZE)
+		{
+			Codec.putInt(dest, offset, this.indirectMap[i]);
+		}
 	}
 
 
 	@Override
 	public String toString() {
-		return "len: " + this.len + "  diskMap: " + Arrays.toString(this.diskMap);
+		return "len: " + this.len + "  diskMap: " + Arrays.toString(this.diskMap) + "  indirect: "
+				+ Arrays.toString(this.indirectMap);
 	}
 
 }
@@ -0,0 +1,414 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// the file descriptors: a table of fixed-size records that grows a block at a time, like a file
+//
+// table layout: groups made of one bitmap block (bit set = descriptor in use, blockLength * 8 descriptors per
+// group) followed by the record blocks of the descriptors it covers; a record is the length, disk map and
+// indirect map as consecutive ints. The first numDescriptorBlocks table blocks are the reserved descriptor
+// blocks, the blocks past them are the data blocks of descriptor TABLE_FILE, whose length is their size in
+// bytes. Record blocks start out with every int -1 (free descriptors).
+//
+// in memory the records are ints in pages of PAGE_SIZE descriptors, one array for the lengths and one for the
+// disk and indirect maps, so a descriptor costs its record size and nothing per object. A page is read from
+// disk the first time one of its descriptors is used. The free-descriptor bitmap is read when the table is
+// opened and kept in a BlockAllocator, which finds a free descriptor without looking at the records.
+//
+// table blocks are read and written on disk directly, not through the block cache: changed blocks are written
+// home at checkpoints, and the journal logs every changed descriptor, as for the rest of the header. Pages are
+// loaded under the table's monitor and published complete (their arrays are final); the fields of a descriptor
+// are guarded by whoever guards its file, and only file creation, under the directory lock, grows the table
+final class DescriptorTable {
+
+	static final int TABLE_FILE = 1; // descriptor 0 is the directory
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static final class Page {
+		final int[] lens;
+		final int[] maps; // disk map and indirect map of each descriptor, stride ints apart
+
+		Page(int[] lens, int[] maps)
+		{
+			this.lens = lens;
+			this.maps = maps;
+		}
+	}
+
+	private final DiskGeometry geometry;
+	private final DiskHeader header;
+	private final int stride;
+	private final int recordSize;
+	private final int perBlock; // records per record block
+	private final int groupSize; // descriptors per group
+	private final int groupBlocks; // table blocks per group
+	private final int numReservedBlocks;
+	private final int numReservedDescriptors;
+	private LDisk disk;
+	private BlockMap extensionMap; // table blocks past the reserved ones, through descriptor TABLE_FILE
+
+	private volatile Page[] pages; // null until the table is opened
+	private volatile int numBlocks; // table blocks
+	private volatile int capacity; // descriptors in the table blocks
+	private volatile BlockAllocator used; // covers more than capacity; descriptors past it count as used
+	private final BitSet dirty = new BitSet(); // table blocks to write home
+	private final BitSet writing = new BitSet(); // the dirty blocks writeBack took, under the monitor
+	private final byte[] block; // table block being read or written, under the monitor
+
+	private DescriptorTable(DiskHeader header)
+	{
+		this.geometry = header.getGeometry();
+		this.header = header;
+		this.stride = this.geometry.getDiskMapSize() + Descriptor.NUM_INDIRECT_LEVELS;
+		this.recordSize = this.geometry.getDescriptorSize();
+		this.perBlock = this.geometry.getDescriptorsPerBlock();
+		this.groupSize = this.geometry.getBlockLength() * 8;
+		this.groupBlocks = 1 + (this.groupSize + this.perBlock - 1) / this.perBlock;
+		this.numReservedBlocks = this.geometry.getNumDescriptorBlocks();
+		this.numReservedDescriptors = DescriptorTable.capacityOf(this.geometry, this.numReservedBlocks);
+		this.block = new byte[this.geometry.getBlockLength()];
+	}
+
+	// an empty table in the reserved blocks, all of them still to be written
+	static DescriptorTable format(DiskHeader header)
+	{
+		DescriptorTable table = new DescriptorTable(header);
+		table.numBlocks = table.numReservedBlocks;
+		table.capacity = table.numReservedDescriptors;
+		table.used = table.newAllocator(null);
+		Page[] pages = new Page[DescriptorTable.pagesFor(table.capacity)];
+		for (int p = 0; p < pages.length; p++)
+			pages[p] = table.emptyPage();
+		table.pages = pages;
+		table.dirty.set(0, table.numBlocks);
+		return table;
+	}
+
+	// the table on disk; it is read on first use, so that the journal can be replayed onto the disk before
+	static DescriptorTable open(DiskHeader header)
+	{
+		return new DescriptorTable(header);
+	}
+
+	// descriptors held by the first numBlocks table blocks
+	static int capacityOf(DiskGeometry geometry, int numBlocks)
+	{
+		int perBlock = geometry.getDescriptorsPerBlock();
+		int groupSize = geometry.getBlockLength() * 8;
+		int groupBlocks = 1 + (groupSize + perBlock - 1) / perBlock;
+		int rest = numBlocks % groupBlocks;
+		long descriptors = (long) (numBlocks / groupBlocks) * groupSize
+				+ (rest == 0 ? 0 : Math.min(groupSize, (rest - 1) * perBlock));
+		return (int) Math.min(descriptors, Integer.MAX_VALUE);
+	}
+
+	private static int pagesFor(int descriptors)
+	{
+		return (descriptors + PAGE_SIZE - 1) >>> PAGE_BITS;
+	}
+
+	// table blocks are read and written on disk; descriptor TABLE_FILE maps them through the cache
+	void attach(LDisk disk, BlockCache cache)
+	{
+		this.disk = disk;
+		this.extensionMap = new BlockMap(this.geometry, cache, this.header, TABLE_FILE);
+	}
+
+	int getCapacity()
+	{
+		this.ensureOpen();
+		return this.capacity;
+	}
+
+	int getLen(int descriptorIndex)
+	{
+		return this.page(descriptorIndex).lens[descriptorIndex & PAGE_MASK];
+	}
+
+	void setLen(int descriptorIndex, int len)
+	{
+		Page page = this.page(descriptorIndex);
+		int old = page.lens[descriptorIndex & PAGE_MASK];
+		page.lens[descriptorIndex & PAGE_MASK] = len;
+		this.markDirty(this.tableBlock(descriptorIndex));
+		if ((old < 0) != (len < 0))
+			this.setUsed(descriptorIndex, len >= 0);
+	}
+
+	// i: [0, diskMapSize) for the disk map, then the indirect map
+	int getMapEntry(int descriptorIndex, int i)
+	{
+		return this.page(descriptorIndex).maps[(descriptorIndex & PAGE_MASK) * this.stride + i];
+	}
+
+	void setMapEntry(int descriptorIndex, int i, int blockIndex)
+	{
+		this.page(descriptorIndex).maps[(descriptorIndex & PAGE_MASK) * this.stride + i] = blockIndex;
+		this.markDirty(this.tableBlock(descriptorIndex));
+	}
+
+	void clearMap(int descriptorIndex)
+	{
+		int from = (descriptorIndex & PAGE_MASK) * this.stride;
+		Arrays.fill(this.page(descriptorIndex).maps, from, from + this.stride, -1);
+		this.markDirty(this.tableBlock(descriptorIndex));
+	}
+
+	// copies the record of a descriptor to dest
+	void writeRecord(int descriptorIndex, byte[] dest, int offset)
+	{
+		Page page = this.page(descriptorIndex);
+		int i = descriptorIndex & PAGE_MASK;
+		Codec.putInt(dest, offset, page.lens[i]);
+		for (int j = 0, from = i * this.stride; j < this.stride; j++)
+			Codec.putInt(dest, offset + (j + 1) * FileSystem.INT_SIZE, page.maps[from + j]);
+	}
+
+	// replaces a descriptor by the record in src, e.g. while replaying the journal
+	void readRecord(int descriptorIndex, byte[] src, int offset)
+	{
+		if (descriptorIndex >= this.getCapacity())
+			return; // logged after the table grew, which the log records first
+		Page page = this.page(descriptorIndex);
+		int i = descriptorIndex & PAGE_MASK;
+		int old = page.lens[i];
+		page.lens[i] = Codec.getInt(src, offset);
+		for (int j = 0, from = i * this.stride; j < this.stride; j++)
+			page.maps[from + j] = Codec.getInt(src, offset + (j + 1) * FileSystem.INT_SIZE);
+		this.markDirty(this.tableBlock(descriptorIndex));
+		if ((old < 0) != (page.lens[i] < 0))
+			this.setUsed(descriptorIndex, page.lens[i] >= 0);
+		if (descriptorIndex == TABLE_FILE)
+			this.extendTo(this.numReservedBlocks + page.lens[i] / this.geometry.getBlockLength());
+	}
+
+	// a free descriptor, growing the table if there is none; -1 if the disk is full.
+	// The caller holds the directory lock exclusively
+	int findFree()
+	{
+		this.ensureOpen();
+		while (true)
+		{
+			int descriptorIndex = this.used.nextFree(TABLE_FILE + 1);
+			if (descriptorIndex >= 0 && descriptorIndex < this.capacity)
+				return descriptorIndex;
+			if (this.grow() < 0)
+				return -1;
+		}
+	}
+
+	// adds a record block to the table, and the bitmap block before it when it starts a group
+	private int grow()
+	{
+		int from = this.numBlocks;
+		int to = from + (from % this.groupBlocks == 0 ? 2 : 1);
+		Journal journal = this.header.getJournal();
+		for (int b = from; b < to; b++)
+		{
+			int blockIndex = this.extensionMap.allocate(b - this.numReservedBlocks);
+			if (blockIndex < 0)
+				return -1;
+			if (journal != null)
+				journal.logBlockFill(blockIndex, b % this.groupBlocks == 0 ? (byte) 0 : (byte) 0xff);
+		}
+		this.extendTo(to);
+		this.setLen(TABLE_FILE, (to - this.numReservedBlocks) * this.geometry.getBlockLength());
+		this.header.descriptorChanged(TABLE_FILE);
+		return 0;
+	}
+
+	// makes the table numBlocks blocks long; the blocks added hold free descriptors only
+	private void extendTo(int numBlocks)
+	{
+		int oldBlocks = this.numBlocks;
+		if (numBlocks <= oldBlocks)
+			return;
+		int oldCapacity = this.capacity;
+		int newCapacity = DescriptorTable.capacityOf(this.geometry, numBlocks);
+		if (oldCapacity < newCapacity)
+		{
+			// the new records are already -1 in memory, and are not read from disk
+			this.page(oldCapacity);
+			this.page(newCapacity - 1);
+		}
+		synchronized (this)
+		{
+			this.numBlocks = numBlocks;
+			this.capacity = newCapacity;
+			if (newCapacity > this.used.getNumBlocks())
+				this.used = this.newAllocator(this.used);
+			this.used.clear(oldCapacity, newCapacity);
+		}
+		synchronized (this.dirty) {
+			this.dirty.set(oldBlocks, numBlocks);
+		}
+	}
+
+	// free-descriptor bitmap big enough for the capacity, with the bits of old; descriptors past the capacity
+	// are marked used, so they are never handed out
+	private BlockAllocator newAllocator(BlockAllocator old)
+	{
+		int size = Math.max(PAGE_SIZE, Integer.highestOneBit(this.capacity) << 1);
+		BlockAllocator allocator = old == null ? new BlockAllocator(size, TABLE_FILE + 1)
+				: BlockAllocator.fromBitSet(BitSet.valueOf(old.toByteArray()), size, TABLE_FILE + 1);
+		allocator.set(old == null ? this.capacity : old.getNumBlocks(), size);
+		return allocator;
+	}
+
+	private void setUsed(int descriptorIndex, boolean inUse)
+	{
+		if (inUse)
+			this.used.set(descriptorIndex);
+		else
+			this.used.clear(descriptorIndex);
+		this.markDirty(descriptorIndex / this.groupSize * this.groupBlocks);
+	}
+
+	private void markDirty(int tableBlock)
+	{
+		synchronized (this.dirty) {
+			this.dirty.set(tableBlock);
+		}
+	}
+
+	// table block of the record of a descriptor, and its offset in the block
+	private int tableBlock(int descriptorIndex)
+	{
+		return descriptorIndex / this.groupSize * this.groupBlocks + 1 + descriptorIndex % this.groupSize / this.perBlock;
+	}
+
+	private int recordOffset(int descriptorIndex)
+	{
+		return descriptorIndex % this.groupSize % this.perBlock * this.recordSize;
+	}
+
+	private int diskBlock(int tableBlock)
+	{
+		if (tableBlock < this.numReservedBlocks)
+			return this.geometry.getFirstDescriptorBlock() + tableBlock;
+		return this.extensionMap.lookup(tableBlock - this.numReservedBlocks);
+	}
+
+	private Page page(int descriptorIndex)
+	{
+		Page[] pages = this.pages;
+		int p = descriptorIndex >>> PAGE_BITS;
+		if (pages != null && p < pages.length)
+		{
+			Page page = pages[p];
+			if (page != null)
+				return page;
+		}
+		return this.loadPage(p);
+	}
+
+	private Page emptyPage()
+	{
+		int[] lens = new int[PAGE_SIZE];
+		int[] maps = new int[PAGE_SIZE * this.stride];
+		Arrays.fill(lens, -1);
+		Arrays.fill(maps, -1);
+		return new Page(lens, maps);
+	}
+
+	private void ensureOpen()
+	{
+		if (this.pages == null)
+			this.loadPage(0);
+	}
+
+	private synchronized Page loadPage(int p)
+	{
+		if (this.pages == null)
+			this.openFromDisk();
+		if (p >= this.pages.length)
+			this.pages = Arrays.copyOf(this.pages, Math.max(p + 1, this.pages.length * 2));
+		if (this.pages[p] != null)
+			return this.pages[p];
+
+		Page page = this.emptyPage();
+		int from = p << PAGE_BITS;
+		int to = Math.min(from + PAGE_SIZE, this.capacity);
+		this.readRecords(page, from, Math.min(to, this.numReservedDescriptors));
+		if (to > Math.max(from, this.numReservedDescriptors))
+		{
+			// descriptor TABLE_FILE, which maps the blocks read next, is in the reserved blocks
+			if (p == 0)
+				this.pages[0] = new Page(page.lens.clone(), page.maps.clone());
+			this.readRecords(page, Math.max(from, this.numReservedDescriptors), to);
+			page = new Page(page.lens, page.maps);
+		}
+		this.pages[p] = page;
+		return page;
+	}
+
+	// reads the records of descriptors [from, to) into their page
+	private void readRecords(Page page, int from, int to)
+	{
+		for (int descriptorIndex = from; descriptorIndex < to; )
+		{
+			this.disk.readBlock(this.diskBlock(this.tableBlock(descriptorIndex)), this.block);
+			int offset = this.recordOffset(descriptorIndex);
+			do {
+				int i = descriptorIndex & PAGE_MASK;
+				page.lens[i] = Codec.getInt(this.block, offset);
+				for (int j = 0; j < this.stride; j++)
+					page.maps[i * this.stride + j] = Codec.getInt(this.block, offset + (j + 1) * FileSystem.INT_SIZE);
+				descriptorIndex++;
+				offset += this.recordSize;
+			} while (descriptorIndex < to && this.recordOffset(descriptorIndex) != 0);
+		}
+	}
+
+	// reads the length of the table from descriptor TABLE_FILE and the free-descriptor bitmap
+	private void openFromDisk()
+	{
+		this.disk.readBlock(this.diskBlock(this.tableBlock(TABLE_FILE)), this.block);
+		int length = Codec.getInt(this.block, this.recordOffset(TABLE_FILE));
+		this.numBlocks = this.numReservedBlocks + Math.max(0, length) / this.geometry.getBlockLength();
+		this.capacity = DescriptorTable.capacityOf(this.geometry, this.numBlocks);
+		this.pages = new Page[DescriptorTable.pagesFor(this.capacity)];
+		this.loadPage(0);
+
+		int numGroups = (this.numBlocks + this.groupBlocks - 1) / this.groupBlocks;
+		byte[] bitmap = new byte[numGroups * this.block.length];
+		for (int g = 0; g < numGroups; g++)
+			this.disk.readBlock(this.diskBlock(g * this.groupBlocks), bitmap, g * this.block.length);
+		BlockAllocator allocator = BlockAllocator.fromBitSet(BitSet.valueOf(bitmap),
+				Math.max(PAGE_SIZE, Integer.highestOneBit(this.capacity) << 1), TABLE_FILE + 1);
+		allocator.set(this.capacity, allocator.getNumBlocks());
+		this.used = allocator;
+	}
+
+	// writes the changed table blocks home
+	synchronized void writeBack()
+	{
+		if (this.pages == null)
+			return; // never read, so unchanged
+		BitSet blocks = this.writing;
+		synchronized (this.dirty) {
+			blocks.or(this.dirty);
+			this.dirty.clear();
+		}
+		for (int b = blocks.nextSetBit(0); b >= 0; b = blocks.nextSetBit(b + 1))
+		{
+			if (b % this.groupBlocks == 0)
+				this.used.toByteArray(b / this.groupBlocks * this.block.length, this.block);
+			else
+			{
+				Arrays.fill(this.block, (byte) 0xff);
+				int first = b / this.groupBlocks * this.groupSize + (b % this.groupBlocks - 1) * this.perBlock;
+				int last = Math.min(Math.min(first + this.perBlock, (b / this.groupBlocks + 1) * this.groupSize),
+						this.capacity);
+				this.page(first); // loaded already, as its records changed
+				for (int descriptorIndex = first; descriptorIndex < last; descriptorIndex++)
+					this.writeRecord(descriptorIndex, this.block, this.recordOffset(descriptorIndex));
+			}
+			this.disk.writeBlock(this.diskBlock(b), this.block);
+		}
+		blocks.clear();
+	}
+}
@@ -0,0 +1,24 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+// off-heap block device; contents live in direct buffers outside the java heap
+public class DirectBlockDevice extends ByteBufferBlockDevice {
+
+	public DirectBlockDevice(int numBlocks, int blockLength)
+	{
+		super(numBlocks, blockLength);
+		for (int i = 0; i < this.segments.length; i++)
+			this.segments[i] = ByteBuffer.allocateDirect((int) this.segmentBytes(i));
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+		// direct buffers are released by the garbage collector
+		this.segments = new ByteBuffer[0];
+	}
+}
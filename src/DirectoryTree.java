@@ -0,0 +1,660 @@
+package filesystem;
+
+import java.util.Arrays;
+
+// directory files: each is a B+tree of names, searched, changed and listed straight from its blocks. One
+// DirectoryTree serves every directory; a directory is named by its descriptor index, 0 being the root
+//
+// a directory file is an array of nodes of nodeSize bytes (at least MIN_NODE_SIZE, a whole number of blocks). Node 0
+// is always the root; when the root splits, its entries move to two new nodes. A node starts with a header of
+// ints followed by its entries, packed in name order:
+//	header			kind (LEAF or INTERNAL), entry count, bytes used (header included), link; the root also
+//					keeps the head of the list of free nodes and the highest node index in use
+//	entry			name length (1 byte), name, descriptor index (leaf, with DIRECTORY set for a subdirectory)
+//					or child node (internal)
+// The link of a leaf is the next leaf in name order (0: none); the link of an internal node is the child holding
+// the names before its first entry, and each entry's child the names from the entry's name on. A free node's
+// link is the next free node. A node of zeros is an empty leaf, so a freshly formatted directory block is an
+// empty directory, and the blocks of a node past the bytes it uses are not allocated until it grows into them.
+//
+// names are compared as unsigned bytes. A node that grows past nodeSize is split in two; a node that drops below
+// a quarter full is merged with a sibling if the two fit in one node, and the node given up goes on the free
+// list. An update first changes copies of the nodes it touches and then writes them, after allocating every
+// block they need, so a full disk leaves the directory as it was.
+//
+// lookups and listings hold the directory lock shared and each thread reads nodes into its own buffer through
+// its own block map; updates hold it exclusively and use the tree's node buffers and map
+final class DirectoryTree {
+
+	static final int MAX_NAME_LENGTH = 255; // bytes
+	static final int DIRECTORY = 1 << 30; // set in the descriptor index of a subdirectory's entry
+	private static final int MIN_NODE_SIZE = 1024; // room for a few entries with the longest names
+	private static final int MAX_ENTRY_SIZE = 1 + MAX_NAME_LENGTH + FileSystem.INT_SIZE;
+
+	private static final int KIND = 0;
+	private static final int COUNT = 4;
+	private static final int USED = 8;
+	private static final int LINK = 12;
+	private static final int FREE_LIST = 16; // root only
+	private static final int LAST_NODE = 20; // root only
+	private static final int HEADER_SIZE = 24;
+
+	private static final int LEAF = 0;
+	private static final int INTERNAL = 1;
+
+	// a node being changed: its bytes and the range of them to write
+	private static final class Node {
+		final byte[] data;
+		int index;
+		int dirtyFrom;
+		int dirtyTo;
+
+		Node(int size)
+		{
+			this.data = new byte[size];
+		}
+	}
+
+	// buffers of a thread reading directories, and the map of the last directory it read
+	private static final class Reader {
+		final byte[] node;
+		final byte[] key = new byte[MAX_NAME_LENGTH];
+		final BlockMap map;
+		int mapEpoch;
+		int scanned; // entries compared by the search in progress
+
+		Reader(int nodeSize, BlockMap map)
+		{
+			this.node = new byte[nodeSize];
+			this.map = map;
+		}
+	}
+
+	private final DiskGeometry geometry;
+	private final BlockCache cache;
+	private final DiskHeader header;
+	private final FileSystemMetrics metrics; // counts nodes read and entries compared, if set
+	private final int nodeSize;
+	private final ThreadLocal<Reader> readers;
+	// bumped when a directory is removed, so maps still holding its blocks are reset even if its descriptor is
+	// reused by the next directory
+	private volatile int epoch;
+
+	// used by updates
+	private Node[] nodes = new Node[8]; // nodes loaded by the update in progress
+	private int numNodes;
+	private Node[] path = new Node[8]; // internal nodes from the root down to the node being changed
+	private int[] pathOffset = new int[8]; // per internal node, offset of the entry of the next node on the path
+	private final Reader updater;
+	private final byte[] separator = new byte[MAX_NAME_LENGTH];
+
+	DirectoryTree(DiskGeometry geometry, BlockCache cache, DiskHeader header, FileSystemMetrics metrics)
+	{
+		this.geometry = geometry;
+		this.cache = cache;
+		this.header = header;
+		this.metrics = metrics;
+		int blockLength = geometry.getBlockLength();
+		this.nodeSize = (MIN_NODE_SIZE + blockLength - 1) / blockLength * blockLength;
+		this.readers = ThreadLocal.withInitial(() -> new Reader(this.nodeSize, new BlockMap(geometry, cache, header, 0)));
+		this.updater = new Reader(0, new BlockMap(geometry, cache, header, 0));
+	}
+
+	// to be called after the blocks of a directory were freed
+	void directoryRemoved()
+	{
+		this.epoch++; // updates hold the directory lock exclusively
+	}
+
+	// returns the descriptor index of name in directory, -1 if there is no such name; name is the characters
+	// from to to of s
+	int find(int directory, String s, int from, int to)
+	{
+		Reader reader = this.readers.get();
+		BlockMap map = this.mapOf(reader, directory);
+		int keyLength = Codec.putName(reader.key, 0, s, from, to);
+		byte[] node = reader.node;
+		reader.scanned = 0;
+		this.readNode(map, 0, node);
+		while (Codec.getInt(node, KIND) == INTERNAL)
+			this.readNode(map, DirectoryTree.value(node, this.childOffset(reader, node, keyLength)), node);
+		int used = DirectoryTree.used(node);
+		int descriptorIndex = -1;
+		for (int offset = HEADER_SIZE; offset < used; offset += DirectoryTree.entrySize(node, offset))
+		{
+			reader.scanned++;
+			int c = DirectoryTree.compare(reader.key, keyLength, node, offset);
+			if (c == 0)
+				descriptorIndex = DirectoryTree.value(node, offset);
+			if (c <= 0)
+				break;
+		}
+		this.countScanned(reader);
+		return descriptorIndex;
+	}
+
+	// appends the names in directory from name from on (all names if from is null), in order and each followed
+	// by a space, up to max of them; names of subdirectories end in '/'
+	void list(int directory, StringBuilder names, String from, int max)
+	{
+		Reader reader = this.readers.get();
+		BlockMap map = this.mapOf(reader, directory);
+		int keyLength = from == null ? 0 : Codec.putName(reader.key, 0, from);
+		byte[] node = reader.node;
+		reader.scanned = 0;
+		this.readNode(map, 0, node);
+		while (Codec.getInt(node, KIND) == INTERNAL)
+			this.readNode(map, DirectoryTree.value(node, this.childOffset(reader, node, keyLength)), node);
+		this.countScanned(reader);
+		for (int listed = 0; listed < max; )
+		{
+			int used = DirectoryTree.used(node);
+			for (int offset = HEADER_SIZE; offset < used && listed < max; offset += DirectoryTree.entrySize(node, offset))
+			{
+				if (keyLength > 0 && DirectoryTree.compare(reader.key, keyLength, node, offset) > 0)
+					continue;
+				names.append(Codec.getName(node, offset + 1, node[offset] & 0xff));
+				if ((DirectoryTree.value(node, offset) & DIRECTORY) != 0)
+					names.append('/');
+				names.append(' ');
+				listed++;
+			}
+			int next = Codec.getInt(node, LINK);
+			if (next == 0)
+				break;
+			this.readNode(map, next, node);
+		}
+	}
+
+	// whether directory has no names
+	boolean isEmpty(int directory)
+	{
+		Reader reader = this.readers.get();
+		this.readNode(this.mapOf(reader, directory), 0, reader.node);
+		return Codec.getInt(reader.node, COUNT) == 0 && Codec.getInt(reader.node, KIND) == LEAF;
+	}
+
+	// adds the characters from to to of s as a name to directory; returns 0, or -1 if the name exists or the
+	// directory cannot grow
+	int insert(int directory, String s, int from, int to, int descriptorIndex)
+	{
+		this.mapOf(this.updater, directory);
+		this.numNodes = 0;
+		byte[] key = this.updater.key;
+		int keyLength = Codec.putName(key, 0, s, from, to);
+		this.updater.scanned = 0;
+		Node root = this.load(0);
+		Node node = root;
+		int depth = 0;
+		while (Codec.getInt(node.data, KIND) == INTERNAL)
+		{
+			// a node split off the child goes right after the child's entry
+			int childOffset = this.childOffset(this.updater, node.data, keyLength);
+			this.push(depth++, node, childOffset < 0 ? HEADER_SIZE : childOffset + DirectoryTree.entrySize(node.data, childOffset));
+			node = this.load(DirectoryTree.value(node.data, childOffset));
+		}
+		int used = DirectoryTree.used(node.data);
+		int offset = HEADER_SIZE;
+		int c = 1;
+		for (; offset < used; offset += DirectoryTree.entrySize(node.data, offset))
+		{
+			this.updater.scanned++;
+			c = DirectoryTree.compare(key, keyLength, node.data, offset);
+			if (c <= 0)
+				break;
+		}
+		this.countScanned(this.updater);
+		if (c == 0)
+			return -1;
+		this.insertEntry(node, offset, key, keyLength, descriptorIndex);
+
+		while (DirectoryTree.used(node.data) > this.nodeSize)
+		{
+			if (node == root)
+			{
+				this.splitRoot(root);
+				break;
+			}
+			Node parent = this.path[--depth];
+			Node right = this.newNode(root, Codec.getInt(node.data, KIND));
+			int separatorLength = this.split(node, right);
+			this.insertEntry(parent, this.pathOffset[depth], this.separator, separatorLength, right.index);
+			node = parent;
+		}
+		return this.writeNodes(directory);
+	}
+
+	// removes the characters from to to of s from directory; returns the descriptor index the name had, -1 if
+	// there is no such name or the directory cannot be written
+	int remove(int directory, String s, int from, int to)
+	{
+		this.mapOf(this.updater, directory);
+		this.numNodes = 0;
+		byte[] key = this.updater.key;
+		int keyLength = Codec.putName(key, 0, s, from, to);
+		this.updater.scanned = 0;
+		Node root = this.load(0);
+		Node node = root;
+		int depth = 0;
+		while (Codec.getInt(node.data, KIND) == INTERNAL)
+		{
+			int childOffset = this.childOffset(this.updater, node.data, keyLength);
+			this.push(depth++, node, childOffset);
+			node = this.load(DirectoryTree.value(node.data, childOffset));
+		}
+		int used = DirectoryTree.used(node.data);
+		int offset = HEADER_SIZE;
+		for (; offset < used; offset += DirectoryTree.entrySize(node.data, offset))
+		{
+			this.updater.scanned++;
+			if (DirectoryTree.compare(key, keyLength, node.data, offset) == 0)
+				break;
+		}
+		this.countScanned(this.updater);
+		if (offset >= used)
+			return -1;
+		int descriptorIndex = DirectoryTree.value(node.data, offset);
+		this.removeEntry(node, offset);
+
+		while (node != root && DirectoryTree.used(node.data) - HEADER_SIZE < (this.nodeSize - HEADER_SIZE) / 4)
+		{
+			Node parent = this.path[--depth];
+			int childOffset = this.pathOffset[depth];
+			boolean merged;
+			if (childOffset < 0) // the first child: take in the sibling after it
+			{
+				if (Codec.getInt(parent.data, COUNT) == 0)
+					break;
+				merged = this.merge(root, node, this.load(DirectoryTree.value(parent.data, HEADER_SIZE)), parent, HEADER_SIZE);
+			}
+			else // go into the sibling before it
+			{
+				int previous = this.previousOffset(parent.data, childOffset);
+				merged = this.merge(root, this.load(DirectoryTree.value(parent.data, previous)), node, parent, childOffset);
+			}
+			if (!merged)
+				break;
+			node = parent;
+		}
+		if (Codec.getInt(root.data, KIND) == INTERNAL && Codec.getInt(root.data, COUNT) == 0)
+			this.collapseRoot(root);
+		return this.writeNodes(directory) < 0 ? -1 : descriptorIndex;
+	}
+
+	private void push(int depth, Node node, int offset)
+	{
+		if (depth == this.path.length)
+		{
+			this.path = Arrays.copyOf(this.path, depth * 2);
+			this.pathOffset = Arrays.copyOf(this.pathOffset, depth * 2);
+		}
+		this.path[depth] = node;
+		this.pathOffset[depth] = offset;
+	}
+
+	// splits a full node other than the root: the entries from the middle on move to right. Returns the length of
+	// the separator, the name that leads to right in the parent, which is left in separator
+	private int split(Node node, Node right)
+	{
+		byte[] data = node.data;
+		int used = DirectoryTree.used(data);
+		int offset = this.splitOffset(data);
+		int separatorLength = data[offset] & 0xff;
+		System.arraycopy(data, offset + 1, this.separator, 0, separatorLength);
+		if (Codec.getInt(data, KIND) == LEAF)
+		{
+			this.appendEntries(right, data, offset, used);
+			this.setInt(right, LINK, Codec.getInt(data, LINK));
+			this.setInt(node, LINK, right.index);
+		}
+		else // the middle entry moves up
+		{
+			this.setInt(right, LINK, DirectoryTree.value(data, offset));
+			this.appendEntries(right, data, offset + DirectoryTree.entrySize(data, offset), used);
+		}
+		this.truncate(node, offset);
+		return separatorLength;
+	}
+
+	// splits the full root: its entries move to two new nodes and it becomes their parent
+	private void splitRoot(Node root)
+	{
+		byte[] data = root.data;
+		int kind = Codec.getInt(data, KIND);
+		Node left = this.newNode(root, kind);
+		Node right = this.newNode(root, kind);
+		int offset = this.splitOffset(data);
+		this.appendEntries(left, data, HEADER_SIZE, offset);
+		int separatorLength = data[offset] & 0xff;
+		System.arraycopy(data, offset + 1, this.separator, 0, separatorLength);
+		if (kind == LEAF)
+		{
+			this.appendEntries(right, data, offset, DirectoryTree.used(data));
+			this.setInt(left, LINK, right.index);
+		}
+		else
+		{
+			this.setInt(left, LINK, Codec.getInt(data, LINK));
+			this.setInt(right, LINK, DirectoryTree.value(data, offset));
+			this.appendEntries(right, data, offset + DirectoryTree.entrySize(data, offset), DirectoryTree.used(data));
+		}
+		this.setInt(root, KIND, INTERNAL);
+		this.setInt(root, LINK, left.index);
+		this.truncate(root, HEADER_SIZE);
+		this.insertEntry(root, HEADER_SIZE, this.separator, separatorLength, right.index);
+	}
+
+	// offset of the entry at which a full node is split: half of its bytes before it, at least one entry on
+	// either side
+	private int splitOffset(byte[] data)
+	{
+		int used = DirectoryTree.used(data);
+		int half = HEADER_SIZE + (used - HEADER_SIZE) / 2;
+		int offset = HEADER_SIZE + DirectoryTree.entrySize(data, HEADER_SIZE);
+		while (offset < half)
+		{
+			int next = offset + DirectoryTree.entrySize(data, offset);
+			if (next >= used)
+				break;
+			offset = next;
+		}
+		return offset;
+	}
+
+	// moves the entries of right, and the separator between them in parent, into left if they fit in one node,
+	// and frees right; returns whether it did
+	private boolean merge(Node root, Node left, Node right, Node parent, int separatorOffset)
+	{
+		int separatorSize = DirectoryTree.entrySize(parent.data, separatorOffset);
+		boolean leaf = Codec.getInt(left.data, KIND) == LEAF;
+		int size = DirectoryTree.used(left.data) + DirectoryTree.used(right.data) - HEADER_SIZE + (leaf ? 0 : separatorSize);
+		if (size > this.nodeSize)
+			return false;
+		if (leaf)
+			this.setInt(left, LINK, Codec.getInt(right.data, LINK));
+		else
+			this.insertEntry(left, DirectoryTree.used(left.data), parent.data, separatorOffset + 1,
+					parent.data[separatorOffset] & 0xff, Codec.getInt(right.data, LINK));
+		this.appendEntries(left, right.data, HEADER_SIZE, DirectoryTree.used(right.data));
+		this.removeEntry(parent, separatorOffset);
+		this.freeNode(root, right);
+		return true;
+	}
+
+	// the root has a single child left: the child moves into the root
+	private void collapseRoot(Node root)
+	{
+		Node child = this.load(Codec.getInt(root.data, LINK));
+		int used = DirectoryTree.used(child.data);
+		System.arraycopy(child.data, HEADER_SIZE, root.data, HEADER_SIZE, used - HEADER_SIZE);
+		this.setInt(root, KIND, Codec.getInt(child.data, KIND));
+		this.setInt(root, COUNT, Codec.getInt(child.data, COUNT));
+		this.setInt(root, USED, used);
+		this.setInt(root, LINK, Codec.getInt(child.data, LINK));
+		this.markDirty(root, HEADER_SIZE, used);
+		this.freeNode(root, child);
+	}
+
+	private Node newNode(Node root, int kind)
+	{
+		int index = Codec.getInt(root.data, FREE_LIST);
+		Node node;
+		if (index != 0)
+		{
+			node = this.load(index);
+			this.setInt(root, FREE_LIST, Codec.getInt(node.data, LINK));
+		}
+		else
+		{
+			node = this.take();
+			node.index = Codec.getInt(root.data, LAST_NODE) + 1;
+			this.setInt(root, LAST_NODE, node.index);
+		}
+		Arrays.fill(node.data, 0, HEADER_SIZE, (byte) 0);
+		this.setInt(node, KIND, kind);
+		this.setInt(node, USED, HEADER_SIZE);
+		this.markDirty(node, 0, HEADER_SIZE);
+		return node;
+	}
+
+	private void freeNode(Node root, Node node)
+	{
+		Arrays.fill(node.data, 0, HEADER_SIZE, (byte) 0);
+		this.setInt(node, USED, HEADER_SIZE);
+		this.setInt(node, LINK, Codec.getInt(root.data, FREE_LIST));
+		this.markDirty(node, 0, HEADER_SIZE);
+		this.setInt(root, FREE_LIST, node.index);
+	}
+
+	private void insertEntry(Node node, int offset, byte[] name, int nameLength, int value)
+	{
+		this.insertEntry(node, offset, name, 0, nameLength, value);
+	}
+
+	private void insertEntry(Node node, int offset, byte[] name, int nameOffset, int nameLength, int value)
+	{
+		byte[] data = node.data;
+		int used = DirectoryTree.used(data);
+		int size = 1 + nameLength + FileSystem.INT_SIZE;
+		System.arraycopy(data, offset, data, offset + size, used - offset);
+		data[offset] = (byte) nameLength;
+		System.arraycopy(name, nameOffset, data, offset + 1, nameLength);
+		Codec.putInt(data, offset + 1 + nameLength, value);
+		this.setInt(node, COUNT, Codec.getInt(data, COUNT) + 1);
+		this.setInt(node, USED, used + size);
+		this.markDirty(node, offset, used + size);
+	}
+
+	private void removeEntry(Node node, int offset)
+	{
+		byte[] data = node.data;
+		int used = DirectoryTree.used(data);
+		int size = DirectoryTree.entrySize(data, offset);
+		System.arraycopy(data, offset + size, data, offset, used - offset - size);
+		this.setInt(node, COUNT, Codec.getInt(data, COUNT) - 1);
+		this.setInt(node, USED, used - size);
+		this.markDirty(node, offset, used - size);
+	}
+
+	// appends the entries in [from, to) of src to node
+	private void appendEntries(Node node, byte[] src, int from, int to)
+	{
+		int used = DirectoryTree.used(node.data);
+		int count = 0;
+		for (int offset = from; offset < to; offset += DirectoryTree.entrySize(src, offset))
+			count++;
+		System.arraycopy(src, from, node.data, used, to - from);
+		this.setInt(node, COUNT, Codec.getInt(node.data, COUNT) + count);
+		this.setInt(node, USED, used + to - from);
+		this.markDirty(node, used, used + to - from);
+	}
+
+	// drops the entries from offset on
+	private void truncate(Node node, int offset)
+	{
+		int count = 0;
+		for (int i = HEADER_SIZE; i < offset; i += DirectoryTree.entrySize(node.data, i))
+			count++;
+		this.setInt(node, COUNT, count);
+		this.setInt(node, USED, offset);
+	}
+
+	private void setInt(Node node, int offset, int value)
+	{
+		Codec.putInt(node.data, offset, value);
+		this.markDirty(node, offset, offset + FileSystem.INT_SIZE);
+	}
+
+	private void markDirty(Node node, int from, int to)
+	{
+		node.dirtyFrom = Math.min(node.dirtyFrom, from);
+		node.dirtyTo = Math.max(node.dirtyTo, to);
+	}
+
+	private Node take()
+	{
+		if (this.numNodes == this.nodes.length)
+			this.nodes = Arrays.copyOf(this.nodes, this.numNodes * 2);
+		if (this.nodes[this.numNodes] == null)
+			this.nodes[this.numNodes] = new Node(this.nodeSize + MAX_ENTRY_SIZE); // room to overflow before a split
+		Node node = this.nodes[this.numNodes++];
+		node.dirtyFrom = Integer.MAX_VALUE;
+		node.dirtyTo = 0;
+		return node;
+	}
+
+	private Node load(int index)
+	{
+		for (int i = 0; i < this.numNodes; i++)
+		{
+			if (this.nodes[i].index == index) // already changed by this update
+				return this.nodes[i];
+		}
+		Node node = this.take();
+		node.index = index;
+		this.readNode(this.updater.map, index, node.data);
+		return node;
+	}
+
+	// writes the changed bytes of the loaded nodes; -1 if the directory file cannot get the blocks for them,
+	// in which case nothing is written
+	private int writeNodes(int directory)
+	{
+		BlockMap map = this.updater.map;
+		int blockLength = this.geometry.getBlockLength();
+		for (int i = 0; i < this.numNodes; i++)
+		{
+			Node node = this.nodes[i];
+			node.dirtyTo = Math.min(node.dirtyTo, DirectoryTree.used(node.data)); // a split node leaves bytes behind
+			long pos = (long) node.index * this.nodeSize;
+			if (node.dirtyFrom < node.dirtyTo && pos + node.dirtyTo > this.geometry.getMaxFileLen())
+				return -1;
+			for (int b = node.dirtyFrom / blockLength; b * blockLength < node.dirtyTo; b++)
+			{
+				if (map.allocate((int) (pos / blockLength) + b) < 0)
+					return -1;
+			}
+		}
+
+		Journal journal = this.header.getJournal();
+		int end = this.header.getLen(directory);
+		for (int i = 0; i < this.numNodes; i++)
+		{
+			Node node = this.nodes[i];
+			int pos = node.index * this.nodeSize;
+			for (int from = node.dirtyFrom; from < node.dirtyTo; )
+			{
+				int blockOffset = from % blockLength;
+				int length = Math.min(blockLength - blockOffset, node.dirtyTo - from);
+				int blockIndex = map.lookup((pos + from) / blockLength);
+				if (journal != null)
+					journal.logBlockUpdate(blockIndex, blockOffset, node.data, from, length);
+				this.cache.write(blockIndex, blockOffset, node.data, from, length);
+				from += length;
+			}
+			if (node.dirtyFrom < node.dirtyTo)
+				end = Math.max(end, pos + node.dirtyTo);
+		}
+		if (end > this.header.getLen(directory))
+		{
+			this.header.setLen(directory, end);
+			this.header.descriptorChanged(directory);
+		}
+		return 0;
+	}
+
+	// points the map of reader at directory
+	private BlockMap mapOf(Reader reader, int directory)
+	{
+		int epoch = this.epoch;
+		if (reader.map.getDescriptorIndex() != directory || reader.mapEpoch != epoch)
+		{
+			reader.map.reset(directory, true);
+			reader.mapEpoch = epoch;
+		}
+		return reader.map;
+	}
+
+	// adds the entries the reader compared to the metrics
+	private void countScanned(Reader reader)
+	{
+		if (this.metrics != null)
+			this.metrics.directoryEntriesScanned(reader.scanned);
+	}
+
+	// reads the used bytes of a node; the rest of dest is left as it was
+	private void readNode(BlockMap map, int index, byte[] dest)
+	{
+		if (this.metrics != null)
+			this.metrics.directoryNodeRead();
+		this.read(map, index * this.nodeSize, dest, 0, HEADER_SIZE);
+		int used = DirectoryTree.used(dest);
+		if (used > HEADER_SIZE)
+			this.read(map, index * this.nodeSize + HEADER_SIZE, dest, HEADER_SIZE, Math.min(used, this.nodeSize) - HEADER_SIZE);
+	}
+
+	private void read(BlockMap map, int pos, byte[] dest, int offset, int length)
+	{
+		int blockLength = this.geometry.getBlockLength();
+		while (length > 0)
+		{
+			int blockOffset = pos % blockLength;
+			int chunk = Math.min(blockLength - blockOffset, length);
+			int blockIndex = map.lookup(pos / blockLength);
+			if (blockIndex < 0)
+				Arrays.fill(dest, offset, offset + chunk, (byte) 0);
+			else
+				this.cache.read(blockIndex, blockOffset, dest, offset, chunk);
+			pos += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	// offset of the entry whose child holds the reader's key in an internal node, -1 for the node's link
+	private int childOffset(Reader reader, byte[] data, int keyLength)
+	{
+		int used = DirectoryTree.used(data);
+		int child = -1;
+		for (int offset = HEADER_SIZE; offset < used; offset += DirectoryTree.entrySize(data, offset))
+		{
+			reader.scanned++;
+			if (DirectoryTree.compare(reader.key, keyLength, data, offset) < 0)
+				break;
+			child = offset;
+		}
+		return child;
+	}
+
+	// offset of the entry before the one at offset, -1 for the node's link
+	private int previousOffset(byte[] data, int offset)
+	{
+		int previous = -1;
+		for (int i = HEADER_SIZE; i < offset; i += DirectoryTree.entrySize(data, i))
+			previous = i;
+		return previous;
+	}
+
+	// value of the entry at offset, or the link for offset -1
+	private static int value(byte[] data, int offset)
+	{
+		if (offset < 0)
+			return Codec.getInt(data, LINK);
+		return Codec.getInt(data, offset + 1 + (data[offset] & 0xff));
+	}
+
+	private static int used(byte[] data)
+	{
+		return Math.max(HEADER_SIZE, Codec.getInt(data, USED)); // 0 in a node of zeros
+	}
+
+	private static int entrySize(byte[] data, int offset)
+	{
+		return 1 + (data[offset] & 0xff) + FileSystem.INT_SIZE;
+	}
+
+	private static int compare(byte[] key, int keyLength, byte[] data, int offset)
+	{
+		return Arrays.compareUnsigned(key, 0, keyLength, data, offset + 1, offset + 1 + (data[offset] & 0xff));
+	}
+}
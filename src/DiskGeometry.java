@@ -0,0 +1,228 @@
+package filesystem;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+// disk geometry; written into the superblock (block 0) at format time and read back at mount so one
+// binary can handle images with different block sizes and block counts
+//
+// disk layout:
+//	block 0										superblock (this record)
+//	blocks 1 .. numBitmapBlocks					free block bitmap
+//	next numDescriptorBlocks blocks				file descriptors (see DescriptorTable), the first of them a
+//												free-descriptor bitmap block
+//	next numJournalBlocks blocks				metadata journal (see Journal), if any
+//	block numReservedBlocks						first directory data block, the start of the root of the
+//												directory tree (see DirectoryTree)
+//	remaining blocks							file data
+public final class DiskGeometry implements Serializable {
+
+	private static final long serialVersionUID = 4790418937916364457L;
+
+	public static final int MAGIC = 0x4c444b31; // "LDK1"
+	// 2: descriptors carry indirect block indexes, 3: journal blocks, 4: growable descriptor table,
+	// 5: B+tree directory
+	public static final int VERSION = 5;
+	public static final int SUPERBLOCK_INDEX = 0;
+	public static final int FIRST_BITMAP_BLOCK = 1;
+	public static final int SUPERBLOCK_SIZE = 8 * FileSystem.INT_SIZE; // magic, version + 6 geometry fields
+
+	public static final int DEFAULT_BLOCK_LENGTH = 64;
+	public static final int DEFAULT_NUM_BLOCKS = 64;
+	public static final int DEFAULT_DISK_MAP_SIZE = 3;
+	public static final int DEFAULT_NUM_DESCRIPTOR_BLOCKS = 12;
+	public static final int DEFAULT_OFT_SIZE = 4; // of the default disk
+	public static final int MAX_OFT_SIZE = 1 << 24; // leaves 7 bits of every handle for its generation
+	// devices formatted with the default settings allow one open file per block, within these bounds; the oft
+	// grows as files are opened, so a large bound costs nothing until it is used
+	public static final int MIN_DEVICE_OFT_SIZE = 64;
+	public static final int MAX_DEVICE_OFT_SIZE = 1 << 16;
+	// disks of at least MIN_JOURNALED_BLOCKS blocks get a journal of 1/64 of their blocks, within these bounds
+	public static final int MIN_JOURNALED_BLOCKS = 1024;
+	public static final int MIN_JOURNAL_BLOCKS = 16;
+	public static final int MAX_JOURNAL_BLOCKS = 16384;
+
+	public static final DiskGeometry DEFAULT = new DiskGeometry(DEFAULT_BLOCK_LENGTH, DEFAULT_NUM_BLOCKS,
+			DEFAULT_DISK_MAP_SIZE, DEFAULT_NUM_DESCRIPTOR_BLOCKS, DEFAULT_OFT_SIZE);
+
+	private final int blockLength;
+	private final int numBlocks;
+	private final int diskMapSize;
+	private final int numDescriptorBlocks;
+	private final int oftSize;
+	private final int numJournalBlocks;
+
+	// geometry with the default journal size for the disk size
+	public DiskGeometry(int blockLength, int numBlocks, int diskMapSize, int numDescriptorBlocks, int oftSize)
+	{
+		this(blockLength, numBlocks, diskMapSize, numDescriptorBlocks, oftSize, DiskGeometry.defaultJournalBlocks(numBlocks));
+	}
+
+	// numJournalBlocks: 0 for no journal, otherwise at least 2 (the journal header and one log block)
+	public DiskGeometry(int blockLength, int numBlocks, int diskMapSize, int numDescriptorBlocks, int oftSize,
+			int numJournalBlocks)
+	{
+		this.blockLength = blockLength;
+		this.numBlocks = numBlocks;
+		this.diskMapSize = diskMapSize;
+		this.numDescriptorBlocks = numDescriptorBlocks;
+		this.oftSize = oftSize;
+		this.numJournalBlocks = numJournalBlocks;
+
+		if (blockLength < SUPERBLOCK_SIZE || blockLength % FileSystem.INT_SIZE != 0)
+			throw new IllegalArgumentException("invalid block length: " + blockLength);
+		if (diskMapSize < 1 || this.getDescriptorsPerBlock() < 1)
+			throw new IllegalArgumentException("invalid disk map size: " + diskMapSize);
+		if (numDescriptorBlocks < 1 || this.getNumDescriptors() < 2 || oftSize < 2 || oftSize > MAX_OFT_SIZE) // oft entry 0 is the directory
+			throw new IllegalArgumentException("invalid descriptor block count or oft size");
+		if (numJournalBlocks < 0 || numJournalBlocks == 1)
+			throw new IllegalArgumentException("invalid journal block count: " + numJournalBlocks);
+		if (numBlocks <= this.getFirstDataBlock())
+			throw new IllegalArgumentException("disk of " + numBlocks + " blocks has no room for data blocks");
+	}
+
+	// geometry for a device of the given size with default descriptor settings and an oft sized for the device
+	public static DiskGeometry forDevice(BlockDevice device)
+	{
+		return new DiskGeometry(device.getBlockLength(), device.getNumBlocks(), DEFAULT_DISK_MAP_SIZE,
+				DEFAULT_NUM_DESCRIPTOR_BLOCKS, DiskGeometry.defaultOftSize(device.getNumBlocks()));
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	public int getDiskMapSize() {
+		return diskMapSize;
+	}
+
+	public int getNumDescriptorBlocks() {
+		return numDescriptorBlocks;
+	}
+
+	// most files open at once, the directory included
+	public int getOftSize() {
+		return oftSize;
+	}
+
+	public int getNumJournalBlocks() {
+		return numJournalBlocks;
+	}
+
+	public boolean hasJournal() {
+		return this.numJournalBlocks > 0;
+	}
+
+	static int defaultJournalBlocks(int numBlocks)
+	{
+		if (numBlocks < MIN_JOURNALED_BLOCKS)
+			return 0; // small disks have no room to spare
+		return Math.max(MIN_JOURNAL_BLOCKS, Math.min(numBlocks / 64, MAX_JOURNAL_BLOCKS));
+	}
+
+	static int defaultOftSize(int numBlocks)
+	{
+		return Math.max(MIN_DEVICE_OFT_SIZE, Math.min(numBlocks, MAX_DEVICE_OFT_SIZE));
+	}
+
+	public int getDescriptorSize()
+	{
+		return FileSystem.INT_SIZE * (1 + this.diskMapSize + Descriptor.NUM_INDIRECT_LEVELS); // len + disk map
+	}
+
+	public int getDescriptorsPerBlock()
+	{
+		return this.blockLength / this.getDescriptorSize();
+	}
+
+	// descriptors the reserved descriptor blocks hold; the descriptor table grows past them as files are created
+	public int getNumDescriptors()
+	{
+		return DescriptorTable.capacityOf(this, this.numDescriptorBlocks);
+	}
+
+	public int getNumBitmapBlocks()
+	{
+		int bitsPerBlock = this.blockLength * 8;
+		return (this.numBlocks + bitsPerBlock - 1) / bitsPerBlock;
+	}
+
+	public int getFirstDescriptorBlock()
+	{
+		return FIRST_BITMAP_BLOCK + this.getNumBitmapBlocks();
+	}
+
+	public int getFirstJournalBlock()
+	{
+		return this.getFirstDescriptorBlock() + this.numDescriptorBlocks;
+	}
+
+	public int getNumReservedBlocks()
+	{
+		return this.getFirstJournalBlock() + this.numJournalBlocks; // superblock + bitmap + descriptors + journal
+	}
+
+	public int getDirectoryBlock()
+	{
+		return this.getNumReservedBlocks();
+	}
+
+	public int getFirstDataBlock()
+	{
+		return this.getDirectoryBlock() + 1;
+	}
+
+	public int getPointersPerBlock()
+	{
+		return this.blockLength / FileSystem.INT_SIZE; // block indexes per indirect block
+	}
+
+	// direct blocks plus the blocks reachable through single, double and triple indirect blocks,
+	// capped so that the file length still fits an int
+	public int getMaxFileLen()
+	{
+		long blocks = this.diskMapSize;
+		long span = 1;
+		for (int level = 1; level <= Descriptor.NUM_INDIRECT_LEVELS; level++)
+		{
+			span *= this.getPointersPerBlock();
+			blocks += span;
+		}
+		return (int) Math.min(blocks * this.blockLength, Integer.MAX_VALUE);
+	}
+
+	public byte[] toBlock()
+	{
+		ByteBuffer b = ByteBuffer.allocate(this.blockLength);
+		b.putInt(MAGIC).putInt(VERSION);
+		b.putInt(this.blockLength).putInt(this.numBlocks).putInt(this.diskMapSize);
+		b.putInt(this.numDescriptorBlocks).putInt(this.oftSize).putInt(this.numJournalBlocks);
+		return b.array();
+	}
+
+	// returns null if the block does not hold a valid superblock
+	public static DiskGeometry fromBlock(byte[] block)
+	{
+		if (block.length < SUPERBLOCK_SIZE)
+			return null;
+		ByteBuffer b = ByteBuffer.wrap(block);
+		if (b.getInt() != MAGIC || b.getInt() != VERSION)
+			return null;
+		try {
+			return new DiskGeometry(b.getInt(), b.getInt(), b.getInt(), b.getInt(), b.getInt(), b.getInt());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "block length: " + this.blockLength + "  blocks: " + this.numBlocks + "  disk map: " + this.diskMapSize
+				+ "  descriptor blocks: " + this.numDescriptorBlocks + "  oft: " + this.oftSize
+				+ "  journal blocks: " + this.numJournalBlocks;
+	}
+}
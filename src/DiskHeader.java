@@ -1,156 +1,303 @@
 package filesystem;
 
-import java.io.File;
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.BitSet;
 
 public class DiskHeader implements Serializable {
 	private static final long serialVersionUID = 5038365766101218479L;
 
-	private BitSet BM;
-	private Descriptor[] descriptors;
+	private DiskGeometry geometry;
+	private BlockAllocator BM;
+	// the descriptors live on disk (see DescriptorTable); saving the header saves the bitmap only
+	private transient DescriptorTable descriptors;
+	private transient Journal journal; // logs bitmap and descriptor changes, if the disk has a journal
+	private transient FileSystemMetrics metrics; // counts allocator searches, if set
 
 
 	public DiskHeader(BitSet BM, Descriptor[] descriptors) {
-		this.BM = BM;
-		this.descriptors = descriptors;
+		this(DiskGeometry.DEFAULT, BM, descriptors);
+	}
+
+	// descriptor 1 is the descriptor table's own, and descriptors past the reserved descriptor blocks do not fit;
+	// both are left out
+	public DiskHeader(DiskGeometry geometry, BitSet BM, Descriptor[] descriptors) {
+		this.geometry = geometry;
+		this.BM = BlockAllocator.fromBitSet(BM, geometry.getNumBlocks(), geometry.getFirstDataBlock());
+		this.descriptors = DescriptorTable.format(this);
+		this.descriptors.setLen(DescriptorTable.TABLE_FILE, 0);
+		byte[] record = new byte[geometry.getDescriptorSize()];
+		for(int i = 0; i < Math.min(descriptors.length, geometry.getNumDescriptors()); i++)
+		{
+			if (i == DescriptorTable.TABLE_FILE)
+				continue;
+			descriptors[i].writeTo(record, 0);
+			this.descriptors.readRecord(i, record, 0);
+		}
 	}
 
 	public DiskHeader()
 	{
-		this.BM = new BitSet(FileSystem.NUM_BLOCKS);
-		this.descriptors = new Descriptor[24];  // 6 blocks for descriptors = 24 descriptors (1 descriptor = 16 bytes, 1 block = 64 bytes)
+		this(DiskGeometry.DEFAULT);
+	}
+
+	public DiskHeader(DiskGeometry geometry)
+	{
+		this.geometry = geometry;
+		this.BM = new BlockAllocator(geometry.getNumBlocks(), geometry.getFirstDataBlock());
+		// e.g. 64 byte blocks: 12 blocks for descriptors = a bitmap block and 22 descriptors (1 descriptor = 28
+		// bytes, 2 per block) before the table grows
+		this.descriptors = DescriptorTable.format(this);
+
+		this.BM.set(0, geometry.getNumReservedBlocks()); // superblock, bitmap, descriptor and journal blocks
 
-		this.BM.set(0, 7); // disk blocks 0, 1, 2, 3, 4, 5, 6 reserved for bitmap and descriptors
-		
-		for(int i = 0; i < this.descriptors.length; i++)
+		this.descriptors.setLen(0, 0); // initialize directory descriptor
+		// allocate the first block after the reserved blocks for directory data
+		this.descriptors.setMapEntry(0, 0, geometry.getDirectoryBlock());
+		this.BM.set(geometry.getDirectoryBlock());
+		this.descriptors.setLen(DescriptorTable.TABLE_FILE, 0); // no blocks past the reserved ones yet
+	}
+
+	// rebuilds the header from the bitmap blocks of a formatted disk; descriptors are read as they are used
+	public static DiskHeader loadFromDisk(DiskGeometry geometry, LDisk disk, BlockCache cache)
+	{
+		byte[] block = new byte[geometry.getBlockLength()];
+		byte[] bitmap = new byte[geometry.getNumBitmapBlocks() * geometry.getBlockLength()];
+		for(int i = 0; i < geometry.getNumBitmapBlocks(); i++)
 		{
-			this.descriptors[i] = new Descriptor();
+			disk.readBlock(DiskGeometry.FIRST_BITMAP_BLOCK + i, block);
+			System.arraycopy(block, 0, bitmap, i * block.length, block.length);
 		}
-		this.descriptors[0].createNewDescriptor(); // initialize directory descriptor
-		this.descriptors[0].assignBlockToDescriptor(0,7); // allocate 7th disk block for directory data
+		DiskHeader header = new DiskHeader(geometry,
+				BlockAllocator.fromBitSet(BitSet.valueOf(bitmap), geometry.getNumBlocks(), geometry.getFirstDataBlock()));
+		header.attach(disk, cache);
+		return header;
+	}
+
+	private DiskHeader(DiskGeometry geometry, BlockAllocator BM)
+	{
+		this.geometry = geometry;
+		this.BM = BM;
+	}
+
+	// ties the descriptor table to the disk it is stored on; a loaded or deserialized header reads it from there
+	void attach(LDisk disk, BlockCache cache)
+	{
+		if (this.descriptors == null)
+			this.descriptors = DescriptorTable.open(this);
+		this.descriptors.attach(disk, cache);
+	}
+
+	public DiskGeometry getGeometry() {
+		return geometry;
+	}
+
+	// descriptors in the table, used or free; the table grows when they are all used
+	public int getNumDescriptors()
+	{
+		return this.descriptors.getCapacity();
 	}
 
+	// a copy of a descriptor
 	public Descriptor getDescriptor(int descriptorIndex)
 	{
-		return this.descriptors[descriptorIndex];
+		byte[] record = new byte[this.geometry.getDescriptorSize()];
+		this.descriptors.writeRecord(descriptorIndex, record, 0);
+		Descriptor descriptor = new Descriptor(this.geometry.getDiskMapSize());
+		descriptor.readFrom(record, 0);
+		return descriptor;
+	}
+
+	// -1: the descriptor is free
+	public int getLen(int descriptorIndex)
+	{
+		return this.descriptors.getLen(descriptorIndex);
+	}
+
+	public void setLen(int descriptorIndex, int len)
+	{
+		this.descriptors.setLen(descriptorIndex, len);
+	}
+
+	// diskMapIndex: 0, ..., diskMapSize - 1; -1 if the block is not allocated
+	public int getBlockIndex(int descriptorIndex, int diskMapIndex)
+	{
+		return this.descriptors.getMapEntry(descriptorIndex, diskMapIndex);
+	}
+
+	public void setBlockIndex(int descriptorIndex, int diskMapIndex, int blockIndex)
+	{
+		this.descriptors.setMapEntry(descriptorIndex, diskMapIndex, blockIndex);
+	}
+
+	// level: 0 = single, 1 = double, 2 = triple indirect
+	public int getIndirectBlockIndex(int descriptorIndex, int level)
+	{
+		return this.descriptors.getMapEntry(descriptorIndex, this.geometry.getDiskMapSize() + level);
+	}
+
+	public void setIndirectBlockIndex(int descriptorIndex, int level, int blockIndex)
+	{
+		this.descriptors.setMapEntry(descriptorIndex, this.geometry.getDiskMapSize() + level, blockIndex);
+	}
+
+	public void clearDiskMap(int descriptorIndex)
+	{
+		this.descriptors.clearMap(descriptorIndex);
+	}
+
+	// the on-disk record of a descriptor, as logged by the journal
+	void writeDescriptor(int descriptorIndex, byte[] dest, int offset)
+	{
+		this.descriptors.writeRecord(descriptorIndex, dest, offset);
+	}
+
+	void readDescriptor(int descriptorIndex, byte[] src, int offset)
+	{
+		this.descriptors.readRecord(descriptorIndex, src, offset);
+	}
+
+	Journal getJournal() {
+		return journal;
+	}
+
+	void setJournal(Journal journal) {
+		this.journal = journal;
 	}
 
+	void setMetrics(FileSystemMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private void countSearch()
+	{
+		if (this.metrics != null)
+			this.metrics.allocatorSearch();
+	}
+
+	// bitmap changes are logged while holding the allocator, so the log orders them as they were made
+
 	public void setBit(int diskBlockIndex)
 	{
-		this.BM.set(diskBlockIndex);
+		this.setBit(diskBlockIndex, diskBlockIndex + 1);
 	}
 
 	public void setBit(int fromIndex, int toIndex)
 	{
-		this.BM.set(fromIndex, toIndex);
+		synchronized (this.BM) {
+			this.BM.set(fromIndex, toIndex);
+			this.logBitmap(true, fromIndex, toIndex);
+		}
 	}
 
 	public void clearBit(int diskBlockIndex)
 	{
-		this.BM.clear(diskBlockIndex);
+		this.clearBit(diskBlockIndex, diskBlockIndex + 1);
 	}
 
 	public void clearBit(int fromIndex, int toIndex)
 	{
-		this.BM.clear(fromIndex, toIndex);
+		synchronized (this.BM) {
+			this.BM.clear(fromIndex, toIndex);
+			this.logBitmap(false, fromIndex, toIndex);
+		}
+	}
+
+	private void logBitmap(boolean set, int fromIndex, int toIndex)
+	{
+		if (this.journal != null && fromIndex >= 0)
+			this.journal.logBitmap(set, fromIndex, toIndex);
+	}
+
+	// to be called after every change to a descriptor
+	public void descriptorChanged(int descriptorIndex)
+	{
+		if (this.journal != null)
+			this.journal.logDescriptor(descriptorIndex, this);
 	}
 
 	public int getNextFreeDataBlockIndex()
 	{
-		// NUM_DESCRIPTOR_BLOCKS = 6;  next clear bit from 8 (inclusive)
-		// start with 8 as 0-6 reserved for bitmap & header and the first data block after the last descriptor block
-		// will always be the first data block of directory
-		int returnVal = this.BM.nextClearBit(FileSystem.NUM_DESCRIPTOR_BLOCKS + 2);
-		if (returnVal >= FileSystem.BLOCK_LENGTH)
-			// bitset grows to 128 bits if all 64 bits are set when nextClearBit is called
-			// but the bitmap should only have 64 bits so return -1 to indicate all disk blocks are occupied
-			return -1;
-		return returnVal;
+		// search after the reserved blocks and the first directory data block, which always directly
+		// follows the last descriptor block; -1 indicates all disk blocks are occupied
+		this.countSearch();
+		return this.BM.nextFree(this.geometry.getFirstDataBlock());
 	}
 
-	public int getNextFreeDescriptorIndex()
+	// allocates a data block as close after hint as possible (-1: no preference); -1 if the disk is full
+	public int allocateDataBlock(int hint)
 	{
-		for(int i = 1; i < this.descriptors.length; i++) // start from descriptor 1 as descriptor 0 is reserved for directory
-		{
-			if(this.descriptors[i].getLen() == -1)
-				return i;
+		this.countSearch();
+		synchronized (this.BM) {
+			int blockIndex = this.BM.allocate(hint);
+			this.logBitmap(true, blockIndex, blockIndex + 1);
+			return blockIndex;
 		}
-		return -1; // -1: no free descriptor found
 	}
-	
-	public byte[] bitmapToDiskBlock()
-	{	
-		return Arrays.copyOf(this.BM.toByteArray(), FileSystem.BLOCK_LENGTH); // 64 block size
+
+	// allocates count contiguous data blocks, at hint if possible; -1 if there is no long enough free run
+	public int allocateDataExtent(int hint, int count)
+	{
+		this.countSearch();
+		synchronized (this.BM) {
+			int start = this.BM.allocateExtent(hint, count);
+			this.logBitmap(true, start, start + count);
+			return start;
+		}
 	}
 
-	public Descriptor[] getDescriptors() {
-		return descriptors;
+	// blocks in use, reserved ones included
+	public int getNumUsedBlocks()
+	{
+		return this.BM.countUsed();
+	}
+
+	public BlockAllocator getAllocator() {
+		return BM;
 	}
 
-	public Descriptor[] getDescriptorBlock(int descBlockIndex)
+	// a free descriptor, found through the free-descriptor bitmap; the table grows if they are all used.
+	// -1 if the disk is full. Descriptor 0 is the directory and descriptor 1 the table itself
+	public int getNextFreeDescriptorIndex()
 	{
-		Descriptor[] ret = new Descriptor[4]; // 1 disk block has 4 descriptors
-		int fromIndex = (0 + descBlockIndex) * 4;
-		int toIndex = fromIndex + 4;
-		for(int i = 0, j = fromIndex; j < toIndex; i++, j++)
-			ret[i] = this.descriptors[j];
-		return ret;
+		return this.descriptors.findFree();
+	}
+	
+	public byte[] bitmapToDiskBlock(int bitmapBlockIndex)
+	// bitmapBlockIndex: [0, numBitmapBlocks); returns the part of the bitmap stored in that block
+	{
+		return this.bitmapToDiskBlock(bitmapBlockIndex, new byte[this.geometry.getBlockLength()]);
 	}
 
-	public byte[] descriptorBlockToByteArray(int descBlockIndex)
-	// descBlock: [0, 5]; getDescriptorBlock(0) would return descriptors 0,1,2,3 as
-	// a byte array
+	public byte[] bitmapToDiskBlock(int bitmapBlockIndex, byte[] block)
 	{
-		byte[] bA = new byte[FileSystem.BLOCK_LENGTH];
-		int fromIndex = (0 + descBlockIndex) * 4;
-		int toIndex = fromIndex + 4;
-		for(int i = fromIndex, offset = 0; i < toIndex; i++, offset+=16)
-		{
-			FileSystem.copyArray(this.descriptors[i].toByteArray(), 0, bA, offset);
-		}
-		return bA;
+		this.BM.toByteArray(bitmapBlockIndex * this.geometry.getBlockLength(), block);
+		return block;
 	}
 
-	public void diskBlockToDescriptors(int descBlockIndex, byte[] block)
+	// writes the changed blocks of the descriptor table home
+	public void writeDescriptorTable()
 	{
-		int fromIndex = (0 + descBlockIndex) * 4;
-		int toIndex = fromIndex + 4;
-		for(int i = fromIndex, offset = 0; i < toIndex; i++, offset+=16)
-		{
-			this.descriptors[i].loadFromByteArray(Arrays.copyOfRange(block, offset, offset + 16)); // 16: size of descriptor in bytes
-		}
+		this.descriptors.writeBack();
 	}
 
 
 	public void printDescriptors()
 	{
-		for(int i =0; i < this.descriptors.length; i++)
-		{
-			if(i % 4 == 0)
-				System.out.println("---------------------------------------------------------");
-			System.out.println("descriptor " + i + ": " + this.descriptors[i]);
-		}
+		this.printDescriptors(0, this.getNumDescriptors());
 	}
 
 	public void printDescriptors(int toIndex)
 	{
-		for(int i = 0; i < toIndex; i++)
-		{
-			if(i % 4 == 0)
-				System.out.println("---------------------------------------------------------");
-			System.out.println("descriptor " + i + ": " + this.descriptors[i]);
-		}
+		this.printDescriptors(0, toIndex);
 	}
 
 	public void printDescriptors(int fromIndex, int toIndex)
 	{
 		for(int i = fromIndex; i < toIndex; i++)
 		{
-			if(i % 4 == 0)
+			if(i % this.geometry.getDescriptorsPerBlock() == 0)
 				System.out.println("---------------------------------------------------------");
-			System.out.println("descriptor " + i + ": " + this.descriptors[i]);
+			System.out.println("descriptor " + i + ": " + this.getDescriptor(i));
 		}
 	}
 
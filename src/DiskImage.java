@@ -0,0 +1,289 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+// binary disk images: a base image holds every block of a disk, a delta image only the blocks written since
+// the image before it. Images of one chain share a chain id and carry their position in it (0 for the base),
+// so a base and its deltas can only be applied in order.
+//
+// image layout (big-endian):
+//	header			MAGIC, VERSION, chain id (long), generation, block length, block count, run count
+//	run table		first block and block count of each run of consecutive blocks in the image
+//	block data		the blocks of each run, in run order
+//
+// a compressed image (COMPRESSED_VERSION) splits the runs into extents of at most TRANSFER_BLOCKS blocks and
+// keeps each one compressed with Lz, or as it is if that is no shorter:
+//	header			as above, the extent count in place of the run count
+//	extent table	first block, block count and stored length of each extent
+//	block data		the stored extents, in extent order
+//
+// blocks are moved with positional FileChannel transfers of up to TRANSFER_BLOCKS blocks at a time
+public final class DiskImage {
+
+	public static final int MAGIC = 0x4c444931; // "LDI1"
+	public static final int VERSION = 1;
+	public static final int COMPRESSED_VERSION = 2;
+	private static final int HEADER_SIZE = 8 * FileSystem.INT_SIZE; // the chain id takes two ints
+	private static final int RUN_SIZE = 2 * FileSystem.INT_SIZE;
+	private static final int EXTENT_SIZE = 3 * FileSystem.INT_SIZE;
+	private static final int TRANSFER_BLOCKS = 256;
+
+	private final long chainId;
+	private final int generation;
+
+	private DiskImage(long chainId, int generation)
+	{
+		this.chainId = chainId;
+		this.generation = generation;
+	}
+
+	public long getChainId() {
+		return chainId;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	// writes the blocks set in blocks (every block for a base image) to a new image file, a compressed one if
+	// compress is set
+	public static DiskImage write(LDisk disk, Path path, long chainId, int generation, BitSet blocks, boolean compress)
+			throws IOException
+	{
+		if (compress)
+			return DiskImage.writeCompressed(disk, path, chainId, generation, blocks);
+		BlockDevice device = disk.getDevice();
+		int numRuns = 0;
+		for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(blocks.nextClearBit(i)))
+			numRuns++;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + numRuns * RUN_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(chainId).putInt(generation);
+		header.putInt(device.getBlockLength()).putInt(device.getNumBlocks()).putInt(numRuns);
+		for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(blocks.nextClearBit(i)))
+			header.putInt(i).putInt(blocks.nextClearBit(i) - i);
+		header.flip();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			long pos = DiskImage.writeFully(channel, header, 0);
+			byte[] chunk = new byte[TRANSFER_BLOCKS * device.getBlockLength()];
+			for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(blocks.nextClearBit(i)))
+			{
+				int end = blocks.nextClearBit(i);
+				for (int first = i; first < end; first += TRANSFER_BLOCKS)
+				{
+					int count = Math.min(TRANSFER_BLOCKS, end - first);
+					for (int j = 0; j < count; j++)
+						disk.readBlock(first + j, chunk, j * device.getBlockLength());
+					pos = DiskImage.writeFully(channel, ByteBuffer.wrap(chunk, 0, count * device.getBlockLength()), pos);
+				}
+			}
+			channel.force(true);
+		}
+		return new DiskImage(chainId, generation);
+	}
+
+	// the stored lengths are known only once the extents are compressed, so the extent table is written last, in
+	// the room left for it ahead of them
+	private static DiskImage writeCompressed(LDisk disk, Path path, long chainId, int generation, BitSet blocks)
+			throws IOException
+	{
+		BlockDevice device = disk.getDevice();
+		int numExtents = 0;
+		for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(blocks.nextClearBit(i)))
+			numExtents += (blocks.nextClearBit(i) - i + TRANSFER_BLOCKS - 1) / TRANSFER_BLOCKS;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + numExtents * EXTENT_SIZE);
+		header.putInt(MAGIC).putInt(COMPRESSED_VERSION).putLong(chainId).putInt(generation);
+		header.putInt(device.getBlockLength()).putInt(device.getNumBlocks()).putInt(numExtents);
+		long length = 0;
+		long storedLength = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			long pos = header.capacity();
+			byte[] chunk = new byte[TRANSFER_BLOCKS * device.getBlockLength()];
+			byte[] packed = new byte[chunk.length];
+			int[] table = new int[Lz.TABLE_SIZE];
+			for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(blocks.nextClearBit(i)))
+			{
+				int end = blocks.nextClearBit(i);
+				for (int first = i; first < end; first += TRANSFER_BLOCKS)
+				{
+					int count = Math.min(TRANSFER_BLOCKS, end - first);
+					int bytes = count * device.getBlockLength();
+					for (int j = 0; j < count; j++)
+						disk.readBlock(first + j, chunk, j * device.getBlockLength());
+					int stored = Lz.compress(chunk, 0, bytes, packed, 0, bytes - 1, table);
+					ByteBuffer data = stored < 0 ? ByteBuffer.wrap(chunk, 0, bytes) : ByteBuffer.wrap(packed, 0, stored);
+					header.putInt(first).putInt(count).putInt(data.remaining());
+					length += bytes;
+					storedLength += data.remaining();
+					pos = DiskImage.writeFully(channel, data, pos);
+				}
+			}
+			header.flip();
+			DiskImage.writeFully(channel, header, 0);
+			channel.force(true);
+		}
+		disk.countCompressed(length, storedLength);
+		return new DiskImage(chainId, generation);
+	}
+
+	// copies the blocks of an image onto device; previous is the image applied before it (null for a base image).
+	// Throws IOException if the file is not an image, does not fit the device or is out of chain order
+	public static DiskImage apply(BlockDevice device, Path path, DiskImage previous) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			DiskImage.readFully(channel, header, 0);
+			header.flip();
+			int version = header.getInt() == MAGIC ? header.getInt() : -1;
+			if (version != VERSION && version != COMPRESSED_VERSION)
+				throw new IOException(path + " is not a disk image");
+			DiskImage image = new DiskImage(header.getLong(), header.getInt());
+			if (header.getInt() != device.getBlockLength() || header.getInt() != device.getNumBlocks())
+				throw new IOException(path + " does not match the disk geometry");
+			if (previous == null ? image.generation != 0
+					: image.chainId != previous.chainId || image.generation != previous.generation + 1)
+				throw new IOException(path + " does not follow the previous image");
+
+			int numRuns = DiskImage.readCount(header, path, channel, version == COMPRESSED_VERSION ? EXTENT_SIZE : RUN_SIZE,
+					device.getNumBlocks());
+			if (version == COMPRESSED_VERSION)
+			{
+				DiskImage.applyCompressed(device, path, channel, numRuns);
+				return image;
+			}
+			ByteBuffer runs = ByteBuffer.allocate(numRuns * RUN_SIZE);
+			long pos = DiskImage.readFully(channel, runs, HEADER_SIZE);
+			runs.flip();
+			byte[] chunk = new byte[TRANSFER_BLOCKS * device.getBlockLength()];
+			for (int run = 0; run < numRuns; run++)
+			{
+				int start = runs.getInt();
+				int end = start + runs.getInt();
+				if (start < 0 || end > device.getNumBlocks() || end < start)
+					throw new IOException(path + " is corrupt");
+				for (int first = start; first < end; first += TRANSFER_BLOCKS)
+				{
+					int count = Math.min(TRANSFER_BLOCKS, end - first);
+					pos = DiskImage.readFully(channel, ByteBuffer.wrap(chunk, 0, count * device.getBlockLength()), pos);
+					for (int j = 0; j < count; j++)
+						device.writeBlock(first + j, chunk, j * device.getBlockLength());
+				}
+			}
+			return image;
+		}
+	}
+
+	private static void applyCompressed(BlockDevice device, Path path, FileChannel channel, int numExtents)
+			throws IOException
+	{
+		ByteBuffer extents = ByteBuffer.allocate(numExtents * EXTENT_SIZE);
+		long pos = DiskImage.readFully(channel, extents, HEADER_SIZE);
+		extents.flip();
+		byte[] chunk = new byte[TRANSFER_BLOCKS * device.getBlockLength()];
+		byte[] packed = new byte[chunk.length];
+		for (int extent = 0; extent < numExtents; extent++)
+		{
+			int first = extents.getInt();
+			int count = extents.getInt();
+			int stored = extents.getInt();
+			int bytes = count * device.getBlockLength();
+			if (first < 0 || count <= 0 || count > TRANSFER_BLOCKS || first > device.getNumBlocks() - count
+					|| stored <= 0 || stored > bytes)
+				throw new IOException(path + " is corrupt");
+			if (stored == bytes)
+				pos = DiskImage.readFully(channel, ByteBuffer.wrap(chunk, 0, bytes), pos);
+			else
+			{
+				pos = DiskImage.readFully(channel, ByteBuffer.wrap(packed, 0, stored), pos);
+				if (Lz.decompress(packed, 0, stored, chunk, 0, bytes) != bytes)
+					throw new IOException(path + " is corrupt");
+			}
+			for (int j = 0; j < count; j++)
+				device.writeBlock(first + j, chunk, j * device.getBlockLength());
+		}
+	}
+
+	// the run or extent count at the position of header: each run or extent has an entry in the table after the
+	// header and at least one block of its own, so there are no more than the file and the device have room for
+	private static int readCount(ByteBuffer header, Path path, FileChannel channel, int entrySize, int numBlocks)
+			throws IOException
+	{
+		int count = header.getInt();
+		if (count < 0 || count > numBlocks
+				|| (long) count * entrySize > Math.min(channel.size() - HEADER_SIZE, Integer.MAX_VALUE))
+			throw new IOException(path + " is corrupt");
+		return count;
+	}
+
+	// reads the block length and block count from the header of a base image, checked before a device is built
+	// for them: a base image holds every block of the disk, as it is, or compressed in extents that each take an
+	// entry in the extent table and no less than an Lz.MAX_RATIO part of their blocks
+	public static int[] readGeometry(Path path) throws IOException
+	{
+		ByteBuffer header = DiskImage.readHeader(path);
+		boolean compressed = header.getInt(FileSystem.INT_SIZE) == COMPRESSED_VERSION;
+		header.position(header.position() + 12); // chain id, generation
+		int blockLength = header.getInt();
+		int numBlocks = header.getInt();
+		long bytes = (long) numBlocks * blockLength;
+		long minLength = !compressed ? bytes
+				: ((long) numBlocks + TRANSFER_BLOCKS - 1) / TRANSFER_BLOCKS * EXTENT_SIZE + bytes / Lz.MAX_RATIO;
+		if (blockLength < DiskGeometry.SUPERBLOCK_SIZE || blockLength % FileSystem.INT_SIZE != 0 || numBlocks <= 0
+				|| HEADER_SIZE + minLength > Files.size(path))
+			throw new IOException(path + " is corrupt");
+		return new int[] {blockLength, numBlocks};
+	}
+
+	// whether an image was written compressed
+	public static boolean isCompressed(Path path) throws IOException
+	{
+		return DiskImage.readHeader(path).getInt(FileSystem.INT_SIZE) == COMPRESSED_VERSION;
+	}
+
+	// the header of an image, positioned after the version
+	private static ByteBuffer readHeader(Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			DiskImage.readFully(channel, header, 0);
+			header.flip();
+			int version = header.getInt() == MAGIC ? header.getInt() : -1;
+			if (version != VERSION && version != COMPRESSED_VERSION)
+				throw new IOException(path + " is not a disk image");
+			return header;
+		}
+	}
+
+	private static long writeFully(FileChannel channel, ByteBuffer src, long pos) throws IOException
+	{
+		while (src.hasRemaining())
+			pos += channel.write(src, pos);
+		return pos;
+	}
+
+	private static long readFully(FileChannel channel, ByteBuffer dest, long pos) throws IOException
+	{
+		while (dest.hasRemaining())
+		{
+			int n = channel.read(dest, pos);
+			if (n < 0)
+				throw new IOException("unexpected end of image");
+			pos += n;
+		}
+		return pos;
+	}
+}
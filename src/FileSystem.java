@@ -1,58 +1,167 @@
 package filesystem;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FileSystem implements Serializable {
 
 
 	private static final long serialVersionUID = -714735507960425530L;
 
-	public static final int BLOCK_LENGTH = 64;
-	public static final int NUM_BLOCKS = 64;
+	// block size, block count, disk map size, descriptor blocks and oft size are part of the
+	// disk geometry (see DiskGeometry), which is stored in the superblock of every image
 	public static final int INT_SIZE = 4; // int size: 4 bytes
-	public static final int OFT_SIZE = 4;
-	public static final int DISK_MAP_SIZE = 3;
-	public static final int DIRECTORY_SLOT_SIZE = 8; // slot size in bytes; 4 bytes for file name, 4 bytes for descriptor index
-	public static final int FILE_NAME_SIZE = 4;
-	public static final int MAX_FILE_LEN = BLOCK_LENGTH * DISK_MAP_SIZE; // = 192 Bytes
-	public static final int NUM_DIRECTORY_SLOTS = MAX_FILE_LEN / DIRECTORY_SLOT_SIZE; //192 / 8 = 24 entries/descriptors
-	public static final int NUM_DESCRIPTOR_BLOCKS = 6;
-	public static final int NUM_RESERVED_BLOCKS = NUM_DESCRIPTOR_BLOCKS + 1; // + 1 for bitmap
+	private static final int NUM_DESCRIPTOR_LOCKS = 64; // power of two
+	private static final int INITIAL_OFT_CAPACITY = 16; // the oft grows by doubling up to the oft size of the geometry
+	private static final int DENTRY_CACHE_SIZE = 4096; // power of two
+	// read-ahead window of a sequential reader, in blocks; at most a quarter of the cache
+	private static final int READ_AHEAD_MIN = 4;
+	private static final int READ_AHEAD_MAX = 64;
+	// blocks an append takes ahead of itself in preallocation mode: as many as the file has, up to this many
+	private static final int PREALLOCATE_MAX = 64;
 
 
 	// FileSystem member variables
+	private DiskGeometry geometry;
 	private LDisk disk;
 	private DiskHeader header;
-	private OFTEntry[] OFT;
-
-
+	private volatile OFTEntry[] OFT; // replaced by a larger copy when it grows
+	private int cacheCapacity = BlockCache.DEFAULT_CAPACITY;
+	private transient BlockCache cache; // shared by all oft entries; created whenever a disk is attached
+	// the directory files, searched in place, and the names recently looked up in them; created whenever a disk
+	// is attached
+	private transient DirectoryTree directory;
+	private transient DentryCache dentries;
+	private transient Journal journal; // null if the disk has no journal blocks
+	private transient DiskImage lastImage; // image the next delta builds on; null until a base is saved or restored
+	private transient BlockMap releaseMap; // frees the blocks of destroyed files; created with directory
+	// a bitmap block being written home and the block on disk it replaces; sized to the disk by writeHeaderToDisk
+	private transient byte[] bitmapBlock;
+	private transient byte[] bitmapOnDisk;
+
+	// a handle is an oft slot in its low handleSlotBits bits and the slot's generation above them. The generation
+	// is bumped whenever the slot is freed, so a handle kept after its file was closed does not reach the next file
+	// opened in the slot; the first file opened in a slot gets a handle equal to the slot index.
+	// Free slots are kept on a stack and the open slots of every descriptor in a list linked through the entries,
+	// so open, close and finding the handles of a destroyed file take constant time. Guarded by oftLock.
+	private transient int handleSlotBits;
+	private transient int[] freeSlots;
+	private transient int numFreeSlots;
+	private transient int[] firstOpenSlot; // per descriptor, -1 if it is not open
+
+	// locking: every operation holds the mount lock shared, while formatting, restoring, saving and resizing the
+	// cache hold it exclusively. The directory file, its index and descriptor allocation are guarded by the
+	// directory lock; the data and length of any other file by its stripe of the descriptor locks, shared for
+	// reads and exclusive for writes; the cursor of an oft entry by the entry's lock; handing out oft entries
+	// by oftLock. The allocator and the block cache lock themselves. Locks are taken in this order.
+	private final transient ReentrantReadWriteLock mountLock = new ReentrantReadWriteLock();
+	private final transient ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
+	private final transient ReentrantReadWriteLock[] descriptorLocks = FileSystem.newLocks(NUM_DESCRIPTOR_LOCKS);
+	private final transient Object oftLock = new Object();
+	private transient volatile AsyncDispatcher async; // runs the asynchronous calls; created on first use
+	private transient volatile WriteBehind writeBehind; // the flusher while in write-behind mode, otherwise null
+	private transient volatile boolean preallocate; // appends allocate blocks ahead of themselves
+	private final transient FileSystemMetrics metrics = new FileSystemMetrics(this);
+
+
+	// an open file is a cursor on a descriptor; file data is read and written through the shared block cache,
+	// so every entry on the same file sees the same blocks, and the file length lives in the descriptor
 	class OFTEntry implements Serializable {
 		private static final long serialVersionUID = -425381669106789641L;
 
-		private byte[] rwBuffer;
 		private int currentPos;
-		private int descriptorIndex; // descriptor index in disk header
-		private int len; // file length in bytes
+		private volatile int descriptorIndex; // descriptor index in disk header
+		private volatile int generation; // generation of handles to this entry
+		private transient int nextOpenSlot = -1; // next and previous slot open on the same descriptor
+		private transient int previousOpenSlot = -1;
+		private transient BlockMap blockMap;
+		private final transient ReentrantLock lock = new ReentrantLock(); // guards the cursor
+		// read-ahead state of reads at the cursor, guarded by lock as well: where the last read ended, the window
+		// (0 while reads are not sequential) and the logical block up to which blocks were handed to the loader.
+		// The loader reads readAheadNext without the lock to skip blocks the reader has already passed
+		private transient volatile int readAheadNext;
+		private transient int readAheadWindow;
+		private transient int readAheadEnd;
+		private transient ReadAhead readAhead; // created on the first run of blocks handed to a loader
 
 		OFTEntry() {
-			this.rwBuffer = new byte[FileSystem.BLOCK_LENGTH];
 			this.currentPos = 0;
 			this.descriptorIndex = -1;
-			this.len = -1;
 		}
 
-		public OFTEntry(byte[] rwBuffer, int currentPos, int descriptorIndex, int len) {
-			this.rwBuffer = rwBuffer;
+		public OFTEntry(int currentPos, int descriptorIndex) {
 			this.currentPos = currentPos;
 			this.descriptorIndex = descriptorIndex;
-			this.len = len;
 		}
 
-		void modifyEntry(int dIndex, int fileLength, byte[] dataBlock) {
-			this.rwBuffer = dataBlock;
+		void modifyEntry(int dIndex) {
 			this.currentPos = 0;
-			this.descriptorIndex = dIndex;
-			this.len = fileLength;
+			this.readAheadNext = 0; // a first read from the start counts as sequential
+			this.readAheadWindow = 0;
+			this.readAheadEnd = 0;
+			if (this.blockMap == null)
+				this.blockMap = new BlockMap(FileSystem.this.geometry, FileSystem.this.cache, FileSystem.this.header, dIndex);
+			else
+				this.blockMap.reset(dIndex);
+			this.descriptorIndex = dIndex; // set last: a valid descriptor index publishes the entry
+		}
+
+		void freeEntry() {
+			this.currentPos = 0;
+			this.descriptorIndex = -1; // the block map is kept for the next file opened in this entry
+			this.generation = (this.generation + 1) & (-1 >>> (FileSystem.this.handleSlotBits + 1));
+		}
+	}
+
+
+	// loads the blocks of an oft entry that readAhead hands to it, on the async executor. Each entry has one,
+	// reused for every run of blocks, and a run is only handed over once the loader is done with the last one.
+	// The cache claims frames and reads blocks into the loader's buffers, so neither handing a run over nor
+	// loading it allocates
+	private final class ReadAhead implements Runnable {
+		private final OFTEntry entry;
+		private final int[] blocks = new int[READ_AHEAD_MAX]; // disk blocks of the run, -1 for holes
+		private final int[] claimed = new int[READ_AHEAD_MAX]; // frames the cache loads them into
+		private byte[] data; // what the cache reads them into, for the block length of the disk
+		private int from; // logical block of blocks[0]
+		private int count;
+		private BlockCache cache;
+		private volatile boolean busy; // handed a run, and not done with it yet
+
+		ReadAhead(OFTEntry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int blockLength = FileSystem.this.geometry.getBlockLength();
+				for (int i = 0; i < this.count; ) {
+					// a loader that starts late leaves alone the blocks the reader has got to by itself
+					if (this.blocks[i] < 0 || (this.from + i + 1) * blockLength <= this.entry.readAheadNext) {
+						i++;
+						continue;
+					}
+					int length = 1; // blocks adjacent on disk are loaded in one transfer
+					while (i + length < this.count && this.blocks[i + length] == this.blocks[i] + length)
+						length++;
+					this.cache.prefetch(this.blocks[i], length, this.claimed, this.data);
+					i += length;
+				}
+			} finally {
+				this.busy = false;
+			}
 		}
 	}
 
@@ -60,33 +169,239 @@ public class FileSystem implements Serializable {
 	// FileSystem methods
 
 	public FileSystem() {
-		this.initializeFileSystem();
+		this(DiskGeometry.DEFAULT);
+	}
+
+	// formats a new heap disk with the given geometry
+	public FileSystem(DiskGeometry geometry) {
+		this.initializeFileSystem(geometry);
+	}
+
+	// mounts the file system on the device (heap, direct or memory-mapped) if it holds a valid superblock,
+	// otherwise formats the device with the default geometry settings for its size
+	public FileSystem(BlockDevice device) {
+		LDisk disk = new LDisk(device);
+		if (this.mountDisk(disk) < 0)
+			this.initializeFileSystem(disk, DiskGeometry.forDevice(device));
+	}
+
+	// formats the device with the given geometry
+	public FileSystem(BlockDevice device, DiskGeometry geometry) {
+		if (device.getNumBlocks() != geometry.getNumBlocks() || device.getBlockLength() != geometry.getBlockLength())
+			throw new IllegalArgumentException("device does not match geometry " + geometry);
+		this.initializeFileSystem(new LDisk(device), geometry);
 	}
 
 	public FileSystem(LDisk disk, DiskHeader header, OFTEntry[] OFT) {
+		this.geometry = header.getGeometry();
 		this.disk = disk;
 		this.header = header;
 		this.OFT = OFT;
+		this.indexOFT();
+		this.cache = new BlockCache(disk, this.cacheCapacity);
+		header.attach(disk, this.cache);
+		this.writeHeaderToDisk();
+		this.openJournal(false);
+		this.attachMetrics();
+		this.directory = new DirectoryTree(this.geometry, this.cache, header, this.metrics);
+		this.dentries = new DentryCache(DENTRY_CACHE_SIZE);
+		this.releaseMap = new BlockMap(this.geometry, this.cache, header, 0);
+		this.openDirectory(0, header.getLen(0));
+	}
+
+	private static ReentrantReadWriteLock[] newLocks(int count) {
+		ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[count];
+		for (int i = 0; i < count; i++)
+			locks[i] = new ReentrantReadWriteLock();
+		return locks;
+	}
+
+	public DiskGeometry getGeometry() {
+		return geometry;
+	}
+
+	// resizes the block cache; dirty blocks are written back first
+	public void setCacheCapacity(int blocks) {
+		this.mountLock.writeLock().lock();
+		try {
+			this.cacheCapacity = blocks;
+			this.cache.flush();
+			this.cache = new BlockCache(this.disk, blocks);
+			this.cache.setJournal(this.journal);
+			this.cache.setMetrics(this.metrics);
+			this.header.attach(this.disk, this.cache);
+			this.directory = new DirectoryTree(this.geometry, this.cache, this.header, this.metrics);
+			this.releaseMap = new BlockMap(this.geometry, this.cache, this.header, 0);
+			for (OFTEntry entry : this.OFT) {
+				entry.blockMap = entry.descriptorIndex < 0 ? null
+						: new BlockMap(this.geometry, this.cache, this.header, entry.descriptorIndex);
+			}
+		} finally {
+			this.mountLock.writeLock().unlock();
+		}
+	}
+
+	public BlockCache getCache() {
+		return cache;
+	}
+
+	// a heap disk, compressed if the disk it replaces was
+	private void initializeFileSystem(DiskGeometry geometry)
+	{
+		boolean compressed = this.disk != null && this.isCompressed();
+		this.initializeFileSystem(new LDisk(FileSystem.newHeapDevice(geometry, compressed)), geometry);
+	}
+
+	private void initializeFileSystem(LDisk disk, DiskGeometry geometry)
+	{
+		this.geometry = geometry;
+		this.disk = disk;
+		this.cache = new BlockCache(disk, this.cacheCapacity);
+		this.header = new DiskHeader(geometry);
+		this.header.attach(disk, this.cache);
+		this.lastImage = null;
+
+		// format: superblock, bitmap, descriptors and an empty directory block
+		this.disk.writeBlock(DiskGeometry.SUPERBLOCK_INDEX, geometry.toBlock());
+		this.disk.writeBlock(geometry.getDirectoryBlock(), new byte[geometry.getBlockLength()]);
+		this.writeHeaderToDisk();
+		this.openJournal(false);
+		this.attachMetrics();
+
+		this.openDirectoryFromDisk();
+	}
+
+	// return:	0	- mounted
+	//		   -1	- no valid superblock on disk
+	private int mountDisk(LDisk disk)
+	{
+		DiskGeometry diskGeometry = DiskGeometry.fromBlock(
+				disk.readBlock(DiskGeometry.SUPERBLOCK_INDEX, new byte[disk.getDevice().getBlockLength()]));
+		if (diskGeometry == null || diskGeometry.getNumBlocks() > disk.getDevice().getNumBlocks()
+				|| diskGeometry.getBlockLength() != disk.getDevice().getBlockLength())
+			return -1;
+
+		this.geometry = diskGeometry;
+		this.disk = disk;
+		this.cache = new BlockCache(disk, this.cacheCapacity);
+		this.header = DiskHeader.loadFromDisk(diskGeometry, disk, this.cache);
+		this.lastImage = null;
+		this.openJournal(true);
+		this.attachMetrics();
+		this.openDirectoryFromDisk();
+		return 0;
+	}
+
+	// opens the journal of the disk, if it has one, and empties it; when mounting, the log is first replayed over
+	// the header, which is then written home. Otherwise the caller has written the header
+	private void openJournal(boolean replay)
+	{
+		this.journal = Journal.open(this.geometry, this.disk);
+		if (this.journal != null)
+		{
+			if (replay && this.journal.replay(this.header) > 0)
+				this.writeHeaderToDisk();
+			this.journal.reset();
+		}
+		this.header.setJournal(this.journal);
+		this.cache.setJournal(this.journal);
 	}
 
-	private void initializeFileSystem()
+	// lets the disk, cache and header of a newly mounted disk count into the metrics
+	private void attachMetrics()
 	{
-		this.disk = new LDisk();
-		this.header = new DiskHeader();
-		this.OFT = new OFTEntry[FileSystem.OFT_SIZE];
+		this.disk.setMetrics(this.metrics);
+		this.cache.setMetrics(this.metrics);
+		this.header.setMetrics(this.metrics);
+	}
+
+	// makes the metadata changes of an operation durable before it returns; the caller holds no locks.
+	// Returns status, or -1 if the journal could not be written
+	private int commit(int status)
+	{
+		this.mountLock.readLock().lock();
+		try {
+			if (this.journal == null)
+				return status;
+			if (this.journal.commit(this.cache) < 0)
+				return -1;
+			if (!this.journal.needsCheckpoint())
+				return status;
+		} finally {
+			this.mountLock.readLock().unlock();
+		}
 
-		Descriptor directoryDescriptor = this.header.getDescriptor(0); // descriptor 0 is always the directory descriptor
-		byte[] dataBlock = new byte[BLOCK_LENGTH];
-		this.disk.readBlock(directoryDescriptor.getBlockIndex(0), dataBlock); // read first directory data block
+		this.mountLock.writeLock().lock();
+		try {
+			if (this.journal != null && this.journal.needsCheckpoint() && this.checkpoint() < 0)
+				return -1;
+			return status;
+		} finally {
+			this.mountLock.writeLock().unlock();
+		}
+	}
+
+	// writes every dirty block and the header to their home locations and empties the journal;
+	// the caller holds the mount lock exclusively
+	private int checkpoint()
+	{
+		this.cache.flush();
+		this.writeHeaderToDisk();
+		if (this.journal != null)
+			return this.journal.reset();
+		try {
+			this.disk.flush();
+		} catch (IOException e) {
+			return -1;
+		}
+		return 0;
+	}
 
+	private void openDirectoryFromDisk()
+	{
 		this.initializeOFT();
+		this.directory = new DirectoryTree(this.geometry, this.cache, this.header, this.metrics);
+		this.dentries = new DentryCache(DENTRY_CACHE_SIZE);
+		this.releaseMap = new BlockMap(this.geometry, this.cache, this.header, 0);
 
-		this.openDirectory(0, directoryDescriptor.getLen(), dataBlock); // dIndex: 0 = directory descriptor
+		this.openDirectory(0, this.header.getLen(0)); // dIndex: 0 = directory descriptor
 	}
 
+	// the caller holds the mount lock exclusively, or is attaching the disk
+	private void writeHeaderToDisk()
+	{
+		if (this.bitmapBlock == null || this.bitmapBlock.length != this.geometry.getBlockLength())
+		{
+			this.bitmapBlock = new byte[this.geometry.getBlockLength()];
+			this.bitmapOnDisk = new byte[this.geometry.getBlockLength()];
+		}
+		byte[] block = this.bitmapBlock;
+		byte[] onDisk = this.bitmapOnDisk;
+
+		// write bitmap to disk
+		for(int i = 0; i < this.geometry.getNumBitmapBlocks(); i++)
+		{
+			this.writeHeaderBlock(DiskGeometry.FIRST_BITMAP_BLOCK + i, this.header.bitmapToDiskBlock(i, block), onDisk);
+		}
+
+		// write the changed descriptor blocks to disk
+		this.header.writeDescriptorTable();
+	}
+
+	// unchanged header blocks are not rewritten, so they stay out of delta images
+	private void writeHeaderBlock(int index, byte[] block, byte[] onDisk)
+	{
+		if (!Arrays.equals(this.disk.readBlock(index, onDisk), block))
+			this.disk.writeBlock(index, block);
+	}
+
+	// files and directories are named by paths of names separated by '/', from the root directory; a leading
+	// '/' is allowed
 	public String create(String fileName)
 	{
-		int status = this.createFile(fileName);
+		long start = this.metrics.start(FileSystemMetrics.CREATE);
+		int status = this.createFile(fileName, false);
+		this.metrics.finish(FileSystemMetrics.CREATE, start);
 		if (status < 0)
 			return "error";
 		return fileName + " created";
@@ -94,15 +409,40 @@ public class FileSystem implements Serializable {
 
 	public String destroy(String fileName)
 	{
-		int status = this.destroyFile(fileName);
+		long start = this.metrics.start(FileSystemMetrics.DESTROY);
+		int status = this.destroyFile(fileName, false);
+		this.metrics.finish(FileSystemMetrics.DESTROY, start);
 		if (status < 0)
 			return "error";
 		return fileName + " destroyed";
 	}
 
+	public String mkdir(String path)
+	{
+		long start = this.metrics.start(FileSystemMetrics.MKDIR);
+		int status = this.createFile(path, true);
+		this.metrics.finish(FileSystemMetrics.MKDIR, start);
+		if (status < 0)
+			return "error";
+		return path + " created";
+	}
+
+	// the directory must be empty
+	public String rmdir(String path)
+	{
+		long start = this.metrics.start(FileSystemMetrics.RMDIR);
+		int status = this.destroyFile(path, true);
+		this.metrics.finish(FileSystemMetrics.RMDIR, start);
+		if (status < 0)
+			return "error";
+		return path + " destroyed";
+	}
+
 	public String open(String fileName)
 	{
+		long start = this.metrics.start(FileSystemMetrics.OPEN);
 		int status = this.openFile(fileName);
+		this.metrics.finish(FileSystemMetrics.OPEN, start);
 		if (status < 0)
 			return "error";
 		return fileName + " opened " + status;
@@ -110,7 +450,9 @@ public class FileSystem implements Serializable {
 
 	public String close(int index)
 	{
-		int status = this.closeFile(index);
+		long start = this.metrics.start(FileSystemMetrics.CLOSE);
+		int status = this.commit(this.closeFile(index)); // blocks allocated ahead may have been given back
+		this.metrics.finish(FileSystemMetrics.CLOSE, start);
 		if (status < 0)
 			return "error";
 		return index + " closed";
@@ -118,7 +460,9 @@ public class FileSystem implements Serializable {
 
 	public String read(int index, byte[] mem_area, int count)
 	{
+		long start = this.metrics.start(FileSystemMetrics.READ);
 		int status = this.readFileInEntry(index, mem_area, count);
+		this.metrics.finish(FileSystemMetrics.READ, start);
 		if (status < 0)
 			return "error";
 		return new String(mem_area).trim();
@@ -126,15 +470,265 @@ public class FileSystem implements Serializable {
 
 	public String write(int index, byte[] mem_area, int count)
 	{
+		long start = this.metrics.start(FileSystemMetrics.WRITE);
 		int status = this.writeFileInEntry(index, mem_area, count);
+		this.metrics.finish(FileSystemMetrics.WRITE, start);
 		if (status < 0)
 			return "error";
 		return status + " bytes written";
 	}
 
+	// buffer variants of read and write for programmatic callers: transfer up to mem_area.remaining() bytes
+	// at the cursor, advance the buffer's position and return the number of bytes transferred, -1 on error
+	public int read(int index, ByteBuffer mem_area)
+	{
+		long start = this.metrics.start(FileSystemMetrics.READ);
+		return this.finish(FileSystemMetrics.READ, start, this.readFileInEntry(index, mem_area, mem_area.remaining()));
+	}
+
+	public int write(int index, ByteBuffer mem_area)
+	{
+		long start = this.metrics.start(FileSystemMetrics.WRITE);
+		return this.finish(FileSystemMetrics.WRITE, start, this.writeFileInEntry(index, mem_area, mem_area.remaining()));
+	}
+
+	// positional and vectored variants: transfer at pos without moving the cursor, filling or draining the
+	// buffers in turn; return the number of bytes transferred, -1 on error. A write past the end of the file
+	// leaves a hole before it
+	public int read(int index, int pos, ByteBuffer mem_area)
+	{
+		long start = this.metrics.start(FileSystemMetrics.READ);
+		return this.finish(FileSystemMetrics.READ, start, this.readFileAt(index, pos, mem_area, null));
+	}
+
+	public int write(int index, int pos, ByteBuffer mem_area)
+	{
+		long start = this.metrics.start(FileSystemMetrics.WRITE);
+		return this.finish(FileSystemMetrics.WRITE, start, this.writeFileAt(index, pos, mem_area, null));
+	}
+
+	public int read(int index, int pos, ByteBuffer[] mem_areas)
+	{
+		long start = this.metrics.start(FileSystemMetrics.READ);
+		return this.finish(FileSystemMetrics.READ, start, this.readFileAt(index, pos, null, mem_areas));
+	}
+
+	public int write(int index, int pos, ByteBuffer[] mem_areas)
+	{
+		long start = this.metrics.start(FileSystemMetrics.WRITE);
+		return this.finish(FileSystemMetrics.WRITE, start, this.writeFileAt(index, pos, null, mem_areas));
+	}
+
+	// asynchronous variants: each call runs on the async executor and its future completes with what the
+	// synchronous call returns. Reads and writes are positional, as calls in flight together have no cursor to
+	// share; the buffer belongs to the call until its future completes
+	public CompletableFuture<Integer> readAsync(int index, int pos, ByteBuffer mem_area)
+	{
+		return this.async().submit(() -> this.read(index, pos, mem_area));
+	}
+
+	public CompletableFuture<Integer> writeAsync(int index, int pos, ByteBuffer mem_area)
+	{
+		return this.async().submit(() -> this.write(index, pos, mem_area));
+	}
+
+	// completes with the handle of the opened file, -1 on error
+	public CompletableFuture<Integer> openAsync(String fileName)
+	{
+		return this.async().submit(() -> {
+			long start = this.metrics.start(FileSystemMetrics.OPEN);
+			return this.finish(FileSystemMetrics.OPEN, start, this.openFile(fileName));
+		});
+	}
+
+	public CompletableFuture<Integer> saveAsync(String outputFileName)
+	{
+		return this.async().submit(() -> this.saveDiskToFile(outputFileName));
+	}
+
+	// runs later asynchronous calls on executor (null: the default one, on virtual threads where the runtime
+	// has them), at most maxInFlight at a time; calls already submitted finish where they are
+	public void setAsyncExecutor(Executor executor, int maxInFlight)
+	{
+		this.async = new AsyncDispatcher(executor == null ? AsyncDispatcher.defaultExecutor() : executor, maxInFlight);
+	}
+
+	// write-behind: with intervalMillis above 0, writes return once their blocks are in the cache instead of
+	// committing the journal and writing newly allocated blocks back first. A background thread syncs every
+	// intervalMillis, and sooner once more than dirtyPercent of the cache is dirty; writers that find twice that
+	// share dirty wait for it. sync and fsync make writes durable on demand. intervalMillis 0 turns write-behind
+	// off after a last sync, so that every operation commits before it returns, which is the default
+	public void setWriteBehind(long intervalMillis, int dirtyPercent)
+	{
+		WriteBehind writeBehind = intervalMillis == 0 ? null : new WriteBehind(this, intervalMillis, dirtyPercent);
+		WriteBehind old;
+		synchronized (this.oftLock) {
+			old = this.writeBehind;
+			this.writeBehind = writeBehind;
+		}
+		if (old != null) {
+			old.stop();
+			this.sync();
+		}
+	}
+
+	// preallocation: appends that need a new block take a run of free blocks after it as well, as many as the file
+	// already has up to PREALLOCATE_MAX, so the blocks of files growing side by side do not interleave on disk and
+	// later appends need no allocation. What a file has not grown into when it is last closed is given back
+	public void setPreallocation(boolean enabled)
+	{
+		this.preallocate = enabled;
+	}
+
+	// allocates the blocks the file open under the handle needs to hold bytes bytes, in as few runs of adjacent
+	// blocks as the free space allows, without changing its length: writes up to that size then allocate nothing.
+	// The blocks stay with the file until truncate, punchHole or destroy frees them. Returns 0, or -1 if handle is
+	// not open, bytes is negative or past the largest file size, or the disk fills up first
+	public int reserve(int index, int bytes)
+	{
+		long start = this.metrics.start(FileSystemMetrics.RESERVE);
+		return this.finish(FileSystemMetrics.RESERVE, start, this.reserveBlocks(index, bytes));
+	}
+
+	// sets the length of the file open under the handle: the blocks past a shorter length are freed, while a longer
+	// one leaves a hole that reads as zeros and takes no blocks. Cursors stay where they are. Returns 0, or -1 if
+	// handle is not open or length is negative or past the largest file size
+	public int truncate(int index, int length)
+	{
+		long start = this.metrics.start(FileSystemMetrics.TRUNCATE);
+		return this.finish(FileSystemMetrics.TRUNCATE, start, this.truncateFile(index, length));
+	}
+
+	// makes count bytes at offset of the file open under the handle a hole: the blocks wholly inside are freed and
+	// the rest of the range is zeroed. The length stays as it is. Returns 0, or -1 if handle is not open or offset
+	// or count is negative
+	public int punchHole(int index, int offset, int count)
+	{
+		long start = this.metrics.start(FileSystemMetrics.PUNCH_HOLE);
+		return this.finish(FileSystemMetrics.PUNCH_HOLE, start, this.punchHoleInFile(index, offset, count));
+	}
+
+	// compression: the disk is kept on the heap with every block compressed (see CompressedBlockDevice), so blocks
+	// are compressed as the cache writes them back and decompressed as it loads them, and disks and images saved
+	// hold them compressed as well. Turning it on or off moves the disk to a compressed or a plain heap device
+	// after a checkpoint; open files stay open. Returns 0, or -1 if the disk is not on the heap, or on an I/O error
+	public int setCompression(boolean enabled)
+	{
+		this.mountLock.writeLock().lock();
+		try {
+			BlockDevice device = this.disk.getDevice();
+			if (!(device instanceof HeapBlockDevice || device instanceof CompressedBlockDevice))
+				return -1;
+			if (enabled == device instanceof CompressedBlockDevice)
+				return 0;
+			if (this.checkpoint() < 0)
+				return -1;
+			this.disk.moveTo(FileSystem.newHeapDevice(this.geometry, enabled));
+			return 0;
+		} finally {
+			this.mountLock.writeLock().unlock();
+		}
+	}
+
+	private static BlockDevice newHeapDevice(DiskGeometry geometry, boolean compressed)
+	{
+		if (compressed)
+			return new CompressedBlockDevice(geometry.getNumBlocks(), geometry.getBlockLength());
+		return new HeapBlockDevice(geometry.getNumBlocks(), geometry.getBlockLength());
+	}
+
+	private boolean isCompressed()
+	{
+		return this.disk.getDevice() instanceof CompressedBlockDevice;
+	}
+
+	// makes every write so far durable: commits the journal, writes every dirty block back in block order and
+	// flushes the device; on a disk without a journal the bitmap and the descriptors are written home as well.
+	// Returns 0, or -1 on an I/O error
+	public int sync()
+	{
+		long start = this.metrics.start(FileSystemMetrics.SYNC);
+		return this.finish(FileSystemMetrics.SYNC, start, this.syncDisk());
+	}
+
+	// makes the writes to the file open under the handle durable, and every metadata change so far: writes its
+	// dirty blocks back in block order, commits the journal and flushes the device. A disk without a journal has
+	// its bitmap and descriptors written home instead, with every dirty block. Returns 0, or -1 if handle is not
+	// open or on an I/O error
+	public int fsync(int index)
+	{
+		long start = this.metrics.start(FileSystemMetrics.FSYNC);
+		return this.finish(FileSystemMetrics.FSYNC, start, this.syncFile(index));
+	}
+
+	// the metrics of this file system; register them to see them over JMX
+	public FileSystemMetrics getMetrics()
+	{
+		return this.metrics;
+	}
+
+	// blocks in use, reserved ones included
+	int getNumUsedBlocks()
+	{
+		this.mountLock.readLock().lock();
+		try {
+			return this.header.getNumUsedBlocks();
+		} finally {
+			this.mountLock.readLock().unlock();
+		}
+	}
+
+	// bytes the disk's device keeps its blocks in: their total length unless they are compressed
+	long getDiskBytesStored()
+	{
+		this.mountLock.readLock().lock();
+		try {
+			BlockDevice device = this.disk.getDevice();
+			if (device instanceof CompressedBlockDevice)
+				return ((CompressedBlockDevice) device).getStoredBytes();
+			return (long) device.getNumBlocks() * device.getBlockLength();
+		} finally {
+			this.mountLock.readLock().unlock();
+		}
+	}
+
+	// files open, the directory aside
+	int getNumOpenFiles()
+	{
+		synchronized (this.oftLock) {
+			return this.OFT.length - 1 - this.numFreeSlots;
+		}
+	}
+
+	private int finish(int operation, long start, int status)
+	{
+		this.metrics.finish(operation, start);
+		return status;
+	}
+
+	private AsyncDispatcher async()
+	{
+		AsyncDispatcher async = this.async;
+		if (async == null)
+		{
+			synchronized (this.oftLock)
+			{
+				async = this.async;
+				if (async == null)
+				{
+					async = new AsyncDispatcher(AsyncDispatcher.defaultExecutor(), AsyncDispatcher.DEFAULT_MAX_IN_FLIGHT);
+					this.async = async;
+				}
+			}
+		}
+		return async;
+	}
+
 	public String lseek(int index, int pos)
 	{
+		long start = this.metrics.start(FileSystemMetrics.SEEK);
 		int status = this.seekToPosInEntry(index, pos);
+		this.metrics.finish(FileSystemMetrics.SEEK, start);
 		if (status < 0)
 			return "error";
 		return "position is " + status;
@@ -142,7 +736,29 @@ public class FileSystem implements Serializable {
 
 	public String directory()
 	{
-		return this.listFilesInDirectory();
+		return this.directory("/", null, Integer.MAX_VALUE);
+	}
+
+	// lists up to count names of the root directory from name from on, in name order
+	public String directory(String from, int count)
+	{
+		return this.directory("/", from, count);
+	}
+
+	// lists the directory at path; "/" is the root directory
+	public String directory(String path)
+	{
+		return this.directory(path, null, Integer.MAX_VALUE);
+	}
+
+	public String directory(String path, String from, int count)
+	{
+		long start = this.metrics.start(FileSystemMetrics.DIRECTORY);
+		String fileNames = count < 0 ? null : this.listFilesInDirectory(path, from, count);
+		this.metrics.finish(FileSystemMetrics.DIRECTORY, start);
+		if (fileNames == null)
+			return "error";
+		return fileNames;
 	}
 
 	public String initialize(String fileName)
@@ -164,14 +780,28 @@ public class FileSystem implements Serializable {
 		return  "disk saved";
 	}
 
+	public String saveImage(String fileName)
+	{
+		int status = this.saveImageToFile(fileName);
+		if (status < 0)
+			return "error";
+		return "image saved";
+	}
 
-	static public byte[] copyArray(byte[] src, int srcOffset, byte[] dest, int destOffset) {
-		for (int i = srcOffset; i < src.length; ++i) {
-			if (destOffset >= dest.length)
-				return dest;
-			dest[destOffset++] = src[i];
-		}
-		return dest;
+	public String saveDelta(String fileName)
+	{
+		int status = this.saveDeltaToFile(fileName);
+		if (status < 0)
+			return "error";
+		return status + " blocks saved";
+	}
+
+	public String restoreImage(String baseFileName, String... deltaFileNames)
+	{
+		int status = this.restoreImageFromFiles(baseFileName, deltaFileNames);
+		if (status < 0)
+			return "error";
+		return "disk restored";
 	}
 
 
@@ -190,405 +820,841 @@ public class FileSystem implements Serializable {
 	// OFT methods
 
 	private void initializeOFT() {
-		this.OFT = new OFTEntry[FileSystem.OFT_SIZE];
+		this.OFT = new OFTEntry[Math.min(this.geometry.getOftSize(), INITIAL_OFT_CAPACITY)];
 		for (int i = 0; i < this.OFT.length; i++)
 			this.OFT[i] = new OFTEntry();
+		this.indexOFT();
 	}
 
-	private void openDirectory(int dIndex, int fileLength, byte[] dataBlock) {
+	// builds the free slot stack and the open slot lists from the entries of the oft
+	private void indexOFT() {
+		this.handleSlotBits = 32 - Integer.numberOfLeadingZeros(this.geometry.getOftSize() - 1);
+		this.freeSlots = new int[this.OFT.length];
+		this.numFreeSlots = 0;
+		this.firstOpenSlot = new int[INITIAL_OFT_CAPACITY];
+		Arrays.fill(this.firstOpenSlot, -1);
+		for (int slot = this.OFT.length - 1; slot >= 1; slot--) { // pushed highest first: low slots are used first
+			int descriptorIndex = this.OFT[slot].descriptorIndex;
+			if (descriptorIndex < 0)
+				this.freeSlots[this.numFreeSlots++] = slot;
+			else
+				this.linkOpenSlot(slot, descriptorIndex);
+		}
+	}
+
+	// the caller holds oftLock; returns a free slot, growing the oft if needed, or -1 if oft size files are open
+	private int allocateSlot() {
+		if (this.numFreeSlots == 0) {
+			OFTEntry[] table = this.OFT;
+			if (table.length >= this.geometry.getOftSize())
+				return -1;
+			OFTEntry[] grown = Arrays.copyOf(table, Math.min(table.length * 2, this.geometry.getOftSize()));
+			for (int slot = table.length; slot < grown.length; slot++)
+				grown[slot] = new OFTEntry();
+			this.freeSlots = new int[grown.length];
+			for (int slot = grown.length - 1; slot >= table.length; slot--)
+				this.freeSlots[this.numFreeSlots++] = slot;
+			this.OFT = grown;
+		}
+		return this.freeSlots[--this.numFreeSlots];
+	}
+
+	// the caller holds oftLock and the lock of the slot's entry
+	private void freeSlot(int slot) {
+		OFTEntry entry = this.OFT[slot];
+		this.unlinkOpenSlot(slot, entry.descriptorIndex);
+		entry.freeEntry();
+		this.freeSlots[this.numFreeSlots++] = slot;
+	}
+
+	// the caller holds oftLock
+	private void linkOpenSlot(int slot, int descriptorIndex) {
+		OFTEntry entry = this.OFT[slot];
+		if (descriptorIndex >= this.firstOpenSlot.length) {
+			int oldLength = this.firstOpenSlot.length;
+			this.firstOpenSlot = Arrays.copyOf(this.firstOpenSlot, Math.max(descriptorIndex + 1, oldLength * 2));
+			Arrays.fill(this.firstOpenSlot, oldLength, this.firstOpenSlot.length, -1);
+		}
+		int next = this.firstOpenSlot[descriptorIndex];
+		entry.nextOpenSlot = next;
+		entry.previousOpenSlot = -1;
+		if (next >= 0)
+			this.OFT[next].previousOpenSlot = slot;
+		this.firstOpenSlot[descriptorIndex] = slot;
+	}
+
+	// the caller holds oftLock
+	private void unlinkOpenSlot(int slot, int descriptorIndex) {
+		OFTEntry entry = this.OFT[slot];
+		if (entry.previousOpenSlot >= 0)
+			this.OFT[entry.previousOpenSlot].nextOpenSlot = entry.nextOpenSlot;
+		else
+			this.firstOpenSlot[descriptorIndex] = entry.nextOpenSlot;
+		if (entry.nextOpenSlot >= 0)
+			this.OFT[entry.nextOpenSlot].previousOpenSlot = entry.previousOpenSlot;
+		entry.nextOpenSlot = -1;
+		entry.previousOpenSlot = -1;
+	}
+
+	// the caller holds oftLock or the mount lock exclusively
+	private int toHandle(int slot) {
+		return (this.OFT[slot].generation << this.handleSlotBits) | slot;
+	}
+
+	// returns the entry of the slot handle refers to, null if there is no such slot; whether the handle is still
+	// valid is up to the caller (see isHandleOf)
+	private OFTEntry entryOf(int handle) {
+		OFTEntry[] table = this.OFT;
+		int slot = handle & ((1 << this.handleSlotBits) - 1);
+		return handle >= 0 && slot < table.length ? table[slot] : null;
+	}
+
+	private boolean isHandleOf(OFTEntry entry, int handle) {
+		return entry.descriptorIndex >= 0 && entry.generation == handle >>> this.handleSlotBits;
+	}
+
+	private void openDirectory(int dIndex, int fileLength) {
 		// not using dIndex because directory descriptor should always be descriptor 0
 		// left dIndex in, in case the above criteria changes
-		this.OFT[0].modifyEntry(0, fileLength, dataBlock);
+		this.OFT[0].modifyEntry(0);
 	}
 
-	private int findFileInDirectory(String fileName) {
-		// directory slot is 8 bytes: 4 bytes for file name, 4 bytes for file descriptor index
-		byte[] directorySlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
+	private int fileLength(OFTEntry entry) {
+		return this.header.getLen(entry.descriptorIndex);
+	}
 
-		this.seekToPosInEntry(0, 0);
+	private Lock descriptorLock(int descriptorIndex, boolean exclusive) {
+		// the directory file shares the directory lock with the directory metadata
+		ReentrantReadWriteLock lock = descriptorIndex == 0 ? this.directoryLock
+				: this.descriptorLocks[descriptorIndex & (NUM_DESCRIPTOR_LOCKS - 1)];
+		return exclusive ? lock.writeLock() : lock.readLock();
+	}
 
+	private void lockDirectory(boolean exclusive) {
+		this.mountLock.readLock().lock();
+		this.descriptorLock(0, exclusive).lock();
+	}
 
-		for (int i = 0; i < this.OFT[0].len; i += FileSystem.DIRECTORY_SLOT_SIZE) {
-			byte[] nameInBytes = new byte[FileSystem.FILE_NAME_SIZE];
+	private void unlockDirectory(boolean exclusive) {
+		this.descriptorLock(0, exclusive).unlock();
+		this.mountLock.readLock().unlock();
+	}
 
-			this.readFileInEntry(0, directorySlot, FileSystem.DIRECTORY_SLOT_SIZE);
+	// locks the file open under the handle, shared to read it or exclusively to change it, and then its entry;
+	// returns the entry, or null with nothing locked if handle is not the handle of an open file. The directory,
+	// open under handle 0, can be read but is changed only through its tree, so it is never locked to write
+	private OFTEntry lockEntry(int handle, boolean exclusive) {
+		this.mountLock.readLock().lock();
+		OFTEntry entry = this.entryOf(handle);
+		if (entry != null) {
+			int descriptorIndex = entry.descriptorIndex;
+			if (descriptorIndex >= (exclusive ? 1 : 0) && this.isHandleOf(entry, handle)) {
+				Lock fileLock = this.descriptorLock(descriptorIndex, exclusive);
+				fileLock.lock();
+				entry.lock.lock();
+				if (entry.descriptorIndex == descriptorIndex && this.isHandleOf(entry, handle)) // not closed meanwhile
+					return entry;
+				entry.lock.unlock();
+				fileLock.unlock();
+			}
+		}
+		this.mountLock.readLock().unlock();
+		return null;
+	}
 
-			FileSystem.copyArray(directorySlot, 0, nameInBytes, 0);
-			nameInBytes[FILE_NAME_SIZE - 1] = (byte) 0;
+	private void unlockEntry(OFTEntry entry, boolean exclusive) {
+		Lock fileLock = this.descriptorLock(entry.descriptorIndex, exclusive);
+		entry.lock.unlock();
+		fileLock.unlock();
+		this.mountLock.readLock().unlock();
+	}
 
-			String dsFileName = new String(nameInBytes).trim();
-			if (fileName.equals(dsFileName)) {
-				return i;
+	// like lockEntry for reads and writes at an explicit position, which leave the cursor alone: only the file
+	// is locked, so positional accesses through one handle run side by side. Close waits for them on the file's
+	// lock. Returns the entry, or null with nothing locked
+	private OFTEntry lockFile(int handle, boolean exclusive) {
+		this.mountLock.readLock().lock();
+		OFTEntry entry = this.entryOf(handle);
+		if (entry != null) {
+			int descriptorIndex = entry.descriptorIndex;
+			if (descriptorIndex >= (exclusive ? 1 : 0) && this.isHandleOf(entry, handle)) {
+				Lock fileLock = this.descriptorLock(descriptorIndex, exclusive);
+				fileLock.lock();
+				if (entry.descriptorIndex == descriptorIndex && this.isHandleOf(entry, handle)) // not closed meanwhile
+					return entry;
+				fileLock.unlock();
 			}
 		}
-		return -1;
+		this.mountLock.readLock().unlock();
+		return null;
 	}
 
-	private int getFreeDirectorySlotPos() {
-		this.seekToPosInEntry(0, 0);
+	private void unlockFile(OFTEntry entry, boolean exclusive) {
+		this.descriptorLock(entry.descriptorIndex, exclusive).unlock();
+		this.mountLock.readLock().unlock();
+	}
 
-		if (this.OFT[0].len == 0)
-			return 0;
+	// names are 1 to MAX_NAME_LENGTH bytes without '/' or leading or trailing blanks; "." and ".." are reserved
+	private static boolean isValidFileName(String s, int from, int to) {
+		int length = Codec.nameLength(s, from, to);
+		if (length == 0 || length > DirectoryTree.MAX_NAME_LENGTH || s.charAt(from) <= ' ' || s.charAt(to - 1) <= ' ')
+			return false;
+		return s.charAt(from) != '.' || (to - from > 2 || (to - from == 2 && s.charAt(from + 1) != '.'));
+	}
 
-		for (int i = 0; i <= this.OFT[0].len; i += FileSystem.DIRECTORY_SLOT_SIZE) {
-			byte[] directorySlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-			this.readFileInEntry(0, directorySlot, FileSystem.DIRECTORY_SLOT_SIZE);
-			if (this.getDescriptorIndexFromDirectorySlot(directorySlot) <= 0) // descriptor index 0, -1 means directory slot is free
-			{
-				// subtract the length of currentPos as currentPos will be pointing to the beginning of next directory slot
-				// after read
-				return this.OFT[0].currentPos;
-			}
+	private static boolean isValidPath(String path) {
+		int from = path.startsWith("/") ? 1 : 0;
+		for (int to = path.indexOf('/', from); to >= 0; to = path.indexOf('/', from)) {
+			if (!FileSystem.isValidFileName(path, from, to))
+				return false;
+			from = to + 1;
+		}
+		return FileSystem.isValidFileName(path, from, path.length());
+	}
+
+	// descriptor index of the characters from to to of path in directory, with DirectoryTree.DIRECTORY set if
+	// it is a directory; -1 if there is no such name. The caller holds the directory lock
+	private int lookup(int directory, String path, int from, int to) {
+		int descriptorIndex = this.dentries.get(directory, path, from, to);
+		if (descriptorIndex == DentryCache.MISS) {
+			long start = this.metrics.start(FileSystemMetrics.LOOKUP);
+			descriptorIndex = this.directory.find(directory, path, from, to);
+			this.metrics.finish(FileSystemMetrics.LOOKUP, start);
+			this.dentries.put(directory, path, from, to, descriptorIndex);
 		}
-		return -1;
+		return descriptorIndex;
+	}
 
+	// descriptor index of the directory holding the last name of a valid path, -1 if a directory on the way
+	// does not exist
+	private int resolveParent(String path) {
+		int directory = 0;
+		int end = path.lastIndexOf('/');
+		for (int from = path.startsWith("/") ? 1 : 0; from < end; ) {
+			int to = path.indexOf('/', from);
+			int descriptorIndex = this.lookup(directory, path, from, to);
+			if (descriptorIndex < 0 || (descriptorIndex & DirectoryTree.DIRECTORY) == 0)
+				return -1;
+			directory = descriptorIndex & ~DirectoryTree.DIRECTORY;
+			from = to + 1;
+		}
+		return directory;
 	}
 
 	private int openFile(String fileName)
 	// returns status of trying to open file
-	// [1, 3]: file opened successfully
+	// > 0: handle of the opened file
 	// -1: error
 	{
-		// find file descriptor index
-		byte[] dirSlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-		int dirSlotPos = this.findFileInDirectory(fileName);
-
-		if (dirSlotPos < 0)
+		if (!FileSystem.isValidPath(fileName))
 			return -1;
 
-		this.seekToPosInEntry(0, dirSlotPos);
-		this.readFileInEntry(0, dirSlot, FileSystem.DIRECTORY_SLOT_SIZE);
+		this.lockDirectory(false);
+		try {
+			// find file descriptor index
+			int parent = this.resolveParent(fileName);
+			if (parent < 0)
+				return -1;
+			int descriptorIndex = this.lookup(parent, fileName, fileName.lastIndexOf('/') + 1, fileName.length());
+			if (descriptorIndex < 0 || (descriptorIndex & DirectoryTree.DIRECTORY) != 0) // directories are not opened
+				return -1;
 
-		int descriptorIndex = this.getDescriptorIndexFromDirectorySlot(dirSlot);
-		if (descriptorIndex <= 0)
-			return -1;
+			// modify OFT; the first data block is read on first access
+			synchronized (this.oftLock) {
+				int slot = this.allocateSlot();
+				if (slot < 0) // oft is full
+					return -1;
+				this.OFT[slot].modifyEntry(descriptorIndex);
+				this.linkOpenSlot(slot, descriptorIndex);
+				return this.toHandle(slot);
+			}
+		} finally {
+			this.unlockDirectory(false);
+		}
+	}
 
-		int fileLength = this.header.getDescriptor(descriptorIndex).getLen();
-		int firstDataBlockIndex = this.header.getDescriptor(descriptorIndex).getBlockIndex(0);
+	private int closeFile(int handle) {
+		this.mountLock.readLock().lock();
+		try {
+			OFTEntry entry = this.entryOf(handle);
+			if (entry == null)
+				return -1;
+			int descriptorIndex = entry.descriptorIndex;
+			if (descriptorIndex < 0)
+				return -1;
 
-		byte[] firstDataBlock = new byte[FileSystem.BLOCK_LENGTH];
-		this.disk.readBlock(firstDataBlockIndex, firstDataBlock);
+			// the file's blocks stay in the shared cache and its length is already in the descriptor;
+			// dirty blocks are written back when evicted or when the disk is saved
 
-		// modify OFT
-		int oftIndex = this.getFreeOftEntryIndex();
-		if (oftIndex != -1) // if oft entry is free
-			this.OFT[oftIndex].modifyEntry(descriptorIndex, fileLength, firstDataBlock);
-		return oftIndex;
+			// free OFT entry once operations in progress on it are done: positional reads and writes hold only
+			// the file's lock, the others the entry's lock as well
+			Lock fileLock = this.descriptorLock(descriptorIndex, true);
+			fileLock.lock();
+			entry.lock.lock();
+			try {
+				if (entry.descriptorIndex != descriptorIndex || !this.isHandleOf(entry, handle))
+					return -1;
+				if (handle != 0) { // if open file is not directory
+					// blocks allocated ahead through the entry go to another entry on the file, or back to the
+					// allocator past the end of the file if this is the last one
+					BlockMap heir = null;
+					synchronized (this.oftLock) {
+						int other = entry.previousOpenSlot >= 0 ? entry.previousOpenSlot : entry.nextOpenSlot;
+						if (other >= 0)
+							heir = this.OFT[other].blockMap;
+					}
+					if (heir != null) {
+						heir.inherit(entry.blockMap);
+					} else {
+						int blockLength = this.geometry.getBlockLength();
+						this.metrics.blocksTrimmed(entry.blockMap.trim((this.fileLength(entry) + blockLength - 1) / blockLength));
+					}
+					synchronized (this.oftLock) {
+						this.freeSlot(handle & ((1 << this.handleSlotBits) - 1));
+					}
+				}
+				return 0;
+			} finally {
+				entry.lock.unlock();
+				fileLock.unlock();
+			}
+		} finally {
+			this.mountLock.readLock().unlock();
+		}
 	}
 
-	private int closeFile(int oftIndex) {
-		if ((oftIndex < 0) || (oftIndex >= FileSystem.OFT_SIZE) || this.OFT[oftIndex].descriptorIndex < 0)
+	private int createFile(String fileName, boolean directory) {
+		if (!FileSystem.isValidPath(fileName))
 			return -1;
 
-//		int diskMapIndex = this.OFT[oftIndex].currentPos / FileSystem.BLOCK_LENGTH;
-
-		int diskMapIndex = 0;
-		if (this.OFT[oftIndex].currentPos >= 64 && this.OFT[oftIndex].currentPos < 128)
-			diskMapIndex = 1;
-		if (this.OFT[oftIndex].currentPos >= 128 && this.OFT[oftIndex].currentPos <= 192)
-			diskMapIndex = 2;
+		int status;
+		this.lockDirectory(true);
+		try {
+			status = this.createFileLocked(fileName, directory);
+		} finally {
+			this.unlockDirectory(true);
+		}
+		return this.commit(status);
+	}
 
-		int diskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(diskMapIndex);
+	private int createFileLocked(String fileName, boolean directory) {
+		int parent = this.resolveParent(fileName);
+		int nameStart = fileName.lastIndexOf('/') + 1;
+		if (parent < 0 || this.lookup(parent, fileName, nameStart, fileName.length()) >= 0) // fileName exists
+			return -1;
 
-		this.disk.writeBlock(diskBlockIndex, this.OFT[oftIndex].rwBuffer);
-		// update file length in file descriptor
-		this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).setLen(this.OFT[oftIndex].len);
+		int descriptorIndex = this.header.getNextFreeDescriptorIndex();
+		if (descriptorIndex < 0) // if there are no free file descriptors and the table cannot grow
+			return -1;
 
-		// free OFT entry
-		if (oftIndex != 0) // if open file is not directory
-		{
-			this.OFT[oftIndex].currentPos = 0;
-			this.OFT[oftIndex].descriptorIndex = -1;
-			this.OFT[oftIndex].len = -1;
-		}
+		// neither an empty file nor an empty directory has blocks: a file's first write allocates its first block,
+		// and a directory's root node reads as zeros until it is first written
+		int entry = directory ? descriptorIndex | DirectoryTree.DIRECTORY : descriptorIndex;
+		if (this.directory.insert(parent, fileName, nameStart, fileName.length(), entry) < 0) // the directory cannot grow
+			return -1;
+		this.dentries.update(parent, fileName, nameStart, fileName.length(), entry);
+		this.header.setLen(descriptorIndex, 0);
+		this.header.descriptorChanged(descriptorIndex);
 		return 0;
 	}
 
-	private int getFreeOftEntryIndex() {
-		for (int i = 1; i < this.OFT.length; i++) // oft entry 0 reserved for directory
-		{
-			if (this.OFT[i].descriptorIndex == -1)
-				return i;
+	// returns a handle under which the file is open, -1 if it is not open
+	private int getOpenHandle(int descriptorIndex) {
+		synchronized (this.oftLock) {
+			int slot = descriptorIndex < this.firstOpenSlot.length ? this.firstOpenSlot[descriptorIndex] : -1;
+			return slot < 0 ? -1 : this.toHandle(slot);
 		}
-		return -1;
 	}
 
-	private int getDescriptorIndexFromDirectorySlot(byte[] directorySlot) {
-		return FileSystem.byteArrayToInt(
-				FileSystem.copyArray(directorySlot, FileSystem.FILE_NAME_SIZE,
-						new byte[FileSystem.INT_SIZE], 0));
-	}
+	private int destroyFile(String fileName, boolean directory) {
+		if (!FileSystem.isValidPath(fileName))
+			return -1;
 
-//	private void setDescriptorIndexInDirectorySlot(int dIndex, byte[] directorySlot)
-//	{
-//		FileSystem.copyArray(FileSystem.intToByteArray(dIndex), 0,
-//				directorySlot, FileSystem.FILE_NAME_SIZE);
-//	}
+		int status;
+		this.lockDirectory(true);
+		try {
+			status = this.destroyFileLocked(fileName, directory);
+		} finally {
+			this.unlockDirectory(true);
+		}
+		return this.commit(status);
+	}
 
-	private String getFileNameFromDirectorySlot(byte[] directorySlot) {
-		byte[] fileNameInBytes = new byte[FileSystem.FILE_NAME_SIZE];
-		FileSystem.copyArray(directorySlot, 0, fileNameInBytes, 0);
-		fileNameInBytes[FileSystem.FILE_NAME_SIZE - 1] = (byte) 0;
+	private int destroyFileLocked(String fileName, boolean directory) {
+		int parent = this.resolveParent(fileName);
+		int nameStart = fileName.lastIndexOf('/') + 1;
+		if (parent < 0)
+			return -1;
+		int descriptorIndex = this.lookup(parent, fileName, nameStart, fileName.length());
+		if (descriptorIndex < 0 || ((descriptorIndex & DirectoryTree.DIRECTORY) != 0) != directory)
+			return -1;
+		descriptorIndex &= ~DirectoryTree.DIRECTORY;
+		if (directory && !this.directory.isEmpty(descriptorIndex))
+			return -1;
+		if (this.directory.remove(parent, fileName, nameStart, fileName.length()) < 0)
+			return -1;
+		this.dentries.update(parent, fileName, nameStart, fileName.length(), DentryCache.NOT_FOUND);
 
-		return new String(fileNameInBytes).trim();
+		// wait for reads and writes on the file to finish, then close it wherever it is open
+		Lock fileLock = this.descriptorLock(descriptorIndex, true);
+		fileLock.lock();
+		try {
+			for (int handle = this.getOpenHandle(descriptorIndex); handle != -1;
+					handle = this.getOpenHandle(descriptorIndex))
+				this.closeFile(handle);
+
+			// update bitmap and free file descriptor
+			this.releaseMap.reset(descriptorIndex);
+			this.releaseMap.freeAll();
+			this.header.setLen(descriptorIndex, -1);
+			this.header.descriptorChanged(descriptorIndex);
+			if (directory)
+				this.directory.directoryRemoved();
+		} finally {
+			fileLock.unlock();
+		}
+		return 0;
 	}
 
-	private byte[] createDirectorySlot(String fileName, int descriptorIndex) {
-		byte[] bA = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-		byte[] fileNameInBytes = new byte[FileSystem.FILE_NAME_SIZE];
-		FileSystem.copyArray(fileName.getBytes(), 0, fileNameInBytes, 0);
-		fileNameInBytes[FileSystem.FILE_NAME_SIZE - 1] = (byte) 0;
-
-		FileSystem.copyArray(fileNameInBytes, 0, bA, 0);
-		FileSystem.copyArray(FileSystem.intToByteArray(descriptorIndex), 0, bA, FileSystem.FILE_NAME_SIZE);
+	private int readFileInEntry(int oftIndex, byte[] mem_area, int count) {
+		return this.readFileInEntry(oftIndex, ByteBuffer.wrap(mem_area), count);
+	}
 
-		return bA;
+	private int readFileInEntry(int oftIndex, ByteBuffer mem_area, int count) {
+		OFTEntry entry = this.lockEntry(oftIndex, false);
+		if (entry == null)
+			return -1;
+		try {
+			int numBytesToRead = Math.min(Math.min(count, mem_area.remaining()), this.fileLength(entry) - entry.currentPos);
+			if (numBytesToRead <= 0)
+				return 0;
+			this.readAt(entry.blockMap, entry.currentPos, mem_area, numBytesToRead);
+			this.readAhead(entry, entry.currentPos, numBytesToRead);
+			entry.currentPos += numBytesToRead;
+			return numBytesToRead;
+		} finally {
+			this.unlockEntry(entry, false);
+		}
 	}
 
+	private int writeFileInEntry(int oftIndex, byte[] mem_area, int count) {
+		return this.writeFileInEntry(oftIndex, ByteBuffer.wrap(mem_area), count);
+	}
 
-	private int createFile(String fileName) {
-		byte[] newDirSlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-		int descriptorIndex = this.header.getNextFreeDescriptorIndex();
-		if (descriptorIndex < 0) // if there are no free file descriptors
+	private int writeFileInEntry(int oftIndex, ByteBuffer mem_area, int count) {
+		OFTEntry entry = this.lockEntry(oftIndex, true);
+		if (entry == null)
 			return -1;
+		int done;
+		try {
+			done = this.writeAt(entry.blockMap, entry.currentPos, mem_area, count);
+			entry.currentPos += done;
+		} finally {
+			this.unlockEntry(entry, true);
+		}
+		return this.afterWrite(done);
+	}
 
-		newDirSlot = this.createDirectorySlot(fileName, descriptorIndex);
-		if (this.findFileInDirectory(fileName) >= 0) // file with name fileName exists
+	// reads into buffers in turn (or into buffer alone if buffers is null) from pos on, up to the end of the file;
+	// returns the number of bytes read, -1 if handle is not open or pos is negative
+	private int readFileAt(int handle, int pos, ByteBuffer buffer, ByteBuffer[] buffers) {
+		if (pos < 0)
 			return -1;
-
-		int directorySlotPos = this.getFreeDirectorySlotPos();
-		if (directorySlotPos < 0) // if there are no free directory slots
+		OFTEntry entry = this.lockFile(handle, false);
+		if (entry == null)
 			return -1;
+		try {
+			int done = 0;
+			for (int i = 0; i < (buffers == null ? 1 : buffers.length); i++) {
+				ByteBuffer mem_area = buffers == null ? buffer : buffers[i];
+				int count = Math.min(mem_area.remaining(), this.fileLength(entry) - pos - done);
+				if (count < 0) // at the end of the file
+					break;
+				this.readAt(entry.blockMap, pos + done, mem_area, count);
+				done += count;
+			}
+			return done;
+		} finally {
+			this.unlockFile(entry, false);
+		}
+	}
 
-		this.seekToPosInEntry(0, directorySlotPos);
-
-		int nextFreeDataBlock = this.header.getNextFreeDataBlockIndex();
-		if (nextFreeDataBlock < 0) // if all the data blocks have been allocated / disk is full
+	// writes buffers in turn (or buffer alone if buffers is null) from pos on; returns the number of bytes written,
+	// less than requested if the disk fills up, or -1
+	private int writeFileAt(int handle, int pos, ByteBuffer buffer, ByteBuffer[] buffers) {
+		if (pos < 0)
 			return -1;
+		OFTEntry entry = this.lockFile(handle, true);
+		if (entry == null)
+			return -1;
+		int done = 0;
+		try {
+			for (int i = 0; i < (buffers == null ? 1 : buffers.length); i++) {
+				ByteBuffer mem_area = buffers == null ? buffer : buffers[i];
+				int count = mem_area.remaining();
+				int written = this.writeAt(entry.blockMap, pos + done, mem_area, count);
+				done += written;
+				if (written < count) // the disk is full or the file at its largest size
+					break;
+			}
+		} finally {
+			this.unlockFile(entry, true);
+		}
+		return this.afterWrite(done);
+	}
 
-		this.header.setBit(nextFreeDataBlock);
-		this.header.getDescriptor(descriptorIndex).setLen(0);
-		this.header.getDescriptor(descriptorIndex).assignBlockToDescriptor(0, nextFreeDataBlock);
-
-		this.writeFileInEntry(0, newDirSlot, FileSystem.DIRECTORY_SLOT_SIZE);
-		return 0;
+	// a write commits like any other operation, unless write-behind leaves that to the flusher; the caller holds
+	// no locks
+	private int afterWrite(int status) {
+		WriteBehind writeBehind = this.writeBehind;
+		return writeBehind == null ? this.commit(status) : writeBehind.afterWrite(status, this.cache);
 	}
 
-	private int getOftEntryIndexWithDescriptorIndex(int descriptorIndex) {
-		for (int i = 0; i < this.OFT.length; i++) {
-			if (this.OFT[i].descriptorIndex == descriptorIndex)
-				return i;
+	private int reserveBlocks(int handle, int bytes) {
+		if (bytes < 0 || bytes > this.geometry.getMaxFileLen())
+			return -1;
+		OFTEntry entry = this.lockFile(handle, true);
+		if (entry == null)
+			return -1;
+		int reserved;
+		try {
+			int blockLength = this.geometry.getBlockLength();
+			reserved = entry.blockMap.reserve(0, (int) (((long) bytes + blockLength - 1) / blockLength), false);
+		} finally {
+			this.unlockFile(entry, true);
 		}
-		return -1;
+		if (reserved > 0)
+			this.metrics.blocksPreallocated(reserved);
+		return this.commit(reserved < 0 ? -1 : 0);
 	}
 
-	private int destroyFile(String fileName) {
-		byte[] dirSlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-		int dirSlotPos = this.findFileInDirectory(fileName);
-
-		if (dirSlotPos < 0)
+	private int truncateFile(int handle, int newLength) {
+		if (newLength < 0 || newLength > this.geometry.getMaxFileLen())
 			return -1;
+		OFTEntry entry = this.lockFile(handle, true);
+		if (entry == null)
+			return -1;
+		try {
+			int blockLength = this.geometry.getBlockLength();
+			int length = this.fileLength(entry);
+			if (newLength > length)
+				this.openGap(entry.blockMap, length, ((long) newLength + blockLength - 1) / blockLength * blockLength);
+			else if (newLength < length)
+				entry.blockMap.freeRange(((long) newLength + blockLength - 1) / blockLength, Long.MAX_VALUE);
+			this.header.setLen(entry.descriptorIndex, newLength);
+			this.header.descriptorChanged(entry.descriptorIndex);
+			this.blocksFreed(entry.blockMap);
+		} finally {
+			this.unlockFile(entry, true);
+		}
+		return this.commit(0);
+	}
 
-		this.seekToPosInEntry(0, dirSlotPos);
-		this.readFileInEntry(0, dirSlot, FileSystem.DIRECTORY_SLOT_SIZE);
-
-		int descriptorIndex = this.getDescriptorIndexFromDirectorySlot(dirSlot);
-
-		// free directory slot
-		dirSlot = this.createDirectorySlot("   ", -1);
-		this.seekToPosInEntry(0, dirSlotPos);
-		this.writeFileInEntry(0, dirSlot, FileSystem.DIRECTORY_SLOT_SIZE);
-
-		// update bitmap
-		if (descriptorIndex > 0) // if file descriptor is not empty and not directory descriptor
-		{
-			int[] diskMap = this.header.getDescriptor(descriptorIndex).getDiskMap();
-			for (int blockIndex : diskMap) {
-				if (blockIndex > FileSystem.NUM_RESERVED_BLOCKS - 1)
-					this.header.clearBit(blockIndex);
+	private int punchHoleInFile(int handle, int offset, int count) {
+		if (offset < 0 || count < 0)
+			return -1;
+		OFTEntry entry = this.lockFile(handle, true);
+		if (entry == null)
+			return -1;
+		try {
+			int blockLength = this.geometry.getBlockLength();
+			long end = (long) offset + count;
+			long first = ((long) offset + blockLength - 1) / blockLength; // first block wholly inside
+			long head = Math.min(end, first * blockLength);
+			this.zeroRange(entry.blockMap, offset, head);
+			if (end > head) {
+				entry.blockMap.freeRange(first, end / blockLength);
+				this.zeroRange(entry.blockMap, Math.max(head, end / blockLength * blockLength), end);
 			}
+			this.blocksFreed(entry.blockMap);
+		} finally {
+			this.unlockFile(entry, true);
 		}
+		return this.commit(0);
+	}
 
-		// close file if open
-		int oftIndex = this.getOftEntryIndexWithDescriptorIndex(descriptorIndex);
-		if (oftIndex != -1)
-			this.closeFile(oftIndex);
-
-
-		// free file descriptor
-		this.header.getDescriptor(descriptorIndex).setLen(-1);
-		this.header.getDescriptor(descriptorIndex).clearDiskMap();
-		return 0;
+	// before the file grows from length to end without data written in between: the rest of the block at length
+	// is zeroed and the blocks after it that lie wholly before end are freed, so that the gap reads as zeros. The
+	// caller holds the file's lock exclusively
+	private void openGap(BlockMap blockMap, int length, long end) {
+		int blockLength = this.geometry.getBlockLength();
+		long next = ((long) length + blockLength - 1) / blockLength * blockLength;
+		int diskBlockIndex = this.zeroRange(blockMap, length, Math.min(end, next));
+		// what was past the old length may reach the disk after the new length otherwise (ordered mode)
+		if (diskBlockIndex >= 0 && this.journal != null)
+			this.journal.addOrderedBlock(diskBlockIndex);
+		if (end / blockLength > next / blockLength && blockMap.freeRange(next / blockLength, end / blockLength) > 0)
+			this.blocksFreed(blockMap);
 	}
 
-	private int readFileInEntry(int oftIndex, byte[] mem_area, int count) {
-		if ((oftIndex < 0) || (oftIndex >= FileSystem.OFT_SIZE) || this.OFT[oftIndex].descriptorIndex < 0)
+	// zeroes the bytes from up to to, which lie in one block, if the block is allocated; returns the block, or -1
+	private int zeroRange(BlockMap blockMap, long from, long to) {
+		if (from >= to)
 			return -1;
+		int blockLength = this.geometry.getBlockLength();
+		int diskBlockIndex = blockMap.lookup((int) (from / blockLength));
+		if (diskBlockIndex >= 0)
+			this.cache.write(diskBlockIndex, (int) (from % blockLength), new byte[(int) (to - from)], 0, (int) (to - from),
+					blockMap.getDescriptorIndex());
+		return diskBlockIndex;
+	}
 
-		int numBytesToRead = Math.min(count, this.OFT[oftIndex].len - this.OFT[oftIndex].currentPos);
-
-		int rwBufferPos = this.OFT[oftIndex].currentPos % FileSystem.BLOCK_LENGTH;
-
-		for (int i = 0; i < numBytesToRead; rwBufferPos++, this.OFT[oftIndex].currentPos++, i++) {
-			if (rwBufferPos >= FileSystem.BLOCK_LENGTH) // if we have reached the end of rwBuffer
-			{
-				int nextDiskMapIndex = this.OFT[oftIndex].currentPos / FileSystem.BLOCK_LENGTH;
-				int nextDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(
-						nextDiskMapIndex);
-				int prevDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(
-						nextDiskMapIndex - 1);
-				this.disk.writeBlock(prevDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-				this.disk.readBlock(nextDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-				rwBufferPos = this.OFT[oftIndex].currentPos % FileSystem.BLOCK_LENGTH; // re-calculate rw buffer pos
+	// after blocks of the file were freed through one of its maps: the maps of the other entries on the file drop
+	// what they know
+	private void blocksFreed(BlockMap blockMap) {
+		synchronized (this.oftLock) {
+			for (int slot = this.firstOpenSlot[blockMap.getDescriptorIndex()]; slot >= 0; slot = this.OFT[slot].nextOpenSlot)
+				if (this.OFT[slot].blockMap != blockMap)
+					this.OFT[slot].blockMap.invalidate();
+		}
+	}
 
+	private int syncDisk() {
+		if (this.commit(0) < 0)
+			return -1;
+		this.mountLock.readLock().lock();
+		try {
+			if (this.journal != null) {
+				this.cache.flush();
+				this.disk.flush();
+				return 0;
 			}
-			mem_area[i] = this.OFT[oftIndex].rwBuffer[rwBufferPos];
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			this.mountLock.readLock().unlock();
 		}
-		return numBytesToRead;
+		return this.syncHeader();
 	}
 
-	private int writeFileInEntry(int oftIndex, byte[] mem_area, int count) {
-		if ((oftIndex < 0) || (oftIndex >= FileSystem.OFT_SIZE) || this.OFT[oftIndex].descriptorIndex < 0)
-			return -1;
+	// on a disk without a journal no log records carry the bitmap and the descriptors to disk: a sync writes them
+	// home, with every dirty block, by a checkpoint. Returns 0, or -1 on an I/O error
+	private int syncHeader() {
+		this.mountLock.writeLock().lock();
+		try {
+			return this.checkpoint();
+		} finally {
+			this.mountLock.writeLock().unlock();
+		}
+	}
 
-		int numBytesToWrite = Math.min(count, FileSystem.MAX_FILE_LEN - this.OFT[oftIndex].currentPos);
+	private int syncFile(int handle) {
+		OFTEntry entry = this.lockFile(handle, false);
+		if (entry == null)
+			return -1;
+		try {
+			this.cache.flushOwner(entry.blockMap.getDescriptorIndex()); // the data blocks writes left dirty
+		} finally {
+			this.unlockFile(entry, false);
+		}
+		if (this.commit(0) < 0) // the records of every file, after the blocks they grow files over
+			return -1;
+		this.mountLock.readLock().lock();
+		try {
+			if (this.journal != null) {
+				this.disk.flush();
+				return 0;
+			}
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			this.mountLock.readLock().unlock();
+		}
+		return this.syncHeader();
+	}
 
-		int rwBufferPos = this.OFT[oftIndex].currentPos % FileSystem.BLOCK_LENGTH;
+	// reads count bytes at pos of the file block by block: each step copies the part of one block that is needed
+	// with a single bulk transfer out of the block cache; blocks that were never allocated read as zeros.
+	// The caller holds the file's lock and has limited count to the file length
+	private void readAt(BlockMap blockMap, int pos, ByteBuffer mem_area, int count) {
+		int blockLength = this.geometry.getBlockLength();
+		for (int done = 0; done < count; ) {
+			int logicalBlock = pos / blockLength;
+			int blockOffset = pos % blockLength;
+			int chunk = Math.min(blockLength - blockOffset, count - done);
+
+			int diskBlockIndex = blockMap.lookup(logicalBlock);
+			if (diskBlockIndex < 0)
+				FileSystem.zeroFill(mem_area, chunk);
+			else
+				this.cache.read(diskBlockIndex, blockOffset, mem_area, chunk);
+			pos += chunk;
+			done += chunk;
+		}
+	}
 
-		for (int i = 0; i < numBytesToWrite; rwBufferPos++, this.OFT[oftIndex].currentPos++, i++) {
-			if (rwBufferPos >= FileSystem.BLOCK_LENGTH) // end of buffer reached
-			{
-				int nextDiskMapIndex = 1;
-				if (this.OFT[oftIndex].currentPos == 128)
-					nextDiskMapIndex = 2;
-				int prevDiskMapIndex = nextDiskMapIndex - 1;
-				int prevDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(prevDiskMapIndex);
-				int nextDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(
-						nextDiskMapIndex);
-
-				if (nextDiskBlockIndex < 0) {
-					int nextFreeBlock = this.header.getNextFreeDataBlockIndex();
-					if (nextFreeBlock < 0) // this means the disk has no free blocks to allocate
-					{
-						this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).setLen(numBytesToWrite);
-						return i; // i = the # of bytes written at this point
-					}
-					this.header.setBit(nextFreeBlock);
-					this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).assignBlockToDescriptor(nextDiskMapIndex,
-							nextFreeBlock);
-					nextDiskBlockIndex = nextFreeBlock;
-				}
-				this.disk.writeBlock(prevDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-				this.disk.readBlock(nextDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-				rwBufferPos = this.OFT[oftIndex].currentPos % FileSystem.BLOCK_LENGTH; // re-calculate rw buffer pos
-			}
-			this.OFT[oftIndex].rwBuffer[rwBufferPos] = mem_area[i];
+	// after a read at the cursor of count bytes at pos: a read starting where the previous one ended doubles the
+	// entry's read-ahead window, any other read closes it. Once less than half the window lies loaded ahead of
+	// the read, the blocks up to a window past it are handed to the entry's loader, which loads them into the
+	// cache on the async executor, so the reader finds them there; while the loader is still busy with the last
+	// blocks the next read tries again. Reads at a position leave the window alone. The caller holds the entry
+	// locked
+	private void readAhead(OFTEntry entry, int pos, int count) {
+		int blockLength = this.geometry.getBlockLength();
+		int window = 0;
+		if (pos == entry.readAheadNext)
+			window = Math.min(Math.max(entry.readAheadWindow * 2, READ_AHEAD_MIN),
+					Math.min(READ_AHEAD_MAX, this.cache.getCapacity() / 4));
+		entry.readAheadWindow = window;
+		entry.readAheadNext = pos + count;
+		int next = (pos + count + blockLength - 1) / blockLength; // first block not read yet
+		if (window == 0)
+			entry.readAheadEnd = 0; // what was loaded ahead of an earlier run of reads no longer counts
+		if (window == 0 || entry.readAheadEnd - next >= window / 2)
+			return;
+		ReadAhead loader = entry.readAhead;
+		if (loader == null)
+			loader = entry.readAhead = new ReadAhead(entry);
+		if (loader.busy)
+			return;
+		int from = Math.max(entry.readAheadEnd, next);
+		int to = Math.min(next + window, (this.fileLength(entry) + blockLength - 1) / blockLength);
+		entry.readAheadEnd = Math.max(entry.readAheadEnd, to);
+		if (from >= to)
+			return;
+		boolean any = false;
+		for (int i = 0; i < to - from; i++) {
+			loader.blocks[i] = entry.blockMap.lookup(from + i); // holes read as zeros without a block
+			any |= loader.blocks[i] >= 0;
 		}
+		if (!any)
+			return;
+		loader.from = from;
+		loader.count = to - from;
+		loader.cache = this.cache;
+		if (loader.data == null || loader.data.length != READ_AHEAD_MAX * blockLength)
+			loader.data = new byte[READ_AHEAD_MAX * blockLength];
+		loader.busy = true;
+		try {
+			this.async().getExecutor().execute(loader);
+		} catch (RejectedExecutionException e) { // e.g. the executor was shut down: read without loading ahead
+			loader.busy = false;
+		}
+	}
 
-		if (this.OFT[oftIndex].currentPos == 64 || this.OFT[oftIndex].currentPos == 128)
-		{
-			int nextDiskMapIndex = 1;
-			if (this.OFT[oftIndex].currentPos == 128)
-				nextDiskMapIndex = 2;
-			int prevDiskMapIndex = nextDiskMapIndex - 1;
-			int prevDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(prevDiskMapIndex);
-			int nextDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(
-					nextDiskMapIndex);
-			if (nextDiskBlockIndex < 0)
-			{
-				int nextFreeBlock = this.header.getNextFreeDataBlockIndex();
-				if (nextFreeBlock < 0) // this means the disk has no free blocks to allocate
-				{
-					this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).setLen(numBytesToWrite);
-					return numBytesToWrite;
-				}
-				this.header.setBit(nextFreeBlock);
-				this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).assignBlockToDescriptor(nextDiskMapIndex,
-						nextFreeBlock);
-				nextDiskBlockIndex = nextFreeBlock;
+	// block by block counterpart of readAt; whole-block writes replace the cached block without reading it from
+	// disk first. Extends the file length as needed and returns the number of bytes written, which is less than
+	// count if the disk fills up. The caller holds the file's lock exclusively
+	private int writeAt(BlockMap blockMap, int pos, ByteBuffer mem_area, int count) {
+		int blockLength = this.geometry.getBlockLength();
+		int numBytesToWrite = Math.min(Math.min(count, mem_area.remaining()), this.geometry.getMaxFileLen() - pos);
+		int length = this.header.getLen(blockMap.getDescriptorIndex());
+		if (pos > length && numBytesToWrite > 0) // the bytes skipped become a hole
+			this.openGap(blockMap, length, pos);
+
+		int done = 0;
+		while (done < numBytesToWrite) {
+			int logicalBlock = (pos + done) / blockLength;
+			int blockOffset = (pos + done) % blockLength;
+			int chunk = Math.min(blockLength - blockOffset, numBytesToWrite - done);
+
+			// a block that starts past the old length holds nothing of the file: it is zeroed, not read
+			boolean fresh = (long) logicalBlock * blockLength >= length;
+			int diskBlockIndex = blockMap.lookup(logicalBlock);
+			if (diskBlockIndex < 0 && fresh && this.preallocate) {
+				int reserved = blockMap.reserve(logicalBlock, Math.max(1, Math.min(logicalBlock, PREALLOCATE_MAX)), true);
+				if (reserved > 1)
+					this.metrics.blocksPreallocated(reserved - 1); // the ones after this block
 			}
-			this.disk.writeBlock(prevDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-			this.disk.readBlock(nextDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
+			boolean allocated = diskBlockIndex < 0;
+			if (allocated)
+				diskBlockIndex = blockMap.allocate(logicalBlock);
+			if (diskBlockIndex < 0) // the disk has no free blocks to allocate; done = the # of bytes written at this point
+				break;
+			if (fresh)
+				this.cache.writeFresh(diskBlockIndex, blockOffset, mem_area, chunk, blockMap.getDescriptorIndex());
+			else
+				this.cache.write(diskBlockIndex, blockOffset, mem_area, chunk, blockMap.getDescriptorIndex());
+			done += chunk;
+			// blocks the file grows over, new or not, and blocks filling a hole go to disk before the length or the
+			// map entry that make them part of the file (ordered mode)
+			if ((allocated || pos + done > length) && this.journal != null)
+				this.journal.addOrderedBlock(diskBlockIndex);
 		}
 
+		if (done > 0 && pos + done > length) {
+			this.header.setLen(blockMap.getDescriptorIndex(), pos + done);
+			this.header.descriptorChanged(blockMap.getDescriptorIndex());
+		}
+		return done;
+	}
 
-		this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).updateLen(numBytesToWrite);
-		this.OFT[oftIndex].len = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getLen();
-		return numBytesToWrite;
+	static void zeroFill(ByteBuffer mem_area, int count) {
+		if (mem_area.hasArray()) {
+			int arrayPos = mem_area.arrayOffset() + mem_area.position();
+			Arrays.fill(mem_area.array(), arrayPos, arrayPos + count, (byte) 0);
+			mem_area.position(mem_area.position() + count);
+		} else {
+			for (int i = 0; i < count; i++)
+				mem_area.put((byte) 0);
+		}
 	}
 
 	private int seekToPosInEntry(int oftIndex, int pos) {
-		if ((oftIndex < 0) || (oftIndex >= FileSystem.OFT_SIZE) || this.OFT[oftIndex].descriptorIndex < 0 ||
-				pos < 0 || pos > FileSystem.MAX_FILE_LEN || pos > this.OFT[oftIndex].len + 1)  // len of file is a valid pos
-			// as long as file len is not 192
-			return -1;
-
-		int currentPos = this.OFT[oftIndex].currentPos;
-		int currentDiskMapIndex = 0;
-		if( currentPos >= 0 && currentPos < 64 )
-			currentDiskMapIndex = 0;
-		if( currentPos >= 64 && currentPos < 128 )
-			currentDiskMapIndex = 1;
-		if( currentPos >= 128 && currentPos < 192 )
-			currentDiskMapIndex = 2;
-
-		int goToIndex = 0;
-		if( pos >= 0 && pos < 64 )
-			goToIndex = 0;
-		if( pos >= 64 && pos < 128 )
-			goToIndex = 1;
-		if( pos >= 128 && pos < 192 )
-			goToIndex = 2;
-
-		if(goToIndex == currentDiskMapIndex)
-		{
-			this.OFT[oftIndex].currentPos = pos;
-			return pos;
-		}
-		else
-		{
-			int currentDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(
-					currentDiskMapIndex);
-			int goToDiskBlockIndex = this.header.getDescriptor(this.OFT[oftIndex].descriptorIndex).getBlockIndex(goToIndex);
-			if(goToDiskBlockIndex < 0)
+		OFTEntry entry = this.lockEntry(oftIndex, false);
+		if (entry == null)
+			return -1;
+		try {
+			if (pos < 0 || pos > this.geometry.getMaxFileLen()) // past the end of the file, a write leaves a hole
 				return -1;
-			this.disk.writeBlock(currentDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-			this.disk.readBlock(goToDiskBlockIndex, this.OFT[oftIndex].rwBuffer);
-			this.OFT[oftIndex].currentPos = pos;
+
+			// the block at pos is loaded on the next read or write
+			entry.currentPos = pos;
 			return pos;
+		} finally {
+			this.unlockEntry(entry, false);
 		}
 	}
 
-	private String listFilesInDirectory() {
-		String fileNames = "";
+	// names in order, each followed by a space; from: first name to list (null: from the start). null if there
+	// is no directory at path
+	private String listFilesInDirectory(String path, String from, int count) {
+		boolean root = path.equals("/");
+		if (!root && !FileSystem.isValidPath(path) || from != null && !FileSystem.isValidFileName(from, 0, from.length()))
+			return null;
+		StringBuilder fileNames = new StringBuilder();
 
-		this.seekToPosInEntry(0, 0);
-
-		for (int i = 0; i < this.OFT[0].len; i += FileSystem.DIRECTORY_SLOT_SIZE) {
-			byte[] directorySlot = new byte[FileSystem.DIRECTORY_SLOT_SIZE];
-			this.readFileInEntry(0, directorySlot, FileSystem.DIRECTORY_SLOT_SIZE);
-			fileNames += this.getFileNameFromDirectorySlot(directorySlot) + " ";
+		this.lockDirectory(false);
+		try {
+			int directory = 0;
+			if (!root) {
+				int parent = this.resolveParent(path);
+				directory = parent < 0 ? -1 : this.lookup(parent, path, path.lastIndexOf('/') + 1, path.length());
+				if (directory < 0 || (directory & DirectoryTree.DIRECTORY) == 0)
+					return null;
+				directory &= ~DirectoryTree.DIRECTORY;
+			}
+			this.directory.list(directory, fileNames, from, count);
+		} finally {
+			this.unlockDirectory(false);
 		}
-		return fileNames;
+		return fileNames.toString();
 	}
 
 	public int saveDiskToFile(String outputFileName)
 	{
-		// write disk map to disk
-		this.disk.writeBlock(0,this.header.bitmapToDiskBlock());
-
-		//close all open files
-		for(int i = 0; i < this.OFT.length; i++)
-		{
-			if (this.OFT[i].len != -1)
-				this.closeFile(i);
+		long start = this.metrics.start(FileSystemMetrics.SAVE);
+		this.mountLock.writeLock().lock();
+		try {
+			return this.saveDiskToFileLocked(outputFileName);
+		} finally {
+			this.mountLock.writeLock().unlock();
+			this.metrics.finish(FileSystemMetrics.SAVE, start);
 		}
+	}
 
-		// write disk header to disk
-		for(int i = 0; i < FileSystem.NUM_DESCRIPTOR_BLOCKS; i++)
+	private int saveDiskToFileLocked(String outputFileName)
+	{
+		//close all open files
+		for(int i = 1; i < this.OFT.length; i++)
 		{
-			this.disk.writeBlock(i + 1, this.header.descriptorBlockToByteArray(i));
+			if (this.OFT[i].descriptorIndex != -1)
+				this.closeFile(this.toHandle(i));
 		}
+		// write dirty blocks, bitmap and disk header to disk; persists the image in place when the device is
+		// file-backed
+		if (this.checkpoint() < 0)
+			return -1;
 		try {
 			ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(outputFileName));
 			outputStream.writeObject(this);
@@ -599,10 +1665,104 @@ public class FileSystem implements Serializable {
 		return 0;
 	}
 
+	// writes every block of the disk to a base image and starts a new image chain.
+	// return:	number of blocks saved
+	//		   -1	- error
+	public int saveImageToFile(String outputFileName)
+	{
+		long start = this.metrics.start(FileSystemMetrics.SAVE);
+		this.mountLock.writeLock().lock();
+		try {
+			if (this.checkpoint() < 0)
+				return -1;
+			BitSet blocks = new BitSet();
+			blocks.set(0, this.disk.getDevice().getNumBlocks());
+			this.disk.takeDirtyBlocks();
+			return this.writeImage(outputFileName, ThreadLocalRandom.current().nextLong(), 0, blocks);
+		} finally {
+			this.mountLock.writeLock().unlock();
+			this.metrics.finish(FileSystemMetrics.SAVE, start);
+		}
+	}
+
+	// writes the blocks changed since the last image of the chain to a delta image; open files stay open
+	// return:	number of blocks saved
+	//		   -1	- error, or no base image was saved or restored since the disk was attached
+	public int saveDeltaToFile(String outputFileName)
+	{
+		long start = this.metrics.start(FileSystemMetrics.SAVE);
+		this.mountLock.writeLock().lock();
+		try {
+			if (this.lastImage == null || this.checkpoint() < 0)
+				return -1;
+			return this.writeImage(outputFileName, this.lastImage.getChainId(), this.lastImage.getGeneration() + 1,
+					this.disk.takeDirtyBlocks());
+		} finally {
+			this.mountLock.writeLock().unlock();
+			this.metrics.finish(FileSystemMetrics.SAVE, start);
+		}
+	}
+
+	// the caller holds the mount lock exclusively and has taken the dirty set
+	private int writeImage(String outputFileName, long chainId, int generation, BitSet blocks)
+	{
+		try {
+			this.lastImage = DiskImage.write(this.disk, Paths.get(outputFileName), chainId, generation, blocks,
+					this.isCompressed());
+			return blocks.cardinality();
+		} catch (IOException e) {
+			// the blocks may be missing from the file, so the chain cannot be continued
+			this.lastImage = null;
+			return -1;
+		}
+	}
+
+	// mounts a heap disk built from a base image and the deltas saved after it, in order, compressed if the base
+	// image is; later deltas of the chain can then be saved from the restored disk
+	// return:	0	- disk restored
+	//		   -1	- error; the current disk stays mounted
+	public int restoreImageFromFiles(String baseFileName, String... deltaFileNames)
+	{
+		long start = this.metrics.start(FileSystemMetrics.RESTORE);
+		this.mountLock.writeLock().lock();
+		try {
+			Path basePath = Paths.get(baseFileName);
+			int[] imageGeometry = DiskImage.readGeometry(basePath);
+			BlockDevice device = DiskImage.isCompressed(basePath)
+					? new CompressedBlockDevice(imageGeometry[1], imageGeometry[0])
+					: new HeapBlockDevice(imageGeometry[1], imageGeometry[0]);
+			DiskImage image = DiskImage.apply(device, basePath, null);
+			for (String deltaFileName : deltaFileNames)
+				image = DiskImage.apply(device, Paths.get(deltaFileName), image);
+
+			if (this.mountDisk(new LDisk(device)) < 0)
+				return -1;
+			this.lastImage = image;
+			return 0;
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			this.mountLock.writeLock().unlock();
+			this.metrics.finish(FileSystemMetrics.RESTORE, start);
+		}
+	}
+
 	public int restoreDiskFromFile(String inFileName)
 			// return:	0	- disk initialized
 			//			1	- disk restored
 			//		   -1	- error
+	{
+		long start = this.metrics.start(FileSystemMetrics.RESTORE);
+		this.mountLock.writeLock().lock();
+		try {
+			return this.restoreDiskFromFileLocked(inFileName);
+		} finally {
+			this.mountLock.writeLock().unlock();
+			this.metrics.finish(FileSystemMetrics.RESTORE, start);
+		}
+	}
+
+	private int restoreDiskFromFileLocked(String inFileName)
 	{
 		FileInputStream inputFile = null;
 		int option = 0; // initialize disk by default
@@ -615,7 +1775,7 @@ public class FileSystem implements Serializable {
 
 		if(option == 0)
 		{
-			this.initializeFileSystem();
+			this.initializeFileSystem(this.geometry);
 		}
 		else if(option == 1) // restore disk
 		{
@@ -623,19 +1783,16 @@ public class FileSystem implements Serializable {
 
 				ObjectInputStream inputStream = new ObjectInputStream(inputFile);
 				FileSystem f2 = (FileSystem) inputStream.readObject();
+				inputStream.close();
+				this.geometry = f2.geometry;
 				this.header = f2.header;
 				this.disk = f2.disk;
-				this.OFT = this.OFT;
-				byte[] dataBlock = new byte[FileSystem.BLOCK_LENGTH];
-				this.disk.readBlock(this.header.getDescriptor(0).getBlockIndex(0), dataBlock);
-				this.openDirectory(0,this.header.getDescriptor(0).getLen(), dataBlock);
-
-				for(int i = 1; i < this.OFT.length; i++)
-				{
-					this.OFT[i].currentPos = 0;
-					this.OFT[i].descriptorIndex = -1;
-					this.OFT[i].len = -1;
-				}
+				this.cache = new BlockCache(this.disk, this.cacheCapacity);
+				this.header.attach(this.disk, this.cache); // the descriptors are read from the disk as they are used
+				this.lastImage = null;
+				this.openJournal(true); // images are saved at a checkpoint, so there is normally nothing to replay
+				this.attachMetrics();
+				this.openDirectoryFromDisk(); // all other oft entries start out free
 
 			} catch (IOException e) {
 				return -1;
@@ -649,27 +1806,6 @@ public class FileSystem implements Serializable {
 
 
 
-	static public byte[] intToByteArray(int val) {
-		byte[] bA = new byte[INT_SIZE];
-		final int MASK = 0xff;
-		for (int i = 3; i >= 0; i--) {
-			bA[i] = (byte) (val & MASK);
-			val = val >> 8;
-		}
-		return bA;
-	}
-
-	static public int byteArrayToInt(byte[] bA) {
-		final int MASK = 0xff;
-		int v = (int) bA[0] & MASK;
-		for (int i = 1; i < 4; i++) {
-			v = v << 8;
-			v = v | ((int) bA[i] & MASK);
-		}
-		return v;
-	}
-
-
 	public void printDisk()
 	{
 		System.out.println(this.disk.diskToString());
@@ -0,0 +1,474 @@
+package filesystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// counters and per-operation latency histograms of one file system, shown over JMX once registered and by
+// report(). Counters are LongAdders and histograms fixed arrays of atomic bucket counts (the buckets of
+// LatencyHistogram), so recording takes no lock and allocates nothing. Every call is counted, but only the first
+// call of each operation and then one in SAMPLE_RATE, picked at random, are timed: reading the clock twice costs
+// as much as a cached read. The gauges are read from the file system when asked for
+//
+// running with -Dfilesystem.metrics=false turns every recording call into a constant test the JIT removes
+public final class FileSystemMetrics implements FileSystemMetricsMBean {
+
+	static final boolean ENABLED = !"false".equals(System.getProperty("filesystem.metrics"));
+	private static final int SAMPLE_RATE = 16; // a power of two
+	private static final long NOT_TIMED = Long.MIN_VALUE;
+
+	// timed operations; lookup is a path component searched for in a directory's tree, which the dentry cache
+	// did not know
+	static final int CREATE = 0, DESTROY = 1, MKDIR = 2, RMDIR = 3, OPEN = 4, CLOSE = 5, READ = 6, WRITE = 7,
+			SEEK = 8, DIRECTORY = 9, LOOKUP = 10, SAVE = 11, RESTORE = 12, SYNC = 13, FSYNC = 14,
+			RESERVE = 15, TRUNCATE = 16, PUNCH_HOLE = 17;
+	private static final String[] OPERATIONS = {
+		"create", "destroy", "mkdir", "rmdir", "open", "close", "read", "write", "lseek", "directory", "lookup",
+		"save", "restore", "sync", "fsync", "reserve", "truncate", "punchHole"
+	};
+
+	private static final class Latency {
+		final LongAdder calls = new LongAdder();
+		final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.NUM_BUCKETS);
+		final LongAdder total = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+		volatile boolean sampled; // a call has been timed since the last reset
+
+		void record(long nanos)
+		{
+			this.sampled = true;
+			if (nanos < 0)
+				nanos = 0;
+			this.counts.getAndIncrement(LatencyHistogram.bucket(nanos));
+			this.total.add(nanos);
+			long max = this.max.get();
+			while (nanos > max && !this.max.compareAndSet(max, nanos))
+				max = this.max.get();
+		}
+
+		LatencyHistogram snapshot()
+		{
+			LatencyHistogram histogram = new LatencyHistogram();
+			for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++)
+			{
+				long count = this.counts.get(i);
+				if (count > 0)
+					histogram.add(i, count);
+			}
+			histogram.setTotal(this.total.sum(), this.max.get());
+			return histogram;
+		}
+
+		void reset()
+		{
+			for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++)
+				this.counts.set(i, 0);
+			this.calls.reset();
+			this.total.reset();
+			this.max.set(0);
+			this.sampled = false;
+		}
+	}
+
+	private final FileSystem fs;
+	private final LongAdder blockReads = new LongAdder();
+	private final LongAdder blockWrites = new LongAdder();
+	private final LongAdder writeBacks = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder allocatorSearches = new LongAdder();
+	private final LongAdder readAheadLoaded = new LongAdder();
+	private final LongAdder readAheadHits = new LongAdder();
+	private final LongAdder readAheadWasted = new LongAdder();
+	private final LongAdder flusherPasses = new LongAdder();
+	private final LongAdder writeStalls = new LongAdder();
+	private final LongAdder blocksPreallocated = new LongAdder();
+	private final LongAdder blocksTrimmed = new LongAdder();
+	private final LongAdder bytesCompressed = new LongAdder();
+	private final LongAdder bytesCompressedTo = new LongAdder();
+	private final LongAdder directoryNodesRead = new LongAdder();
+	private final LongAdder directoryEntriesScanned = new LongAdder();
+	private final Latency[] latencies = new Latency[OPERATIONS.length];
+	private ObjectName name; // set while registered
+
+	FileSystemMetrics(FileSystem fs)
+	{
+		this.fs = fs;
+		for (int i = 0; i < this.latencies.length; i++)
+			this.latencies[i] = new Latency();
+	}
+
+	// recording, called by the file system and its parts
+
+	// the start of a call of operation, to pass to finish
+	long start(int operation)
+	{
+		if (!ENABLED || (this.latencies[operation].sampled && (ThreadLocalRandom.current().nextInt() & (SAMPLE_RATE - 1)) != 0))
+			return NOT_TIMED;
+		return System.nanoTime();
+	}
+
+	void finish(int operation, long start)
+	{
+		if (!ENABLED)
+			return;
+		Latency latency = this.latencies[operation];
+		latency.calls.increment();
+		if (start != NOT_TIMED)
+			latency.record(System.nanoTime() - start);
+	}
+
+	void blocksRead(int count)
+	{
+		if (ENABLED)
+			this.blockReads.add(count);
+	}
+
+	void blocksWritten(int count)
+	{
+		if (ENABLED)
+			this.blockWrites.add(count);
+	}
+
+	void writtenBack(int count)
+	{
+		if (ENABLED)
+			this.writeBacks.add(count);
+	}
+
+	void cacheAccess(boolean hit)
+	{
+		if (ENABLED)
+			(hit ? this.cacheHits : this.cacheMisses).increment();
+	}
+
+	void allocatorSearch()
+	{
+		if (ENABLED)
+			this.allocatorSearches.increment();
+	}
+
+	void readAheadLoaded(int count)
+	{
+		if (ENABLED)
+			this.readAheadLoaded.add(count);
+	}
+
+	void readAheadHit()
+	{
+		if (ENABLED)
+			this.readAheadHits.increment();
+	}
+
+	void readAheadWasted()
+	{
+		if (ENABLED)
+			this.readAheadWasted.increment();
+	}
+
+	void flusherPass()
+	{
+		if (ENABLED)
+			this.flusherPasses.increment();
+	}
+
+	void writeStalled()
+	{
+		if (ENABLED)
+			this.writeStalls.increment();
+	}
+
+	void blocksPreallocated(int count)
+	{
+		if (ENABLED)
+			this.blocksPreallocated.add(count);
+	}
+
+	void blocksTrimmed(int count)
+	{
+		if (ENABLED)
+			this.blocksTrimmed.add(count);
+	}
+
+	void compressed(long length, long compressedLength)
+	{
+		if (ENABLED)
+		{
+			this.bytesCompressed.add(length);
+			this.bytesCompressedTo.add(compressedLength);
+		}
+	}
+
+	void directoryNodeRead()
+	{
+		if (ENABLED)
+			this.directoryNodesRead.increment();
+	}
+
+	void directoryEntriesScanned(int count)
+	{
+		if (ENABLED)
+			this.directoryEntriesScanned.add(count);
+	}
+
+	// JMX
+
+	// registers these metrics with the platform MBean server as filesystem:type=FileSystem,name=<name>,
+	// replacing metrics registered under that name before
+	public void register(String name) throws JMException
+	{
+		ObjectName objectName = new ObjectName("filesystem:type=FileSystem,name=" + ObjectName.quote(name));
+		this.unregister();
+		if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.name = objectName;
+	}
+
+	public void unregister() throws JMException
+	{
+		if (this.name != null)
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+			this.name = null;
+		}
+	}
+
+	@Override
+	public long getBlockReads()
+	{
+		return this.blockReads.sum();
+	}
+
+	@Override
+	public long getBlockWrites()
+	{
+		return this.blockWrites.sum();
+	}
+
+	@Override
+	public long getWriteBacks()
+	{
+		return this.writeBacks.sum();
+	}
+
+	@Override
+	public long getCacheHits()
+	{
+		return this.cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses()
+	{
+		return this.cacheMisses.sum();
+	}
+
+	@Override
+	public long getAllocatorSearches()
+	{
+		return this.allocatorSearches.sum();
+	}
+
+	@Override
+	public long getReadAheadLoaded()
+	{
+		return this.readAheadLoaded.sum();
+	}
+
+	@Override
+	public long getReadAheadHits()
+	{
+		return this.readAheadHits.sum();
+	}
+
+	@Override
+	public long getReadAheadWasted()
+	{
+		return this.readAheadWasted.sum();
+	}
+
+	@Override
+	public long getFlusherPasses()
+	{
+		return this.flusherPasses.sum();
+	}
+
+	@Override
+	public long getWriteStalls()
+	{
+		return this.writeStalls.sum();
+	}
+
+	@Override
+	public long getBlocksPreallocated()
+	{
+		return this.blocksPreallocated.sum();
+	}
+
+	@Override
+	public long getBlocksTrimmed()
+	{
+		return this.blocksTrimmed.sum();
+	}
+
+	@Override
+	public long getBytesCompressed()
+	{
+		return this.bytesCompressed.sum();
+	}
+
+	@Override
+	public long getBytesCompressedTo()
+	{
+		return this.bytesCompressedTo.sum();
+	}
+
+	@Override
+	public long getDirectoryNodesRead()
+	{
+		return this.directoryNodesRead.sum();
+	}
+
+	@Override
+	public long getDirectoryEntriesScanned()
+	{
+		return this.directoryEntriesScanned.sum();
+	}
+
+	@Override
+	public int getUsedBlocks()
+	{
+		return this.fs.getNumUsedBlocks();
+	}
+
+	@Override
+	public int getTotalBlocks()
+	{
+		return this.fs.getGeometry().getNumBlocks();
+	}
+
+	@Override
+	public long getDiskBytesStored()
+	{
+		return this.fs.getDiskBytesStored();
+	}
+
+	@Override
+	public int getOpenFiles()
+	{
+		return this.fs.getNumOpenFiles();
+	}
+
+	@Override
+	public int getOftCapacity()
+	{
+		return this.fs.getGeometry().getOftSize() - 1; // less the directory's entry
+	}
+
+	@Override
+	public String[] getOperations()
+	{
+		return OPERATIONS.clone();
+	}
+
+	// calls made; -1 for an unknown operation
+	@Override
+	public long getCount(String operation)
+	{
+		int i = Arrays.asList(OPERATIONS).indexOf(operation);
+		return i < 0 ? -1 : this.latencies[i].calls.sum();
+	}
+
+	// of the calls timed; percentile: 0 to 100; -1 for an unknown operation or one no call of which was timed
+	@Override
+	public long getPercentile(String operation, double percentile)
+	{
+		int i = Arrays.asList(OPERATIONS).indexOf(operation);
+		if (i < 0)
+			return -1;
+		LatencyHistogram latency = this.latencies[i].snapshot();
+		return latency.getCount() == 0 ? -1 : latency.percentile(percentile / 100);
+	}
+
+	// the counters, gauges and the latencies of the operations run so far, one per line
+	@Override
+	public String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "blocks read %d written %d written back %d\n",
+				this.getBlockReads(), this.getBlockWrites(), this.getWriteBacks()));
+		sb.append(String.format(Locale.ROOT, "cache hits %d misses %d\n", this.getCacheHits(), this.getCacheMisses()));
+		sb.append(String.format(Locale.ROOT, "allocator searches %d\n", this.getAllocatorSearches()));
+		sb.append(String.format(Locale.ROOT, "read-ahead loaded %d hits %d wasted %d\n",
+				this.getReadAheadLoaded(), this.getReadAheadHits(), this.getReadAheadWasted()));
+		sb.append(String.format(Locale.ROOT, "write-behind passes %d stalls %d\n",
+				this.getFlusherPasses(), this.getWriteStalls()));
+		sb.append(String.format(Locale.ROOT, "preallocated blocks %d trimmed %d\n",
+				this.getBlocksPreallocated(), this.getBlocksTrimmed()));
+		long compressed = this.getBytesCompressed();
+		long compressedTo = this.getBytesCompressedTo();
+		long diskBytes = (long) this.getTotalBlocks() * this.fs.getGeometry().getBlockLength();
+		long diskBytesStored = this.getDiskBytesStored();
+		sb.append(String.format(Locale.ROOT, "compressed bytes %d to %d (%.2fx), disk held in %d of %d (%.2fx)\n",
+				compressed, compressedTo, FileSystemMetrics.ratio(compressed, compressedTo), diskBytesStored, diskBytes,
+				FileSystemMetrics.ratio(diskBytes, diskBytesStored)));
+		sb.append(String.format(Locale.ROOT, "directory nodes read %d entries scanned %d\n",
+				this.getDirectoryNodesRead(), this.getDirectoryEntriesScanned()));
+		sb.append(String.format(Locale.ROOT, "blocks used %d of %d, files open %d of %d\n",
+				this.getUsedBlocks(), this.getTotalBlocks(), this.getOpenFiles(), this.getOftCapacity()));
+		for (int i = 0; i < OPERATIONS.length; i++)
+		{
+			long calls = this.latencies[i].calls.sum();
+			if (calls == 0)
+				continue;
+			LatencyHistogram latency = this.latencies[i].snapshot();
+			if (latency.getCount() == 0) // calls counted since a reset while none of them was timed
+				sb.append(String.format(Locale.ROOT, "%-9s %10d ops  p50 -  p90 -  p99 -  p99.9 -  max - ns\n",
+						OPERATIONS[i], calls));
+			else
+				sb.append(String.format(Locale.ROOT, "%-9s %10d ops  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d ns\n",
+						OPERATIONS[i], calls, latency.percentile(0.5), latency.percentile(0.9),
+						latency.percentile(0.99), latency.percentile(0.999), latency.getMax()));
+		}
+		if (!ENABLED)
+			sb.append("metrics are off (-Dfilesystem.metrics=false)").append("\n");
+		return sb.toString();
+	}
+
+	private static double ratio(long length, long compressedLength)
+	{
+		return compressedLength == 0 ? (length == 0 ? 1 : Double.POSITIVE_INFINITY) : (double) length / compressedLength;
+	}
+
+	@Override
+	public void reset()
+	{
+		this.blockReads.reset();
+		this.blockWrites.reset();
+		this.writeBacks.reset();
+		this.cacheHits.reset();
+		this.cacheMisses.reset();
+		this.allocatorSearches.reset();
+		this.readAheadLoaded.reset();
+		this.readAheadHits.reset();
+		this.readAheadWasted.reset();
+		this.flusherPasses.reset();
+		this.writeStalls.reset();
+		this.blocksPreallocated.reset();
+		this.blocksTrimmed.reset();
+		this.bytesCompressed.reset();
+		this.bytesCompressedTo.reset();
+		this.directoryNodesRead.reset();
+		this.directoryEntriesScanned.reset();
+		for (Latency latency : this.latencies)
+			latency.reset();
+	}
+}
@@ -0,0 +1,60 @@
+package filesystem;
+
+// what a file system's metrics show over JMX; counters count from the file system's creation or the last reset,
+// latencies are in nanoseconds, taken from a sample of the calls
+public interface FileSystemMetricsMBean {
+
+	long getBlockReads();
+
+	long getBlockWrites();
+
+	long getWriteBacks(); // dirty blocks the cache wrote home
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getAllocatorSearches();
+
+	long getReadAheadLoaded(); // blocks loaded ahead of sequential readers
+
+	long getReadAheadHits(); // of those, blocks a reader then found in the cache
+
+	long getReadAheadWasted(); // and blocks evicted or dropped before anyone read them
+
+	long getFlusherPasses(); // syncs run by the write-behind flusher
+
+	long getWriteStalls(); // writes that waited for the flusher
+
+	long getBlocksPreallocated(); // blocks allocated ahead of writes, by reserve and in preallocation mode
+
+	long getBlocksTrimmed(); // of those, blocks given back unused when their file was closed
+
+	long getBytesCompressed(); // bytes of blocks compressed on their way to the disk or into a saved disk or image
+
+	long getBytesCompressedTo(); // what they took compressed
+
+	long getDirectoryNodesRead();
+
+	long getDirectoryEntriesScanned();
+
+	int getUsedBlocks();
+
+	int getTotalBlocks();
+
+	long getDiskBytesStored(); // bytes the disk keeps its blocks in; less than its size if they are compressed
+
+	int getOpenFiles();
+
+	int getOftCapacity();
+
+	String[] getOperations();
+
+	long getCount(String operation);
+
+	long getPercentile(String operation, double percentile);
+
+	String report();
+
+	void reset();
+}
@@ -0,0 +1,50 @@
+package filesystem;
+
+import java.io.Serializable;
+
+public class HeapBlockDevice implements BlockDevice, Serializable {
+
+	private static final long serialVersionUID = 2658018310153318411L;
+
+	private byte[][] blocks;
+
+	public HeapBlockDevice(int numBlocks, int blockLength)
+	{
+		this.blocks = new byte[numBlocks][blockLength];
+	}
+
+	public HeapBlockDevice(byte[][] blocks)
+	{
+		this.blocks = blocks;
+	}
+
+	@Override
+	public int getNumBlocks() {
+		return this.blocks.length;
+	}
+
+	@Override
+	public int getBlockLength() {
+		return this.blocks.length == 0 ? 0 : this.blocks[0].length;
+	}
+
+	@Override
+	public void readBlock(int index, byte[] p, int offset)
+	{
+		System.arraycopy(this.blocks[index], 0, p, offset, this.blocks[index].length);
+	}
+
+	@Override
+	public void writeBlock(int index, byte[] p, int offset)
+	{
+		System.arraycopy(p, offset, this.blocks[index], 0, this.blocks[index].length);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,562 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// write-ahead journal of metadata changes, kept in the journal blocks of the disk
+//
+// the bitmap and the descriptors only reach their home blocks at a checkpoint; in between, every change to them
+// is logged as a record: a range of blocks set or cleared, or the new image of a descriptor. Directory and
+// indirect blocks are changed through the block cache, and those changes are logged as bytes written to, or a
+// fill of, a block. Records are buffered and written to the log as one checksummed transaction when an
+// operation commits; threads committing at the same time share one log write and device flush (group commit).
+// A cached block with uncommitted records is written back only after they are committed (the write-ahead rule),
+// and file data blocks allocated since the last commit, or grown into, are written back before the records that
+// link them into a file or extend its length over them (ordered mode). Replaying the committed transactions over
+// the last checkpoint therefore gives a consistent header; an operation cut short by a crash can at worst leave
+// blocks or a descriptor unreferenced.
+//
+// the first journal block holds MAGIC and the sequence number of the first transaction of the log; transactions
+// follow back to back, each a header (TX_MAGIC, sequence number, payload length, CRC-32 of the payload) and its
+// records. Replay stops at the first transaction that is torn or out of sequence, so emptying the log only takes
+// rewriting its first block with the next sequence number.
+class Journal {
+
+	public static final int MAGIC = 0x4c444a31; // "LDJ1"
+	private static final int TX_MAGIC = 0x4c445431; // "LDT1"
+	private static final int TX_HEADER_SIZE = 4 * FileSystem.INT_SIZE;
+	private static final int MERGE_WINDOW = 8; // records looked back at for one to merge a new record into
+	private static final int ORDERED_PENDING = -2; // status of writeRecords
+
+	// record types; records are a type byte followed by
+	private static final byte BITMAP_SET = 1; // first block, end block
+	private static final byte BITMAP_CLEAR = 2; // first block, end block
+	private static final byte DESCRIPTOR = 3; // descriptor index, descriptor image
+	private static final byte BLOCK_UPDATE = 4; // block, offset, length, bytes
+	private static final byte BLOCK_FILL = 5; // block, fill byte
+
+	private final DiskGeometry geometry;
+	private final LDisk disk;
+	private final int headerBlock;
+	private final int capacity; // bytes of log after the header block
+
+	// uncommitted records, guarded by this
+	private byte[] records = new byte[256];
+	private int recordsLength;
+	private int[] recordStarts = new int[16];
+	private int numRecords;
+	private BitSet pendingBlocks = new BitSet(); // blocks with uncommitted updates
+	private BitSet committingBlocks = new BitSet(); // blocks with updates being written to the log
+	// data blocks to write back before the next commit, numbered in the order they were added: the first is number
+	// orderedBase. Commits copy the list, write the blocks back and then drop them, so that a block is only off
+	// the list once it is on disk, even with another commit writing back the same blocks
+	private int[] orderedBlocks = new int[16];
+	private int numOrderedBlocks;
+	private long orderedBase;
+	private long orderedTaken; // number of the first block no commit has copied yet
+	private int[] spareOrderedBlocks = new int[16]; // null while a commit is flushing a copy in it
+
+	// the log, guarded by commitLock
+	private final Object commitLock = new Object();
+	private byte[] spareRecords = new byte[256];
+	private final byte[] txHeader = new byte[TX_HEADER_SIZE];
+	private final CRC32 crc = new CRC32();
+	private int sequence = 1; // sequence number of the next transaction
+	private volatile int tail; // bytes of log in use
+	private final byte[] tailBlock; // contents of the log block holding tail
+	private volatile boolean overflowed; // a transaction did not fit; the log is invalid until the next checkpoint
+
+	private Journal(DiskGeometry geometry, LDisk disk)
+	{
+		this.geometry = geometry;
+		this.disk = disk;
+		this.headerBlock = geometry.getFirstJournalBlock();
+		this.capacity = (geometry.getNumJournalBlocks() - 1) * geometry.getBlockLength();
+		this.tailBlock = new byte[geometry.getBlockLength()];
+	}
+
+	// returns null if the geometry has no journal blocks
+	static Journal open(DiskGeometry geometry, LDisk disk)
+	{
+		return geometry.hasJournal() ? new Journal(geometry, disk) : null;
+	}
+
+	boolean needsCheckpoint()
+	{
+		return this.overflowed || this.tail > this.capacity / 2;
+	}
+
+	// logging; the caller logs a change to a cached block before making it, and a header change when making it,
+	// under the lock that orders it against other changes to the same block, bitmap range or descriptor
+
+	synchronized void logBitmap(boolean set, int fromIndex, int toIndex)
+	{
+		byte type = set ? BITMAP_SET : BITMAP_CLEAR;
+		// extend an earlier record of the same kind that ends where this range starts, as long as no record in
+		// between touches the range; allocating a file's blocks one by one then logs a single record
+		for (int i = this.numRecords - 1; i >= Math.max(0, this.numRecords - MERGE_WINDOW); i--)
+		{
+			int pos = this.recordStarts[i];
+			if (this.records[pos] == type && this.getInt(pos + 5) == fromIndex)
+			{
+				this.putInt(pos + 5, toIndex);
+				return;
+			}
+			if (this.touches(pos, fromIndex, toIndex))
+				break;
+		}
+		int pos = this.startRecord(type, 9);
+		this.putInt(pos + 1, fromIndex);
+		this.putInt(pos + 5, toIndex);
+	}
+
+	synchronized void logDescriptor(int descriptorIndex, DiskHeader header)
+	{
+		int pos = -1;
+		for (int i = this.numRecords - 1; i >= Math.max(0, this.numRecords - MERGE_WINDOW) && pos < 0; i--)
+		{
+			if (this.records[this.recordStarts[i]] == DESCRIPTOR && this.getInt(this.recordStarts[i] + 1) == descriptorIndex)
+				pos = this.recordStarts[i]; // only the latest image counts
+		}
+		if (pos < 0)
+		{
+			pos = this.startRecord(DESCRIPTOR, 5 + this.geometry.getDescriptorSize());
+			this.putInt(pos + 1, descriptorIndex);
+		}
+		header.writeDescriptor(descriptorIndex, this.records, pos + 5);
+	}
+
+	synchronized void logBlockUpdate(int blockIndex, int offset, byte[] src, int srcOffset, int length)
+	{
+		this.pendingBlocks.set(blockIndex);
+		if (this.numRecords > 0)
+		{
+			// bytes that continue the last record, such as consecutive entries of an indirect block
+			int pos = this.recordStarts[this.numRecords - 1];
+			int lastLength = this.records[pos] == BLOCK_UPDATE ? this.getInt(pos + 9) : -1;
+			if (lastLength >= 0 && this.getInt(pos + 1) == blockIndex && this.getInt(pos + 5) + lastLength == offset)
+			{
+				this.ensureCapacity(length);
+				System.arraycopy(src, srcOffset, this.records, this.recordsLength, length);
+				this.recordsLength += length;
+				this.putInt(pos + 9, lastLength + length);
+				return;
+			}
+		}
+		int pos = this.startRecord(BLOCK_UPDATE, 13 + length);
+		this.putInt(pos + 1, blockIndex);
+		this.putInt(pos + 5, offset);
+		this.putInt(pos + 9, length);
+		System.arraycopy(src, srcOffset, this.records, pos + 13, length);
+	}
+
+	synchronized void logBlockFill(int blockIndex, byte value)
+	{
+		this.pendingBlocks.set(blockIndex);
+		int pos = this.startRecord(BLOCK_FILL, 6);
+		this.putInt(pos + 1, blockIndex);
+		this.records[pos + 5] = value;
+	}
+
+	// a file data block newly allocated, or one a file grew into, written back before the next commit
+	synchronized void addOrderedBlock(int blockIndex)
+	{
+		if (this.numOrderedBlocks > 0 && this.orderedBlocks[this.numOrderedBlocks - 1] == blockIndex
+				&& this.orderedBase + this.numOrderedBlocks > this.orderedTaken)
+			return; // small appends to one file, while no commit is writing the block back
+		if (this.numOrderedBlocks == this.orderedBlocks.length)
+			this.orderedBlocks = Arrays.copyOf(this.orderedBlocks, this.numOrderedBlocks * 2);
+		this.orderedBlocks[this.numOrderedBlocks++] = blockIndex;
+	}
+
+	// makes every record logged so far durable; returns -1 on an I/O error
+	int commit(BlockCache cache)
+	{
+		synchronized (this)
+		{
+			if (this.numRecords == 0 && this.numOrderedBlocks == 0)
+				return 0;
+		}
+		return this.commitOrdered(cache);
+	}
+
+	// called by the block cache before it writes a block back, with or without its lock. The block's records are
+	// committed the way commit does, ordered blocks first: with writes left to a background flusher, a block
+	// evicted between two flushes may carry records linking data blocks that are still only in the cache
+	void beforeWriteBack(BlockCache cache, int blockIndex)
+	{
+		boolean pending;
+		synchronized (this)
+		{
+			pending = this.pendingBlocks.get(blockIndex) || this.committingBlocks.get(blockIndex);
+		}
+		if (pending)
+			this.commitOrdered(cache); // also waits for a commit in progress to finish
+	}
+
+	// writes the ordered blocks back, then the records. A write adds the blocks it grows a file over before it
+	// logs the new length, so records are only taken once no ordered block has been added since the flush
+	private int commitOrdered(BlockCache cache)
+	{
+		int status;
+		do {
+			this.flushOrderedBlocks(cache);
+			status = this.writeRecords();
+		} while (status == ORDERED_PENDING);
+		return status;
+	}
+
+	// writes back the ordered blocks added so far
+	private void flushOrderedBlocks(BlockCache cache)
+	{
+		int[] ordered;
+		int numOrdered;
+		long end;
+		synchronized (this)
+		{
+			if (this.numOrderedBlocks == 0)
+				return;
+			// flush the ordered blocks outside the lock from a copy, reusing the spare array
+			numOrdered = this.numOrderedBlocks;
+			ordered = this.spareOrderedBlocks != null && this.spareOrderedBlocks.length >= numOrdered
+					? this.spareOrderedBlocks : new int[this.orderedBlocks.length];
+			this.spareOrderedBlocks = null;
+			System.arraycopy(this.orderedBlocks, 0, ordered, 0, numOrdered);
+			end = this.orderedBase + numOrdered;
+			this.orderedTaken = Math.max(this.orderedTaken, end);
+		}
+		for (int i = 0; i < numOrdered; i++)
+			cache.flushBlock(ordered[i]);
+		synchronized (this)
+		{
+			// a commit that copied more of the list may have dropped these already
+			int numFlushed = (int) Math.min(Math.max(end - this.orderedBase, 0), this.numOrderedBlocks);
+			System.arraycopy(this.orderedBlocks, numFlushed, this.orderedBlocks, 0, this.numOrderedBlocks - numFlushed);
+			this.numOrderedBlocks -= numFlushed;
+			this.orderedBase += numFlushed;
+			if (this.spareOrderedBlocks == null)
+				this.spareOrderedBlocks = ordered;
+		}
+	}
+
+	// writes the buffered records to the log as one transaction; a thread arriving while another one is writing
+	// finds its records either taken along by that commit or still buffered for its own. Returns ORDERED_PENDING
+	// without writing if ordered blocks have to be written back first
+	private int writeRecords()
+	{
+		synchronized (this.commitLock)
+		{
+			byte[] payload;
+			int length;
+			synchronized (this)
+			{
+				if (this.numRecords == 0)
+					return 0;
+				if (this.numOrderedBlocks > 0)
+					return ORDERED_PENDING;
+				payload = this.records;
+				length = this.recordsLength;
+				this.records = this.spareRecords;
+				this.recordsLength = 0;
+				this.numRecords = 0;
+				BitSet blocks = this.committingBlocks;
+				this.committingBlocks = this.pendingBlocks;
+				this.pendingBlocks = blocks;
+			}
+			try {
+				return this.appendTransaction(payload, length);
+			} finally {
+				this.spareRecords = payload;
+				synchronized (this)
+				{
+					this.committingBlocks.clear();
+				}
+			}
+		}
+	}
+
+	private int appendTransaction(byte[] payload, int length)
+	{
+		if (this.overflowed)
+			return 0; // records are dropped until the next checkpoint, which the file system takes right away
+		if (this.tail + TX_HEADER_SIZE + length > this.capacity)
+		{
+			// the log is full: make it unreadable, so a crash before the checkpoint falls back to the last one
+			this.overflowed = true;
+			this.disk.writeBlock(this.headerBlock, new byte[this.geometry.getBlockLength()]);
+			return this.flushDisk();
+		}
+
+		this.crc.reset();
+		this.crc.update(payload, 0, length);
+		Codec.putInt(this.txHeader, 0, TX_MAGIC);
+		Codec.putInt(this.txHeader, FileSystem.INT_SIZE, this.sequence);
+		Codec.putInt(this.txHeader, 2 * FileSystem.INT_SIZE, length);
+		Codec.putInt(this.txHeader, 3 * FileSystem.INT_SIZE, (int) this.crc.getValue());
+		this.writeLog(this.txHeader, TX_HEADER_SIZE);
+		this.writeLog(payload, length);
+		this.sequence++;
+		return this.flushDisk();
+	}
+
+	// copies bytes to the log at its tail, writing each log block they reach
+	private void writeLog(byte[] src, int length)
+	{
+		int blockLength = this.geometry.getBlockLength();
+		for (int done = 0; done < length; )
+		{
+			int offset = this.tail % blockLength;
+			int chunk = Math.min(blockLength - offset, length - done);
+			System.arraycopy(src, done, this.tailBlock, offset, chunk);
+			this.disk.writeBlock(this.headerBlock + 1 + this.tail / blockLength, this.tailBlock);
+			this.tail += chunk;
+			done += chunk;
+			if (this.tail % blockLength == 0)
+				Arrays.fill(this.tailBlock, (byte) 0);
+		}
+	}
+
+	// empties the log; the caller has written the header and every dirty block to their home locations
+	int reset()
+	{
+		synchronized (this.commitLock)
+		{
+			synchronized (this)
+			{
+				this.recordsLength = 0;
+				this.numRecords = 0;
+				this.orderedBase += this.numOrderedBlocks;
+				this.numOrderedBlocks = 0;
+				this.pendingBlocks.clear();
+			}
+			if (this.flushDisk() < 0) // home locations are durable before the log that covers them is dropped
+				return -1;
+			// the header block is put together in the tail block, which the emptied log starts over with zeroed
+			Arrays.fill(this.tailBlock, (byte) 0);
+			Codec.putInt(this.tailBlock, 0, MAGIC);
+			Codec.putInt(this.tailBlock, FileSystem.INT_SIZE, this.sequence);
+			this.disk.writeBlock(this.headerBlock, this.tailBlock);
+			this.tail = 0;
+			Arrays.fill(this.tailBlock, (byte) 0);
+			this.overflowed = false;
+			return this.flushDisk();
+		}
+	}
+
+	private int flushDisk()
+	{
+		try {
+			this.disk.flush();
+		} catch (IOException e) {
+			return -1;
+		}
+		return 0;
+	}
+
+	// applies the committed transactions of the log to header and to the blocks they update, and returns how many
+	// there were; the caller then takes a checkpoint. Updates of a block that a later record frees are skipped,
+	// as the block may have been reused for file data since
+	int replay(DiskHeader header)
+	{
+		synchronized (this.commitLock)
+		{
+			byte[] block = new byte[this.geometry.getBlockLength()];
+			ByteBuffer b = ByteBuffer.wrap(this.disk.readBlock(this.headerBlock, block));
+			if (b.getInt(0) != MAGIC)
+				return 0; // no log, e.g. it overflowed before a crash
+			this.sequence = b.getInt(FileSystem.INT_SIZE);
+
+			List<ByteBuffer> transactions = new ArrayList<>();
+			int pos = 0;
+			while (pos + TX_HEADER_SIZE <= this.capacity)
+			{
+				ByteBuffer txHeader = ByteBuffer.wrap(this.readLog(pos, TX_HEADER_SIZE));
+				int length = txHeader.getInt(2 * FileSystem.INT_SIZE);
+				if (txHeader.getInt(0) != TX_MAGIC || txHeader.getInt(FileSystem.INT_SIZE) != this.sequence
+						|| length < 0 || length > this.capacity - pos - TX_HEADER_SIZE)
+					break;
+				byte[] payload = this.readLog(pos + TX_HEADER_SIZE, length);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != txHeader.getInt(3 * FileSystem.INT_SIZE))
+					break; // torn write
+				transactions.add(ByteBuffer.wrap(payload));
+				pos += TX_HEADER_SIZE + length;
+				this.sequence++;
+			}
+
+			// record number of the last record freeing each updated block
+			Map<Integer, Integer> lastFreed = new HashMap<>();
+			List<int[]> freedRanges = new ArrayList<>();
+			int recordNumber = 0;
+			for (ByteBuffer tx : transactions)
+			{
+				for (tx.rewind(); tx.hasRemaining(); recordNumber++)
+				{
+					byte type = tx.get();
+					if (type == BLOCK_UPDATE || type == BLOCK_FILL)
+						lastFreed.put(tx.getInt(tx.position()), -1);
+					else if (type == BITMAP_CLEAR)
+						freedRanges.add(new int[] {tx.getInt(tx.position()), tx.getInt(tx.position() + 4), recordNumber});
+					this.skipRecord(type, tx);
+				}
+			}
+			for (int[] range : freedRanges)
+			{
+				for (Map.Entry<Integer, Integer> entry : lastFreed.entrySet())
+				{
+					if (entry.getKey() >= range[0] && entry.getKey() < range[1])
+						entry.setValue(Math.max(entry.getValue(), range[2]));
+				}
+			}
+
+			// block updates first: the header reads the descriptor table from disk as the descriptor records
+			// are applied. The two kinds of records touch disjoint state, so their order between them does not matter
+			for (boolean blocks : new boolean[] {true, false})
+			{
+				recordNumber = 0;
+				for (ByteBuffer tx : transactions)
+				{
+					for (tx.rewind(); tx.hasRemaining(); recordNumber++)
+						this.applyRecord(tx, header, block, lastFreed, recordNumber, blocks);
+				}
+			}
+			return transactions.size();
+		}
+	}
+
+	// blocks: apply the block updates, and skip the header updates, or the other way round
+	private void applyRecord(ByteBuffer tx, DiskHeader header, byte[] block, Map<Integer, Integer> lastFreed,
+			int recordNumber, boolean blocks)
+	{
+		byte type = tx.get();
+		if (blocks != (type == BLOCK_UPDATE || type == BLOCK_FILL))
+		{
+			this.skipRecord(type, tx);
+			return;
+		}
+		switch (type)
+		{
+		case BITMAP_SET:
+			header.getAllocator().set(tx.getInt(), tx.getInt());
+			break;
+		case BITMAP_CLEAR:
+			header.getAllocator().clear(tx.getInt(), tx.getInt());
+			break;
+		case DESCRIPTOR:
+			int descriptorIndex = tx.getInt();
+			header.readDescriptor(descriptorIndex, tx.array(), tx.position());
+			tx.position(tx.position() + this.geometry.getDescriptorSize());
+			break;
+		case BLOCK_UPDATE:
+		case BLOCK_FILL:
+			int blockIndex = tx.getInt();
+			boolean freedLater = lastFreed.get(blockIndex) > recordNumber;
+			if (!freedLater)
+				this.disk.readBlock(blockIndex, block);
+			if (type == BLOCK_FILL)
+				Arrays.fill(block, tx.get());
+			else
+			{
+				int offset = tx.getInt();
+				int length = tx.getInt();
+				tx.get(block, offset, length);
+			}
+			if (!freedLater)
+				this.disk.writeBlock(blockIndex, block);
+			break;
+		default:
+			throw new IllegalStateException("unknown journal record type " + type);
+		}
+	}
+
+	private void skipRecord(byte type, ByteBuffer tx)
+	{
+		switch (type)
+		{
+		case BITMAP_SET:
+		case BITMAP_CLEAR:
+			tx.position(tx.position() + 8);
+			break;
+		case DESCRIPTOR:
+			tx.position(tx.position() + 4 + this.geometry.getDescriptorSize());
+			break;
+		case BLOCK_UPDATE:
+			tx.position(tx.position() + 12 + tx.getInt(tx.position() + 8));
+			break;
+		case BLOCK_FILL:
+			tx.position(tx.position() + 5);
+			break;
+		default:
+			throw new IllegalStateException("unknown journal record type " + type);
+		}
+	}
+
+	private byte[] readLog(int pos, int length)
+	{
+		int blockLength = this.geometry.getBlockLength();
+		byte[] block = new byte[blockLength];
+		byte[] dest = new byte[length];
+		for (int done = 0; done < length; )
+		{
+			int offset = (pos + done) % blockLength;
+			int chunk = Math.min(blockLength - offset, length - done);
+			this.disk.readBlock(this.headerBlock + 1 + (pos + done) / blockLength, block);
+			System.arraycopy(block, offset, dest, done, chunk);
+			done += chunk;
+		}
+		return dest;
+	}
+
+	// does the record at pos change a block in [fromIndex, toIndex)
+	private boolean touches(int pos, int fromIndex, int toIndex)
+	{
+		switch (this.records[pos])
+		{
+		case BITMAP_SET:
+		case BITMAP_CLEAR:
+			return this.getInt(pos + 1) < toIndex && fromIndex < this.getInt(pos + 5);
+		case BLOCK_UPDATE:
+		case BLOCK_FILL:
+			int blockIndex = this.getInt(pos + 1);
+			return blockIndex >= fromIndex && blockIndex < toIndex;
+		default:
+			return false;
+		}
+	}
+
+	private int startRecord(byte type, int size)
+	{
+		this.ensureCapacity(size);
+		if (this.numRecords == this.recordStarts.length)
+			this.recordStarts = Arrays.copyOf(this.recordStarts, this.numRecords * 2);
+		int pos = this.recordsLength;
+		this.recordStarts[this.numRecords++] = pos;
+		this.records[pos] = type;
+		this.recordsLength += size;
+		return pos;
+	}
+
+	private void ensureCapacity(int size)
+	{
+		if (this.recordsLength + size > this.records.length)
+			this.records = Arrays.copyOf(this.records, Math.max(this.records.length * 2, this.recordsLength + size));
+	}
+
+	private int getInt(int pos)
+	{
+		return Codec.getInt(this.records, pos);
+	}
+
+	private void putInt(int pos, int value)
+	{
+		Codec.putInt(this.records, pos, value);
+	}
+}
@@ -1,44 +1,174 @@
 package filesystem;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 
 public class LDisk implements Serializable {
 
 	private static final long serialVersionUID = -1131322256288904562L;
 
-	private byte[][] ldisk;
-
+	// the device itself is not serialized; writeObject/readObject copy its blocks so an image saved
+	// from any backend restores into a heap device
+	private transient BlockDevice device;
+	// blocks written since the last takeDirtyBlocks, for delta images
+	private transient BitSet dirtyBlocks = new BitSet();
+	private transient FileSystemMetrics metrics; // counts the blocks transferred, if set
+	// set while saving when the blocks are saved in their compressed form (see CompressedBlockDevice); disks saved
+	// before there was compression read it as unset
+	private boolean compressed;
 
 
 	public LDisk()
 	{
-		this.ldisk = new byte[FileSystem.NUM_BLOCKS][FileSystem.BLOCK_LENGTH];
+		this(new HeapBlockDevice(DiskGeometry.DEFAULT_NUM_BLOCKS, DiskGeometry.DEFAULT_BLOCK_LENGTH));
 	}
 
 	public LDisk(byte[][] ldisk) {
-		this.ldisk = ldisk;
+		this(new HeapBlockDevice(ldisk));
+	}
+
+	public LDisk(BlockDevice device) {
+		this.device = device;
+	}
+
+	public BlockDevice getDevice() {
+		return this.device;
+	}
+
+	void setMetrics(FileSystemMetrics metrics) {
+		this.metrics = metrics;
 	}
 
 	public byte[] readBlock(int index, byte[] p)
 	{
-		//p = this.ldisk[index];  // doesn't change p
-		FileSystem.copyArray(this.ldisk[index], 0, p, 0);
-		return this.ldisk[index];
+		this.device.readBlock(index, p);
+		this.countReads(1);
+		return p;
 	}
 	
 	public byte[] writeBlock(int index, byte[] p)
 	{
-		// this.ldisk[index] = p;
-		FileSystem.copyArray(p, 0, this.ldisk[index], 0);
-		return this.ldisk[index];
+		this.device.writeBlock(index, p);
+		this.markDirty(index);
+		this.countWrites(index, 1);
+		return p;
+	}
+
+	// block-sized transfers straight between a disk block and a slice of a larger array
+	public void readBlock(int index, byte[] p, int offset)
+	{
+		this.device.readBlock(index, p, offset);
+		this.countReads(1);
+	}
+
+	public void writeBlock(int index, byte[] p, int offset)
+	{
+		this.device.writeBlock(index, p, offset);
+		this.markDirty(index);
+		this.countWrites(index, 1);
+	}
+
+	// count adjacent blocks in one device transfer; used to coalesce write-backs of neighbouring blocks
+	public void readBlocks(int index, int count, byte[] p, int offset)
+	{
+		this.device.readBlocks(index, count, p, offset);
+		this.countReads(count);
+	}
+
+	public void writeBlocks(int index, int count, byte[] p, int offset)
+	{
+		this.device.writeBlocks(index, count, p, offset);
+		synchronized (this.dirtyBlocks) {
+			this.dirtyBlocks.set(index, index + count);
+		}
+		this.countWrites(index, count);
+	}
+
+	private void countReads(int count)
+	{
+		if (this.metrics != null)
+			this.metrics.blocksRead(count);
+	}
+
+	private void countWrites(int index, int count)
+	{
+		if (this.metrics == null)
+			return;
+		this.metrics.blocksWritten(count);
+		if (this.device instanceof CompressedBlockDevice)
+		{
+			CompressedBlockDevice device = (CompressedBlockDevice) this.device;
+			long storedBytes = 0;
+			for (int i = index; i < index + count; i++)
+				storedBytes += device.getStoredLength(i);
+			this.metrics.compressed((long) count * device.getBlockLength(), storedBytes);
+		}
+	}
+
+	// counts length bytes of blocks saved in compressedLength bytes elsewhere, such as in an image
+	void countCompressed(long length, long compressedLength)
+	{
+		if (this.metrics != null)
+			this.metrics.compressed(length, compressedLength);
+	}
+
+	// copies every block to device, of the same geometry, which then holds the disk in place of the current one;
+	// the caller keeps everything else off the disk meanwhile
+	void moveTo(BlockDevice device)
+	{
+		byte[] block = new byte[this.device.getBlockLength()];
+		for (int i = 0; i < this.device.getNumBlocks(); i++)
+		{
+			this.device.readBlock(i, block);
+			device.writeBlock(i, block);
+		}
+		this.device = device;
+	}
+
+	private void markDirty(int index)
+	{
+		synchronized (this.dirtyBlocks) {
+			this.dirtyBlocks.set(index);
+		}
+	}
+
+	// returns the blocks written since the previous call and starts a new set
+	public BitSet takeDirtyBlocks()
+	{
+		synchronized (this.dirtyBlocks) {
+			BitSet blocks = (BitSet) this.dirtyBlocks.clone();
+			this.dirtyBlocks.clear();
+			return blocks;
+		}
+	}
+
+	public int getNumDirtyBlocks()
+	{
+		synchronized (this.dirtyBlocks) {
+			return this.dirtyBlocks.cardinality();
+		}
+	}
+
+	public void flush() throws IOException
+	{
+		this.device.flush();
+	}
+
+	public void close() throws IOException
+	{
+		this.device.close();
 	}
 	
 	
 	public String blockToString(int index)
 	{
 		String ret = "";
-		for(byte bA: this.ldisk[index])
+		for(byte bA: this.readBlock(index, new byte[this.device.getBlockLength()]))
 		{
 			ret += FileSystem.byteToBinaryString(bA) + " ";
 		}
@@ -49,9 +179,13 @@ public class LDisk implements Serializable {
 	public String bitmapToString()
 	{
 		String ret = "";
-		for(int i = 0; i < FileSystem.NUM_BLOCKS / 8; i++)  // 8 = bits in bytes; (NUM_BLOCKS / 8) = # of bytes for bitmap
+		byte[] block = new byte[this.device.getBlockLength()];
+		int numBitmapBytes = (this.device.getNumBlocks() + 7) / 8;  // 8 = bits in bytes
+		for(int i = 0; i < numBitmapBytes; i++)
 		{
-			ret += FileSystem.byteToBinaryString(this.ldisk[0][i]) + " ";
+			if (i % block.length == 0)
+				this.readBlock(DiskGeometry.FIRST_BITMAP_BLOCK + i / block.length, block);
+			ret += FileSystem.byteToBinaryString(block[i % block.length]) + " ";
 		}
 				
 		return ret;
@@ -60,12 +194,73 @@ public class LDisk implements Serializable {
 	public String diskToString()
 	{
 		String ret = "";
-		for(byte[] bA: this.ldisk)
+		byte[] block = new byte[this.device.getBlockLength()];
+		for(int i = 0; i < this.device.getNumBlocks(); i++)
 		{
-			ret += Arrays.toString(bA) + " ";
+			ret += Arrays.toString(this.readBlock(i, block)) + " ";
 		}
 		return ret;
 	}
+
+
+	// a compressed disk is saved as the stored form of each block, its length first (0 for a block of zeros), and
+	// restored into a compressed device without decompressing anything
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		this.compressed = this.device instanceof CompressedBlockDevice;
+		out.defaultWriteObject();
+		out.writeInt(this.device.getNumBlocks());
+		out.writeInt(this.device.getBlockLength());
+		if (this.compressed)
+		{
+			CompressedBlockDevice device = (CompressedBlockDevice) this.device;
+			long storedBytes = 0;
+			for (int i = 0; i < device.getNumBlocks(); i++)
+			{
+				byte[] block = device.getStored(i);
+				out.writeInt(block == null ? 0 : block.length);
+				if (block != null)
+					out.write(block);
+				storedBytes += FileSystem.INT_SIZE + (block == null ? 0 : block.length);
+			}
+			this.countCompressed((long) device.getNumBlocks() * device.getBlockLength(), storedBytes);
+			return;
+		}
+		byte[] block = new byte[this.device.getBlockLength()];
+		for(int i = 0; i < this.device.getNumBlocks(); i++)
+			out.write(this.readBlock(i, block));
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		int numBlocks = in.readInt();
+		int blockLength = in.readInt();
+		if (this.compressed)
+		{
+			CompressedBlockDevice device = new CompressedBlockDevice(numBlocks, blockLength);
+			for (int i = 0; i < numBlocks; i++)
+			{
+				int length = in.readInt();
+				if (length < 0 || length > blockLength)
+					throw new InvalidObjectException("stored block of " + length + " bytes");
+				if (length == 0)
+					continue;
+				byte[] block = new byte[length];
+				in.readFully(block);
+				device.setStored(i, block);
+			}
+			this.device = device;
+		}
+		else
+		{
+			byte[][] blocks = new byte[numBlocks][blockLength];
+			for(byte[] block : blocks)
+				in.readFully(block);
+			this.device = new HeapBlockDevice(blocks);
+		}
+		this.dirtyBlocks = new BitSet();
+	}
 		
 	
 }
@@ -0,0 +1,101 @@
+package filesystem;
+
+// counts of nanosecond latencies in log-linear buckets: exact below 16, then 16 buckets per power of two, so a
+// percentile is off by at most 1/16 of its value. Fixed size whatever is recorded; not thread-safe
+final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long count;
+	private long total;
+	private long max;
+
+	void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		this.counts[LatencyHistogram.bucket(nanos)]++;
+		this.count++;
+		this.total += nanos;
+		if (nanos > this.max)
+			this.max = nanos;
+	}
+
+	void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < this.counts.length; i++)
+			this.counts[i] += other.counts[i];
+		this.count += other.count;
+		this.total += other.total;
+		this.max = Math.max(this.max, other.max);
+	}
+
+	// adds count latencies that fell in bucket, for histograms kept elsewhere; the total and maximum are set apart
+	void add(int bucket, long count)
+	{
+		this.counts[bucket] += count;
+		this.count += count;
+	}
+
+	void setTotal(long total, long max)
+	{
+		this.total = total;
+		this.max = max;
+	}
+
+	long getCount()
+	{
+		return this.count;
+	}
+
+	// sum of the recorded latencies
+	long getTotal()
+	{
+		return this.total;
+	}
+
+	long getMax()
+	{
+		return this.max;
+	}
+
+	// the latency below which a fraction p (0..1) of the recorded ones lie, as the top of its bucket; 0 if
+	// nothing was recorded
+	long percentile(double p)
+	{
+		if (this.count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * this.count));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length; i++)
+		{
+			seen += this.counts[i];
+			if (seen >= rank)
+				return Math.min(LatencyHistogram.top(i), this.max);
+		}
+		return this.max;
+	}
+
+	static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos); // >= SUB_BITS
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// the largest latency in bucket
+	private static long top(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return low + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
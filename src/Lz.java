@@ -0,0 +1,151 @@
+package filesystem;
+
+// a small LZ77 codec in the manner of LZ4, for blocks and runs of blocks. Compressed data is a series of sequences,
+// each a token, literals and a match:
+//	token			literal count in the high nibble, match length less MIN_MATCH in the low one; 15 means more
+//					follows in bytes of 255 and a last byte below it
+//	literals		copied as they are
+//	match			offset back into the output (2 bytes, big-endian) and the rest of the match length; the last
+//					sequence has no match and ends the data
+//
+// the compressor looks matches up in a hash table of positions the caller owns, so nothing here allocates. It
+// is never cleared: an entry left by an earlier call is only used once its bytes are checked to match
+final class Lz {
+
+	static final int TABLE_SIZE = 1 << 12;
+	static final int MAX_RATIO = 255; // compressed data is never shorter than this part of its input
+	private static final int HASH_SHIFT = 32 - 12;
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xffff;
+	private static final int SKIP_SHIFT = 6; // the search steps further ahead the longer it finds no match
+
+	private Lz() {
+	}
+
+	// compresses length bytes of src at srcOffset into dest at destOffset, taking at most destLength bytes;
+	// table has TABLE_SIZE entries. Returns the compressed length, or -1 if it does not fit in destLength
+	static int compress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int destLength, int[] table)
+	{
+		int end = srcOffset + length;
+		int destEnd = destOffset + destLength;
+		int anchor = srcOffset; // first literal not yet written
+		int out = destOffset;
+		int pos = srcOffset;
+		while (pos <= end - MIN_MATCH)
+		{
+			int value = Codec.getInt(src, pos);
+			int hash = (value * -1640531535) >>> HASH_SHIFT;
+			int ref = table[hash];
+			table[hash] = pos;
+			if (ref < srcOffset || ref >= pos || pos - ref > MAX_OFFSET || Codec.getInt(src, ref) != value)
+			{
+				pos += 1 + ((pos - anchor) >>> SKIP_SHIFT);
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (pos + matchLength < end && src[ref + matchLength] == src[pos + matchLength])
+				matchLength++;
+			out = Lz.putSequence(src, anchor, pos - anchor, pos - ref, matchLength, dest, out, destEnd);
+			if (out < 0)
+				return -1;
+			pos += matchLength;
+			anchor = pos;
+		}
+		if (anchor < end)
+		{
+			out = Lz.putSequence(src, anchor, end - anchor, 0, 0, dest, out, destEnd);
+			if (out < 0)
+				return -1;
+		}
+		return out - destOffset;
+	}
+
+	// decompresses length bytes of src at srcOffset into dest at destOffset, taking at most destLength bytes.
+	// Returns the decompressed length, or -1 if src is not compressed data or does not fit in destLength
+	static int decompress(byte[] src, int srcOffset, int length, byte[] dest, int destOffset, int destLength)
+	{
+		int in = srcOffset;
+		int end = srcOffset + length;
+		int out = destOffset;
+		int destEnd = destOffset + destLength;
+		while (in < end)
+		{
+			int token = src[in++] & 0xff;
+			int literals = token >>> 4;
+			if (literals == 15)
+			{
+				int b;
+				do {
+					if (in == end)
+						return -1;
+					b = src[in++] & 0xff;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > end - in || literals > destEnd - out)
+				return -1;
+			System.arraycopy(src, in, dest, out, literals);
+			in += literals;
+			out += literals;
+			if (in == end)
+				break; // the last sequence
+			if (end - in < 2)
+				return -1;
+			int offset = (src[in] & 0xff) << 8 | src[in + 1] & 0xff;
+			in += 2;
+			int matchLength = token & 0x0f;
+			if (matchLength == 15)
+			{
+				int b;
+				do {
+					if (in == end)
+						return -1;
+					b = src[in++] & 0xff;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (offset == 0 || offset > out - destOffset || matchLength > destEnd - out)
+				return -1;
+			for (int i = 0; i < matchLength; i++, out++) // the match may overlap the bytes it produces
+				dest[out] = dest[out - offset];
+		}
+		return out - destOffset;
+	}
+
+	// writes a sequence of literals literal bytes at src[from] and, unless matchLength is 0, a match; returns the
+	// position after it, or -1 if it does not fit before destEnd
+	private static int putSequence(byte[] src, int from, int literals, int offset, int matchLength, byte[] dest,
+			int out, int destEnd)
+	{
+		int extra = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+		int size = 1 + Lz.lengthBytes(literals) + literals + (matchLength == 0 ? 0 : 2 + Lz.lengthBytes(extra));
+		if (size > destEnd - out)
+			return -1;
+		dest[out++] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+		out = Lz.putLength(literals, dest, out);
+		System.arraycopy(src, from, dest, out, literals);
+		out += literals;
+		if (matchLength == 0)
+			return out;
+		dest[out++] = (byte) (offset >>> 8);
+		dest[out++] = (byte) offset;
+		return Lz.putLength(extra, dest, out);
+	}
+
+	// bytes a length of a token takes past the token
+	private static int lengthBytes(int length)
+	{
+		return length < 15 ? 0 : (length - 15) / 255 + 1;
+	}
+
+	private static int putLength(int length, byte[] dest, int out)
+	{
+		if (length < 15)
+			return out;
+		for (length -= 15; length >= 255; length -= 255)
+			dest[out++] = (byte) 255;
+		dest[out++] = (byte) length;
+		return out;
+	}
+}
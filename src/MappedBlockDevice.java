@@ -0,0 +1,56 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// block device backed by a memory-mapped image file; blocks live in the page cache and are
+// persisted by the OS (or explicitly by flush) without going through the java heap
+public class MappedBlockDevice extends ByteBufferBlockDevice {
+
+	private FileChannel channel;
+
+	private MappedBlockDevice(FileChannel channel, int numBlocks, int blockLength) throws IOException
+	{
+		super(numBlocks, blockLength);
+		this.channel = channel;
+		for (int i = 0; i < this.segments.length; i++)
+			this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, this.segmentOffset(i), this.segmentBytes(i));
+	}
+
+	// opens (or creates) the image file and maps numBlocks * blockLength bytes of it
+	public static MappedBlockDevice open(String fileName, int numBlocks, int blockLength) throws IOException
+	{
+		Path path = Paths.get(fileName);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			return new MappedBlockDevice(channel, numBlocks, blockLength);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		for (ByteBuffer segment : this.segments)
+			((MappedByteBuffer) segment).force();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this.channel == null)
+			return;
+		this.flush();
+		this.channel.close();
+		this.channel = null;
+		this.segments = new ByteBuffer[0];
+	}
+}
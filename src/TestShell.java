@@ -1,179 +1,467 @@
 package filesystem;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.Stream;
 
+import javax.management.JMException;
+
+// runs a script of file system commands, one per line, writing one result line per command; stats prints its
+// report to stderr instead, so the results of a script can be compared line by line with those of another run
+//
+//   TestShell                        runs filesPath + inputFileName into filesPath + outputFileName and echoes the
+//                                    results to the console
+//   TestShell [-q] input [output]    batch mode: runs input, writing the results to output (default: the
+//                                    console), or nowhere with -q, then prints ops/sec and latency percentiles
+//                                    per command
+//
+// the whole script is parsed into arrays of opcodes and arguments before the first command runs, so a malformed
+// line is reported before anything happens and parsing is not timed
 public class TestShell
 {
     public static String filesPath = "D:/";
     public static String inputFileName = "input.txt";
     public static String outputFileName = "91309435.txt";
 
-    private FileInputStream inputStream;
-    private File outputFile;
-    private PrintWriter writer;
-
-    private FileSystem fs;
+    private static final String[] COMMANDS = {
+        "cr", "de", "op", "cl", "rd", "wr", "pr", "pw", "sk", "dr", "mk", "rm", "ls", "in", "sv", "si", "sd", "ri",
+        "stats"
+    };
+    private static final int CR = 0, DE = 1, OP = 2, CL = 3, RD = 4, WR = 5, PR = 6, PW = 7, SK = 8, DR = 9,
+            MK = 10, RM = 11, LS = 12, IN = 13, SV = 14, SI = 15, SD = 16, RI = 17, STATS = 18, UNKNOWN = 19;
 
-    public void handleOperations(String line)
+    // a parsed script: per command an opcode, up to four ints (handle, fill byte, position, count) and a name;
+    // the few commands taking more strings keep them in extra
+    static final class Script
     {
-        String[] commandTokens = line.split("\\s+");
-        String arg1 = "";
-        String arg2 = "";
-        String arg3 = "";
-        if (commandTokens.length >= 2)
-            arg1 = commandTokens[1];
-        if (commandTokens.length >= 3)
-            arg2 = commandTokens[2];
-        if (commandTokens.length >= 4)
-            arg3 = commandTokens[3];
-
-        switch (commandTokens[0])
-        {
-            case "cr": {
-                String result = fs.create(arg1);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
-            }
-            case "de": {
-                String result = fs.destroy(arg1);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+        static final int INTS = 4;
+        static final int HANDLE = 0, FILL = 1, POS = 2, COUNT = 3;
+
+        int size;
+        byte[] ops = new byte[16];
+        int[] ints = new int[16 * INTS];
+        String[] names = new String[16];
+        String[][] extra = new String[16][];
+
+        private final ArrayList<String> tokens = new ArrayList<>();
+
+        // parses line as the next command; lineNumber is for the error message
+        void add(String line, int lineNumber)
+        {
+            if (this.size == this.ops.length)
+            {
+                int capacity = this.size * 2;
+                this.ops = Arrays.copyOf(this.ops, capacity);
+                this.ints = Arrays.copyOf(this.ints, capacity * INTS);
+                this.names = Arrays.copyOf(this.names, capacity);
+                this.extra = Arrays.copyOf(this.extra, capacity);
             }
-            case "op": {
-                String result = fs.open(arg1);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            Script.split(line, this.tokens);
+            int op = TestShell.opcode(this.tokens.get(0));
+            int i = this.size;
+            int at = i * INTS;
+            try {
+                switch (op)
+                {
+                    case CL:
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        break;
+                    case RD:
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        this.ints[at + COUNT] = this.countArg(2);
+                        break;
+                    case WR:
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        this.ints[at + FILL] = this.fillArg(2);
+                        this.ints[at + COUNT] = this.countArg(3);
+                        break;
+                    case PR:
+                        // pr <handle> <position> <count>: reads at position, leaving the cursor alone
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        this.ints[at + POS] = this.intArg(2, -1);
+                        this.ints[at + COUNT] = this.countArg(3);
+                        break;
+                    case PW:
+                        // pw <handle> <char> <position> <count>
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        this.ints[at + FILL] = this.fillArg(2);
+                        this.ints[at + POS] = this.intArg(3, -1);
+                        this.ints[at + COUNT] = this.countArg(4);
+                        break;
+                    case SK:
+                        this.ints[at + HANDLE] = this.intArg(1, -1);
+                        this.ints[at + POS] = this.intArg(2, -1);
+                        break;
+                    case DR:
+                        // dr [first name] [count]: without arguments, every name
+                        this.names[i] = this.tokens.size() > 1 ? this.tokens.get(1) : null;
+                        this.ints[at + COUNT] = this.intArg(2, Integer.MAX_VALUE);
+                        break;
+                    case LS:
+                        // ls <directory> [first name] [count]
+                        this.names[i] = this.stringArg(1);
+                        this.extra[i] = this.tokens.size() > 2 ? new String[] { this.tokens.get(2) } : null;
+                        this.ints[at + COUNT] = this.intArg(3, Integer.MAX_VALUE);
+                        break;
+                    case RI:
+                        // ri <base image> [delta images in chain order]
+                        this.names[i] = this.stringArg(1);
+                        this.extra[i] = this.tokens.subList(Math.min(2, this.tokens.size()), this.tokens.size())
+                                .toArray(new String[0]);
+                        break;
+                    case UNKNOWN:
+                        break;
+                    default:
+                        this.names[i] = this.stringArg(1);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage() + ": " + line);
             }
-            case "cl": {
-                int oftIndex;
-                if (arg1 == "")
-                    oftIndex = -1;
-                else
-                    oftIndex = Integer.parseInt(arg1);
-                String result = fs.close(oftIndex);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            this.ops[i] = (byte) op;
+            this.size++;
+        }
+
+        private String stringArg(int index)
+        {
+            return index < this.tokens.size() ? this.tokens.get(index) : "";
+        }
+
+        private int intArg(int index, int missing)
+        {
+            return index < this.tokens.size() ? Integer.parseInt(this.tokens.get(index)) : missing;
+        }
+
+        private int countArg(int index)
+        {
+            int count = this.intArg(index, 0);
+            if (count < 0)
+                throw new IllegalArgumentException("negative count");
+            return count;
+        }
+
+        private int fillArg(int index)
+        {
+            if (index >= this.tokens.size())
+                throw new IllegalArgumentException("missing fill character");
+            return this.tokens.get(index).getBytes()[0];
+        }
+
+        // splits line at runs of whitespace like String.split("\\s+"): leading whitespace gives an empty first
+        // token, trailing whitespace nothing
+        private static void split(String line, ArrayList<String> tokens)
+        {
+            tokens.clear();
+            int length = line.length();
+            int start = 0;
+            for (int i = 0; i <= length; i++)
+            {
+                if (i == length || Script.isSpace(line.charAt(i)))
+                {
+                    if (i > start || (i == 0 && length > 0))
+                        tokens.add(line.substring(start, i));
+                    while (i + 1 < length && Script.isSpace(line.charAt(i + 1)))
+                        i++;
+                    start = i + 1;
+                }
             }
-            case "rd": {
-                int oftIndex;
-                if(arg1 == "")
-                    oftIndex = -1;
-                else
-                    oftIndex = Integer.parseInt(arg1);
-                int count;
-                if (arg2 == "")
-                    count = 0;
-                else
-                    count = Integer.parseInt(arg2);
-                byte[] mem_area = new byte[count];
-                String result = fs.read(oftIndex, mem_area, count);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            if (tokens.isEmpty())
+                tokens.add("");
+        }
+
+        private static boolean isSpace(char c)
+        {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+    }
+
+    private static int opcode(String command)
+    {
+        for (int op = 0; op < COMMANDS.length; op++)
+        {
+            if (COMMANDS[op].equals(command))
+                return op;
+        }
+        return UNKNOWN;
+    }
+
+    private Writer writer; // null: results are not written
+    private boolean echo; // print every result on the console too
+
+    private FileSystem fs;
+
+    // reused by rd and wr, grown to the largest count
+    private byte[] scratch = new byte[0];
+    private ByteBuffer scratchBuffer = ByteBuffer.wrap(this.scratch);
+
+    // per command type, indexed by opcode; null unless timing
+    private LatencyHistogram[] latencies;
+
+    public void handleOperations(String line)
+    {
+        Script script = new Script();
+        script.add(line, 1);
+        this.handleOperation(script, 0);
+    }
+
+    private void handleOperation(Script script, int i)
+    {
+        int op = script.ops[i];
+        String result;
+        if (this.latencies == null)
+            result = this.execute(script, i);
+        else
+        {
+            long start = System.nanoTime();
+            result = this.execute(script, i);
+            this.latencies[op].record(System.nanoTime() - start);
+        }
+        if (result == null) // stats: not part of the results
+            return;
+        try {
+            if (this.writer != null)
+            {
+                this.writer.write(result);
+                this.writer.write("\n");
             }
-            case "wr": {
-
-                int oftIndex;
-                if(arg1 == "")
-                    oftIndex = -1;
-                else
-                    oftIndex = Integer.parseInt(arg1);
-                String s = arg2;
-                int count;
-                if (arg3 == "")
-                    count = 0;
-                else
-                    count = Integer.parseInt(arg3);
-                byte[] mem_area = new byte[count];
-                Arrays.fill(mem_area, s.getBytes()[0]);
-                String result = fs.write(oftIndex, mem_area, count);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (this.echo && op != UNKNOWN)
+            System.out.println(result);
+    }
+
+    private String execute(Script script, int i)
+    {
+        int at = i * Script.INTS;
+        int handle = script.ints[at + Script.HANDLE];
+        int pos = script.ints[at + Script.POS];
+        int count = script.ints[at + Script.COUNT];
+        String name = script.names[i];
+        switch (script.ops[i])
+        {
+            case CR:
+                return fs.create(name);
+            case DE:
+                return fs.destroy(name);
+            case OP:
+                return fs.open(name);
+            case CL:
+                return fs.close(handle);
+            case RD: {
+                int status = fs.read(handle, this.scratch(count));
+                // what read(int, byte[], int) returns, the unread part of its zeroed buffer being trimmed off
+                return status < 0 ? "error" : this.decode(this.scratch, status);
             }
-            case "sk": {
-
-                int oftIndex;
-                if (arg1 == "")
-                    oftIndex = -1;
-                else
-                    oftIndex = Integer.parseInt(arg1);
-                int pos;
-                if (arg2 == "")
-                    pos = -1;
-                else
-                    pos = Integer.parseInt(arg2);
-                String result = fs.lseek(oftIndex, pos);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            case WR: {
+                ByteBuffer mem_area = this.scratch(count);
+                Arrays.fill(this.scratch, 0, count, (byte) script.ints[at + Script.FILL]);
+                int status = fs.write(handle, mem_area);
+                return status < 0 ? "error" : status + " bytes written";
             }
-            case "dr": {
-                String result = fs.directory();
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            case PR: {
+                int status = fs.read(handle, pos, this.scratch(count));
+                return status < 0 ? "error" : this.decode(this.scratch, status);
             }
-            case "in": {
-                String result = fs.initialize(arg1);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            case PW: {
+                ByteBuffer mem_area = this.scratch(count);
+                Arrays.fill(this.scratch, 0, count, (byte) script.ints[at + Script.FILL]);
+                int status = fs.write(handle, pos, mem_area);
+                return status < 0 ? "error" : status + " bytes written";
             }
-            case "sv": {
-                String result = fs.save(arg1);
-                writer.write(result);
-                writer.write("\n");
-                System.out.println(result);
-                break;
+            case SK:
+                return fs.lseek(handle, pos);
+            case DR:
+                return name == null ? fs.directory() : fs.directory(name, count);
+            case MK:
+                return fs.mkdir(name);
+            case RM:
+                return fs.rmdir(name);
+            case LS:
+                return fs.directory(name, script.extra[i] == null ? null : script.extra[i][0], count);
+            case IN:
+                return fs.initialize(name);
+            case SV:
+                return fs.save(name);
+            case SI:
+                return fs.saveImage(name);
+            case SD:
+                return fs.saveDelta(name);
+            case RI:
+                return fs.restoreImage(name, script.extra[i]);
+            case STATS: {
+                // stats [reset]: the file system's counters and operation latencies, several lines on stderr
+                System.err.print(fs.getMetrics().report());
+                if (name.equals("reset"))
+                    fs.getMetrics().reset();
+                return null;
             }
             default:
-                writer.write("\n");
+                return "";
         }
     }
 
-    public void run() {
-        try {
-            inputStream = new FileInputStream(filesPath + inputFileName);
-            outputFile = new File(filesPath + outputFileName);
-            writer = new PrintWriter(outputFile);
+    // the scratch buffer, limited to count bytes
+    private ByteBuffer scratch(int count)
+    {
+        if (count > this.scratch.length)
+        {
+            this.scratch = new byte[Math.max(count, this.scratch.length * 2)];
+            this.scratchBuffer = ByteBuffer.wrap(this.scratch);
+        }
+        this.scratchBuffer.clear().limit(count);
+        return this.scratchBuffer;
+    }
 
-            this.fs = new FileSystem();
+    // the result line of a read of length bytes; skipped when nobody sees it
+    private String decode(byte[] data, int length)
+    {
+        if (this.writer == null && !this.echo)
+            return "";
+        return new String(data, 0, length).trim();
+    }
 
-            try (Stream<String> stream = Files.lines(Paths.get(filesPath + inputFileName)))
-            {
-                stream.forEach(this::handleOperations);
+    // parses the script in inputFile, one command per line
+    static Script parse(File inputFile) throws IOException
+    {
+        Script script = new Script();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16))
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+                script.add(line, ++lineNumber);
+        }
+        return script;
+    }
 
-            } catch (IOException e) {
-                System.out.println("I/O Error");
+    // runs script on a new file system, writing the results to writer (null: nowhere); returns the time taken
+    // in nanoseconds
+    long run(Script script, Writer writer, boolean echo, boolean timed)
+    {
+        this.fs = new FileSystem();
+        this.writer = writer;
+        this.echo = echo;
+        this.latencies = null;
+        if (timed)
+        {
+            this.latencies = new LatencyHistogram[COMMANDS.length + 1];
+            for (int i = 0; i < this.latencies.length; i++)
+                this.latencies[i] = new LatencyHistogram();
+        }
+        try {
+            this.fs.getMetrics().register("TestShell");
+        } catch (JMException e) {
+            System.err.println("metrics not registered with JMX: " + e.getMessage());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < script.size; i++)
+            this.handleOperation(script, i);
+        return System.nanoTime() - start;
+    }
+
+    public void run() {
+        try {
+            Script script = TestShell.parse(new File(filesPath + inputFileName));
+            try (Writer writer = new BufferedWriter(new FileWriter(filesPath + outputFileName)))
+            {
+                this.run(script, writer, true, false);
             }
-            inputStream.close();
-            writer.close();
         } catch (FileNotFoundException e) {
             System.out.println("File(s) not found");
-        } catch (IOException e) {
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException | UncheckedIOException e) {
             System.out.println("I/O Error");
         }
     }
 
+    // batch mode; returns the exit status
+    private int runBatch(String inputPath, String outputPath, boolean quiet)
+    {
+        Script script;
+        try {
+            script = TestShell.parse(new File(inputPath));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            System.err.println("cannot read " + inputPath + ": " + e.getMessage());
+            return 1;
+        }
+        long elapsed;
+        try {
+            if (quiet)
+                elapsed = this.run(script, null, false, true);
+            else if (outputPath == null)
+            {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                elapsed = this.run(script, writer, false, true);
+                writer.flush();
+            }
+            else
+            {
+                try (Writer writer = new BufferedWriter(new FileWriter(outputPath), 1 << 16))
+                {
+                    elapsed = this.run(script, writer, false, true);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("cannot write " + outputPath + ": " + e.getMessage());
+            return 1;
+        }
+        // with the results on the console, the statistics go to stderr so they can be told apart
+        this.printStatistics(!quiet && outputPath == null ? System.err : System.out, script.size, elapsed);
+        return 0;
+    }
+
+    private void printStatistics(PrintStream out, int numOps, long elapsed)
+    {
+        out.printf("%d ops in %.3f s, %.0f ops/s%n", numOps, elapsed / 1e9, numOps * 1e9 / Math.max(1, elapsed));
+        out.printf("%-5s %10s %12s %10s %10s %10s %10s %10s%n",
+                "cmd", "ops", "ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns");
+        LatencyHistogram all = new LatencyHistogram();
+        for (int op = 0; op < this.latencies.length; op++)
+        {
+            LatencyHistogram latency = this.latencies[op];
+            all.add(latency);
+            if (latency.getCount() > 0)
+                TestShell.printLatency(out, op < COMMANDS.length ? COMMANDS[op] : "?", latency);
+        }
+        TestShell.printLatency(out, "all", all);
+    }
+
+    private static void printLatency(PrintStream out, String command, LatencyHistogram latency)
+    {
+        // ops/s: how many the time spent in the command would fit back to back
+        out.printf("%-5s %10d %12.0f %10d %10d %10d %10d %10d%n", command, latency.getCount(),
+                latency.getCount() * 1e9 / Math.max(1, latency.getTotal()),
+                latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+                latency.percentile(0.999), latency.getMax());
+    }
+
     public static void main(String[] args) {
-        new TestShell().run();
+        if (args.length == 0)
+        {
+            new TestShell().run();
+            return;
+        }
+        boolean quiet = false;
+        int first = 0;
+        if (args[0].equals("-q"))
+        {
+            quiet = true;
+            first = 1;
+        }
+        if (args.length - first < 1 || args.length - first > 2)
+        {
+            System.err.println("usage: TestShell [-q] input [output]");
+            System.exit(2);
+        }
+        String outputPath = args.length - first == 2 ? args[first + 1] : null;
+        int status = new TestShell().runBatch(args[first], outputPath, quiet);
+        if (status != 0)
+            System.exit(status);
     }
 }
@@ -0,0 +1,133 @@
+package filesystem;
+
+import java.util.concurrent.TimeUnit;
+
+// the background flusher of a file system in write-behind mode. Writes return once their blocks are in the cache;
+// a daemon thread makes them durable (FileSystem.sync) every interval, and as soon as a writer finds more than
+// dirtyPercent of the cache dirty. A writer that finds twice that share dirty waits for the next pass to end, so
+// the cache does not fill with dirty blocks that readers would have to write back to get a frame
+//
+// the thread holds on to the file system until stopped
+final class WriteBehind implements Runnable {
+
+	private final FileSystem fs;
+	private final long intervalNanos;
+	private final int dirtyPercent;
+	private final Thread thread;
+
+	// guarded by this
+	private boolean requested; // a writer asked for a pass before the interval is up
+	private boolean running; // a pass is under way
+	private long passes; // passes finished
+	private boolean stopped;
+
+	WriteBehind(FileSystem fs, long intervalMillis, int dirtyPercent)
+	{
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+		if (dirtyPercent < 1 || dirtyPercent > 100)
+			throw new IllegalArgumentException("dirtyPercent must be between 1 and 100: " + dirtyPercent);
+		this.fs = fs;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.dirtyPercent = dirtyPercent;
+		this.thread = new Thread(this, "filesystem-flusher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	// ends the thread once a pass under way has finished; the caller syncs what was written since
+	void stop()
+	{
+		synchronized (this)
+		{
+			this.stopped = true;
+			this.notifyAll();
+		}
+		boolean interrupted = false;
+		while (true)
+		{
+			try {
+				this.thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	// called by a writer holding no locks once its write is in the cache; returns status
+	int afterWrite(int status, BlockCache cache)
+	{
+		long threshold = (long) cache.getCapacity() * this.dirtyPercent / 100;
+		int numDirty = cache.getNumDirtyFrames();
+		if (numDirty <= threshold)
+			return status;
+		synchronized (this)
+		{
+			if (!this.requested)
+			{
+				this.requested = true;
+				this.notifyAll();
+			}
+			if (numDirty <= 2 * threshold || this.stopped)
+				return status;
+			// a pass under way may have gone past the blocks of this write; the next one will not
+			long target = this.passes + (this.running ? 2 : 1);
+			this.fs.getMetrics().writeStalled();
+			while (this.passes < target && !this.stopped)
+			{
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return status;
+	}
+
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				long deadline = System.nanoTime() + this.intervalNanos;
+				for (long wait = this.intervalNanos; !this.requested && !this.stopped && wait > 0;
+						wait = deadline - System.nanoTime())
+				{
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+					} catch (InterruptedException e) {
+						this.stopped = true;
+					}
+				}
+				if (this.stopped)
+				{
+					this.notifyAll(); // writers waiting for a pass go on without it
+					return;
+				}
+				this.requested = false;
+				this.running = true;
+			}
+			boolean passed = false;
+			try {
+				this.fs.sync(); // an I/O error is tried again on the next pass
+				this.fs.getMetrics().flusherPass();
+				passed = true;
+			} finally {
+				synchronized (this)
+				{
+					this.running = false;
+					this.passes++;
+					this.stopped |= !passed; // the thread dies of the exception; nobody waits for it any more
+					this.notifyAll();
+				}
+			}
+		}
+	}
+}